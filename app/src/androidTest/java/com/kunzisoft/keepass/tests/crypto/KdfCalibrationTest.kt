@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.crypto
+
+import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
+import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class KdfCalibrationTest {
+
+    @Test
+    fun testAesKdfRoundsIncreaseWithTargetTime() {
+        testRoundsIncreaseWithTargetTime(KdfFactory.aesKdf)
+    }
+
+    @Test
+    fun testArgon2RoundsIncreaseWithTargetTime() {
+        testRoundsIncreaseWithTargetTime(KdfFactory.argon2idKdf)
+    }
+
+    private fun testRoundsIncreaseWithTargetTime(kdfEngine: KdfEngine) {
+        val calibration = kdfEngine.calibrate(KdfEngine.DEFAULT_TARGET_UNLOCK_TIME)
+        var previousRounds = 0L
+        for (targetTime in listOf(250L, 500L, 1000L, 2000L, 4000L)) {
+            val rounds = calibration.keyRoundsForUnlockTime(kdfEngine, targetTime)
+            assertTrue("Rounds for $targetTime ms not increasing.", rounds >= previousRounds)
+            assertTrue("Rounds for $targetTime ms out of bounds.",
+                    rounds in kdfEngine.minKeyRounds..kdfEngine.maxKeyRounds)
+            previousRounds = rounds
+        }
+        // Measures with a large gap, to not depend on the device load
+        val shortCalibration = kdfEngine.calibrate(50L)
+        val longCalibration = kdfEngine.calibrate(2000L)
+        assertTrue("Calibrated rounds not increasing.",
+                longCalibration.keyRounds >= shortCalibration.keyRounds)
+    }
+}
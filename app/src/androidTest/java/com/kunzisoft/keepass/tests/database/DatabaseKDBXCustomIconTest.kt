@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.file.input.DatabaseInputKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.*
+
+class DatabaseKDBXCustomIconTest : TestCase() {
+
+    fun testCustomIconSavedAndLoaded() {
+        val database = DatabaseKDBX("Database", "Root")
+        val iconUuid = UUID.randomUUID()
+        val iconData = ByteArray(512)
+        Random(42).nextBytes(iconData)
+        database.addCustomIcon(iconUuid, ICON_NAME, null, true) { _, binary ->
+            binary?.getOutputDataStream(database.binaryCache)?.use { outputStream ->
+                outputStream.write(iconData)
+            }
+        }
+        val entry = EntryKDBX().apply {
+            title = "Entry"
+            icon.custom = database.getCustomIcon(iconUuid)!!
+        }
+        database.addEntryTo(entry, database.rootGroup)
+
+        val loadedDatabase = saveAndLoad(database)
+
+        val loadedIcon = loadedDatabase.getCustomIcon(iconUuid)
+        assertNotNull("Custom icon lost on load.", loadedIcon)
+        assertEquals(ICON_NAME, loadedIcon!!.name)
+        val loadedData = loadedDatabase.iconsManager.getBinaryForCustomIcon(iconUuid)!!
+                .getInputDataStream(loadedDatabase.binaryCache).use { it.readBytes() }
+        assertArrayEquals(iconData, loadedData)
+
+        // The node UUID is still read as the node UUID
+        val loadedEntry = loadedDatabase.getEntryById(entry.id)
+        assertNotNull("Entry lost on load.", loadedEntry)
+        assertEquals(iconUuid, loadedEntry!!.icon.custom.uuid)
+    }
+
+    private fun saveAndLoad(database: DatabaseKDBX): DatabaseKDBX {
+        database.retrieveMasterKey(PASSWORD, null)
+        val outputStream = ByteArrayOutputStream()
+        DatabaseOutputKDBX(database, outputStream).output()
+
+        val loadedDatabase = DatabaseKDBX()
+        DatabaseInputKDBX(loadedDatabase)
+                .openDatabase(ByteArrayInputStream(outputStream.toByteArray()), null) {
+                    loadedDatabase.retrieveMasterKey(PASSWORD, null)
+                }
+        return loadedDatabase
+    }
+
+    companion object {
+        private const val PASSWORD = "password"
+        private const val ICON_NAME = "Icon"
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.element.Attachment
+import com.kunzisoft.keepass.database.element.binary.BinaryByte
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.node.NodeIdUUID
+import junit.framework.TestCase
+import java.util.*
+
+class DatabaseKDBXUnlinkedAttachmentsTest : TestCase() {
+
+    private lateinit var database: DatabaseKDBX
+
+    override fun setUp() {
+        database = DatabaseKDBX("Database", "Root")
+    }
+
+    private fun addCustomIcon(): UUID {
+        val iconUuid = UUID.randomUUID()
+        database.addCustomIcon(iconUuid, "", null, true) { _, binary ->
+            binary?.getOutputDataStream(database.binaryCache)?.use { outputStream ->
+                outputStream.write(iconUuid.toString().toByteArray())
+            }
+        }
+        return iconUuid
+    }
+
+    private fun buildAttachment(name: String): Attachment {
+        val binary = database.buildNewBinaryAttachment(true, false, false)
+        binary.getOutputDataStream(database.binaryCache).use { outputStream ->
+            outputStream.write(name.toByteArray())
+        }
+        return Attachment(name, binary)
+    }
+
+    fun testIconsMarkedThroughHistory() {
+        val iconInHistory = addCustomIcon()
+        val iconUnused = addCustomIcon()
+        val entry = EntryKDBX().apply {
+            title = "Entry"
+            addEntryToHistory(EntryKDBX().apply {
+                title = "Old entry"
+                icon.custom = database.getCustomIcon(iconInHistory)!!
+            })
+        }
+        database.addEntryTo(entry, database.rootGroup)
+
+        val removedIcons = database.removeUnlinkedAttachments(true)
+        assertEquals(listOf(iconUnused), removedIcons.map { it.uuid })
+        assertNotNull(database.getCustomIcon(iconInHistory))
+        assertNull(database.getCustomIcon(iconUnused))
+        // Removed icons are recorded like a deletion from the UI
+        assertNotNull(database.getDeletedObject(NodeIdUUID(iconUnused)))
+        assertNull(database.getDeletedObject(NodeIdUUID(iconInHistory)))
+    }
+
+    fun testAttachmentsMarkedThroughHistory() {
+        val attachmentInHistory = buildAttachment("history")
+        val attachmentUnused = buildAttachment("unused")
+        val entry = EntryKDBX().apply {
+            title = "Entry"
+            addEntryToHistory(EntryKDBX().apply {
+                title = "Old entry"
+                putAttachment(attachmentInHistory, database.attachmentPool)
+            })
+        }
+        database.addEntryTo(entry, database.rootGroup)
+
+        database.removeUnlinkedAttachments(true)
+        assertTrue(database.attachmentPool.contains(attachmentInHistory.binaryData))
+        assertFalse(database.attachmentPool.contains(attachmentUnused.binaryData))
+    }
+
+    fun testSharedStorageKeptByLinkedKey() {
+        val attachment = buildAttachment("shared")
+        val entry = EntryKDBX().apply {
+            title = "Entry"
+            putAttachment(attachment, database.attachmentPool)
+        }
+        database.addEntryTo(entry, database.rootGroup)
+        val linkedKey = entry.binaries[attachment.name]!!
+
+        // Second key on the same storage, like a binary retrieved from a parcel
+        val copy = BinaryByte(attachment.binaryData.storageId)
+        val attachmentPool = database.attachmentPool
+        val unlinkedKey = attachmentPool.findUnusedKey()
+        attachmentPool.put(unlinkedKey, copy)
+
+        database.removeUnlinkedAttachment(copy, true)
+        assertNull(attachmentPool[unlinkedKey])
+        // The storage is not cleared, it is still used by the linked key
+        val data = attachmentPool[linkedKey]!!.getInputDataStream(database.binaryCache).use {
+            it.readBytes()
+        }
+        assertEquals(attachment.name, String(data))
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.util.Base64
+import com.kunzisoft.keepass.database.file.output.DatabaseKDBXXMLWriter
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import org.xmlpull.v1.XmlPullParser
+import org.xmlpull.v1.XmlPullParserFactory
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.*
+
+class DatabaseKDBXXMLWriterTest : TestCase() {
+
+    fun testBase64WrittenByChunks() {
+        val random = Random(42)
+        for (size in listOf(0, 1, 2, 3, 4, 1000, 65537)) {
+            val data = ByteArray(size)
+            random.nextBytes(data)
+            // Chunk sizes not multiple of 3, each chunk must not be padded
+            for (chunkSize in listOf(1, 2, 7, 8192)) {
+                val outputStream = ByteArrayOutputStream()
+                DatabaseKDBXXMLWriter(outputStream).apply {
+                    startDocument()
+                    startTag(ELEMENT)
+                    var offset = 0
+                    while (offset < size) {
+                        val length = chunkSize.coerceAtMost(size - offset)
+                        textBase64Update(data, offset, length)
+                        offset += length
+                    }
+                    textBase64End()
+                    endTag(ELEMENT)
+                    endDocument()
+                }
+                assertArrayEquals("Base64 of $size bytes by chunks of $chunkSize failed.",
+                        data, readBase64(outputStream.toByteArray()))
+            }
+        }
+    }
+
+    private fun readBase64(document: ByteArray): ByteArray {
+        val xpp = XmlPullParserFactory.newInstance().newPullParser()
+        xpp.setInput(ByteArrayInputStream(document), "UTF-8")
+        var text = ""
+        while (xpp.next() != XmlPullParser.END_DOCUMENT) {
+            if (xpp.eventType == XmlPullParser.TEXT)
+                text += xpp.text
+        }
+        return Base64.decode(text, Base64.NO_WRAP)
+    }
+
+    companion object {
+        private const val ELEMENT = "Binary"
+    }
+}
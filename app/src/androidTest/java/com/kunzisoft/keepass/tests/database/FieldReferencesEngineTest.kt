@@ -0,0 +1,129 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.utils.UuidUtil
+import junit.framework.TestCase
+
+class FieldReferencesEngineTest : TestCase() {
+
+    private lateinit var database: DatabaseKDBX
+
+    override fun setUp() {
+        database = DatabaseKDBX("Database", "Root")
+    }
+
+    private fun addEntry(title: String,
+                         username: String = "",
+                         password: String = ""): EntryKDBX {
+        val entry = EntryKDBX().apply {
+            this.title = title
+            this.username = username
+            this.password = password
+            startToManageFieldReferences(database)
+        }
+        database.addEntryTo(entry, database.rootGroup)
+        return entry
+    }
+
+    private fun idReference(field: Char, entry: EntryKDBX): String {
+        return "{REF:$field@I:${UuidUtil.toHexString(entry.nodeId.id)}}"
+    }
+
+    fun testReferenceInvalidatedByItsEntry() {
+        val entryA = addEntry("Alpha", username = "userA")
+        val entryB = addEntry("Beta", username = idReference('U', entryA))
+        assertEquals("userA", entryB.username)
+
+        // Not notified, the cached value is kept
+        entryA.username = "userA2"
+        assertEquals("userA", entryB.username)
+
+        database.updateEntry(entryA)
+        assertEquals("userA2", entryB.username)
+    }
+
+    fun testTitleReferenceKeptByUnrelatedEntry() {
+        val entryA = addEntry("Alpha", username = "userA")
+        val entryB = addEntry("Beta", username = "{REF:U@T:Alpha}")
+        val entryC = addEntry("Gamma")
+        assertEquals("userA", entryB.username)
+
+        entryA.username = "userA2"
+        // Neither the old nor the new title is searched
+        entryC.title = "Delta"
+        database.updateEntry(entryC)
+        assertEquals("userA", entryB.username)
+
+        // The new title is searched
+        entryC.title = "alpha"
+        database.updateEntry(entryC)
+        assertEquals("userA2", entryB.username)
+
+        entryA.username = "userA3"
+        // The old title is searched
+        entryC.title = "Epsilon"
+        database.updateEntry(entryC)
+        assertEquals("userA3", entryB.username)
+    }
+
+    fun testNestedReferenceDependencies() {
+        val entryA = addEntry("Alpha", username = "userA")
+        val entryB = addEntry("Beta", username = idReference('U', entryA))
+        val entryC = addEntry("Gamma", password = idReference('U', entryB))
+        assertEquals("userA", entryC.password)
+
+        // C depends on A through B
+        entryA.username = "userA2"
+        database.updateEntry(entryA)
+        assertEquals("userA2", entryC.password)
+    }
+
+    fun testReferenceToNewEntry() {
+        val entryA = EntryKDBX().apply {
+            title = "Alpha"
+            username = "userA"
+            startToManageFieldReferences(database)
+        }
+        val reference = idReference('U', entryA)
+        val entryB = addEntry("Beta", username = reference)
+        // Kept if the value is not found
+        assertEquals(reference, entryB.username)
+
+        database.addEntryTo(entryA, database.rootGroup)
+        assertEquals("userA", entryB.username)
+    }
+
+    fun testTitleReferenceWithReferenceInTitles() {
+        val entryA = addEntry("Alpha", username = "target")
+        // The decoded title of B is "target"
+        addEntry(idReference('U', entryA), password = "passwordB")
+        val entryC = addEntry("Gamma", username = "{REF:P@T:target}")
+        assertEquals("passwordB", entryC.username)
+
+        // Each title is decoded, so any entry can change the result
+        val entryD = addEntry("Delta")
+        entryA.username = "other"
+        database.updateEntry(entryD)
+        assertEquals("{REF:P@T:target}", entryC.username)
+    }
+}
@@ -1,16 +1,29 @@
 package com.kunzisoft.keepass.tests.stream
 
 import android.content.Context
+import android.util.Base64
+import android.util.Base64OutputStream
 import androidx.test.platform.app.InstrumentationRegistry
 import com.kunzisoft.keepass.utils.readAllBytes
 import com.kunzisoft.keepass.database.element.binary.BinaryCache
 import com.kunzisoft.keepass.database.element.binary.BinaryFile
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipher
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import com.kunzisoft.keepass.stream.ChunkedCipherFileInputStream
 import com.kunzisoft.keepass.utils.UriUtil
 import junit.framework.TestCase.assertEquals
+import junit.framework.TestCase.assertFalse
+import junit.framework.TestCase.assertTrue
 import org.junit.Test
 import java.io.DataInputStream
 import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
 import java.io.InputStream
+import java.io.RandomAccessFile
+import javax.crypto.Cipher
+import javax.crypto.CipherOutputStream
+import javax.crypto.spec.IvParameterSpec
 import kotlin.random.Random
 
 class BinaryDataTest {
@@ -25,8 +38,12 @@ class BinaryDataTest {
     private val fileC = File(cacheDirectory, TEST_FILE_CACHE_C)
 
     private val binaryCache = BinaryCache()
+    // Small chunks to read across chunk boundaries with the test assets
+    private val smallChunkBinaryCache = BinaryCache(SMALL_CHUNK_SIZE)
 
-    private fun saveBinary(asset: String, binaryData: BinaryFile) {
+    private fun saveBinary(asset: String,
+                           binaryData: BinaryFile,
+                           binaryCache: BinaryCache = this.binaryCache) {
         context.assets.open(asset).use { assetInputStream ->
             binaryData.getOutputDataStream(binaryCache).use { binaryOutputStream ->
                 assetInputStream.readAllBytes(DEFAULT_BUFFER_SIZE) { buffer ->
@@ -142,6 +159,86 @@ class BinaryDataTest {
                 binaryA.getInputDataStream(binaryCache)))
     }
 
+    @Test
+    fun testSeekableRead() {
+        val binaryA = BinaryFile(fileA)
+        saveBinary(TEST_TEXT_ASSET, binaryA, smallChunkBinaryCache)
+        val expected = context.assets.open(TEST_TEXT_ASSET).use { it.readBytes() }
+        binaryA.getSeekableInputDataStream(smallChunkBinaryCache).use { seekableInputStream ->
+            assertEquals("Seekable size failed.", expected.size.toLong(), seekableInputStream.size())
+            // Ranges across chunk boundaries, read backward
+            for (position in listOf(5000L, 1020L, 0L, expected.size - 10L)) {
+                val buffer = ByteArray(10)
+                DataInputStream(seekableInputStream.apply { seek(position) }).readFully(buffer)
+                assertTrue("Seekable read at $position failed.",
+                        buffer.contentEquals(expected.copyOfRange(position.toInt(), position.toInt() + 10)))
+            }
+        }
+    }
+
+    @Test
+    fun testReadTamperedFile() {
+        val binaryA = BinaryFile(fileA)
+        saveBinary(TEST_TEXT_ASSET, binaryA)
+        RandomAccessFile(fileA, "rw").use { file ->
+            // Flip a byte of the first chunk, after the header
+            file.seek(32)
+            val byte = file.read()
+            file.seek(32)
+            file.write(byte xor 0xFF)
+        }
+        assertFalse("Tampered binary read.", streamAreEquals(context.assets.open(TEST_TEXT_ASSET),
+                binaryA.getInputDataStream(binaryCache)))
+    }
+
+    @Test
+    fun testReadFileTruncatedAtChunkBoundary() {
+        val binaryA = BinaryFile(fileA)
+        saveBinary(TEST_TEXT_ASSET, binaryA, smallChunkBinaryCache)
+        RandomAccessFile(fileA, "rw").use { file ->
+            // Keep the header and the first two encrypted chunks only
+            file.setLength(CHUNKED_HEADER_SIZE + 2L * (SMALL_CHUNK_SIZE + ChunkedCipher.TAG_SIZE))
+        }
+        var truncatedRead = true
+        try {
+            binaryA.getSeekableInputDataStream(smallChunkBinaryCache).use { it.size() }
+        } catch (e: IOException) {
+            truncatedRead = false
+        }
+        assertFalse("Truncated binary opened.", truncatedRead)
+        assertFalse("Truncated binary read.", streamAreEquals(context.assets.open(TEST_TEXT_ASSET),
+                binaryA.getInputDataStream(smallChunkBinaryCache)))
+    }
+
+    @Test
+    fun testReadLegacyFile() {
+        // Write the file like the previous versions, encrypted Base64 without header
+        val cipherKey = binaryCache.loadedCipherKey
+        val cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
+        context.assets.open(TEST_TEXT_ASSET).use { assetInputStream ->
+            Base64OutputStream(CipherOutputStream(FileOutputStream(fileA), cipher), Base64.NO_WRAP)
+                    .use { outputStream ->
+                assetInputStream.readAllBytes(DEFAULT_BUFFER_SIZE) { buffer ->
+                    outputStream.write(buffer)
+                }
+            }
+        }
+        val binaryA = BinaryFile(fileA)
+        assertTrue("Legacy binary read failed.", streamAreEquals(context.assets.open(TEST_TEXT_ASSET),
+                binaryA.getInputDataStream(binaryCache)))
+
+        // The next rewrite of the binary migrates it to the chunked layout
+        binaryA.compress(binaryCache)
+        binaryA.decompress(binaryCache)
+        assertTrue("Migrated binary read failed.", streamAreEquals(context.assets.open(TEST_TEXT_ASSET),
+                binaryA.getInputDataStream(binaryCache)))
+        binaryA.getSeekableInputDataStream(binaryCache).use { seekableInputStream ->
+            assertTrue("Binary not migrated to the chunked layout.",
+                    seekableInputStream is ChunkedCipherFileInputStream)
+        }
+    }
+
     private fun streamAreEquals(inputStreamA: InputStream,
                                 inputStreamB: InputStream): Boolean {
         val bufferA = ByteArray(DEFAULT_BUFFER_SIZE)
@@ -170,6 +267,9 @@ class BinaryDataTest {
         private const val TEST_FILE_CACHE_A = "testA"
         private const val TEST_FILE_CACHE_B = "testB"
         private const val TEST_FILE_CACHE_C = "testC"
+        // Signature, version, chunk size and nonce of a chunked binary file
+        private const val CHUNKED_HEADER_SIZE = 4 + 1 + 4 + ChunkedCipher.NONCE_SIZE
+        private const val SMALL_CHUNK_SIZE = 1024
         private const val TEST_IMAGE_ASSET = "test_image.png"
         private const val TEST_TEXT_ASSET = "test_text.txt"
     }
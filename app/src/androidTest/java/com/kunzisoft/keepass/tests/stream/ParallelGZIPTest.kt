@@ -0,0 +1,124 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import android.os.Build
+import androidx.test.filters.SdkSuppress
+import com.kunzisoft.keepass.stream.DeflateLevelOutputStream
+import com.kunzisoft.keepass.stream.ParallelGZIPOutputStream
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.*
+import java.util.zip.GZIPInputStream
+
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.KITKAT)
+class ParallelGZIPTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testEmpty() {
+        testCompression(ByteArray(0))
+    }
+
+    @Throws(IOException::class)
+    fun testManyBlocks() {
+        val orig = ByteArray(1000000)
+        for (i in orig.indices) {
+            orig[i] = ALPHABET[rand.nextInt(ALPHABET.length)].code.toByte()
+        }
+        testCompression(orig)
+    }
+
+    @Throws(IOException::class)
+    fun testLevelSwitch() {
+        val compressible = ByteArray(300000) { (it % 7).toByte() }
+        val random = ByteArray(200000)
+        rand.nextBytes(random)
+
+        val bos = ByteArrayOutputStream()
+        val gzip = ParallelGZIPOutputStream(bos, 64 * 1024, 3)
+        gzip.write(compressible)
+        gzip.setDeflateLevel(DeflateLevelOutputStream.LEVEL_STORE)
+        gzip.write(random)
+        gzip.setDeflateLevel(DeflateLevelOutputStream.LEVEL_DEFAULT)
+        gzip.write(compressible)
+        gzip.close()
+
+        val expected = ByteArrayOutputStream()
+        expected.write(compressible)
+        expected.write(random)
+        expected.write(compressible)
+        assertArrayEquals(expected.toByteArray(), decompress(bos.toByteArray()))
+    }
+
+    @Throws(IOException::class)
+    fun testAbort() {
+        val orig = ByteArray(500000)
+        rand.nextBytes(orig)
+        val bos = ByteArrayOutputStream()
+        val gzip = ParallelGZIPOutputStream(bos, 64 * 1024, 4)
+        gzip.write(orig)
+        gzip.abort()
+        val outputLength = bos.size()
+
+        // Neither the end of the stream nor the pending blocks are written
+        gzip.close()
+        assertEquals(outputLength, bos.size())
+        try {
+            gzip.write(orig)
+            fail("Write after abort should fail.")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun testCompression(orig: ByteArray) {
+        val bos = ByteArrayOutputStream()
+        val gzip = ParallelGZIPOutputStream(bos, 64 * 1024, 4)
+        gzip.write(orig)
+        gzip.close()
+
+        assertArrayEquals("Output not equal to input", orig, decompress(bos.toByteArray()))
+    }
+
+    @Throws(IOException::class)
+    private fun decompress(compressed: ByteArray): ByteArray {
+        val decoded = ByteArrayOutputStream()
+        GZIPInputStream(ByteArrayInputStream(compressed)).use { inputStream ->
+            val buf = ByteArray(1000)
+            while (true) {
+                val read = inputStream.read(buf)
+                if (read == -1) {
+                    break
+                }
+                decoded.write(buf, 0, read)
+            }
+        }
+        return decoded.toByteArray()
+    }
+
+    companion object {
+        private val rand = Random()
+        private const val ALPHABET = "abcdefghijklmnop"
+    }
+}
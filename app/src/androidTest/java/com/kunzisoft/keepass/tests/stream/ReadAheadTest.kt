@@ -0,0 +1,142 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.stream.HashedBlockInputStream
+import com.kunzisoft.keepass.stream.HashedBlockOutputStream
+import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.HmacBlockOutputStream
+import com.kunzisoft.keepass.stream.ReadAheadInputStream
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.*
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+class ReadAheadTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testSmallerThanBlock() {
+        testSize(100, 1024)
+    }
+
+    @Throws(IOException::class)
+    fun testManyBlocks() {
+        testSize(50000, 1024)
+    }
+
+    @Throws(IOException::class)
+    private fun testSize(length: Int, blockSize: Int) {
+        val orig = ByteArray(length)
+        rand.nextBytes(orig)
+
+        val input = ReadAheadInputStream(ByteArrayInputStream(orig), blockSize, 3)
+        assertArrayEquals(orig, readAll(input))
+        input.close()
+    }
+
+    @Throws(IOException::class)
+    fun testPipelinedGZIPStream() {
+        val orig = ByteArray(200000)
+        rand.nextBytes(orig)
+
+        val bos = ByteArrayOutputStream()
+        val zos = GZIPOutputStream(HashedBlockOutputStream(bos))
+        zos.write(orig)
+        zos.close()
+
+        val his = HashedBlockInputStream(ReadAheadInputStream(ByteArrayInputStream(bos.toByteArray())))
+        val zis = ReadAheadInputStream(GZIPInputStream(ReadAheadInputStream(his)))
+
+        assertArrayEquals("Output not equal to input", orig, readAll(zis))
+        zis.close()
+    }
+
+    @Throws(IOException::class)
+    fun testPipelinedHmacBlockStream() {
+        val orig = ByteArray(200000)
+        rand.nextBytes(orig)
+        val key = ByteArray(64)
+        rand.nextBytes(key)
+
+        val bos = ByteArrayOutputStream()
+        val hos = HmacBlockOutputStream(bos, key)
+        hos.write(orig)
+        hos.close()
+        val encoded = bos.toByteArray()
+
+        val his = ReadAheadInputStream(HmacBlockInputStream(
+                ReadAheadInputStream(ByteArrayInputStream(encoded)), true, key, 4))
+        assertArrayEquals("Output not equal to input", orig, readAll(his))
+        his.close()
+
+        // Flip a byte in the data of a block in the middle
+        val tampered = encoded.copyOf()
+        tampered[tampered.size / 2] = (tampered[tampered.size / 2].toInt() xor 0xFF).toByte()
+        val tamperedHis = ReadAheadInputStream(HmacBlockInputStream(
+                ReadAheadInputStream(ByteArrayInputStream(tampered)), true, key, 4))
+        try {
+            readAll(tamperedHis)
+            fail("Tampered block not detected")
+        } catch (e: IOException) {
+            // Expected, the blocks before the tampered one may have been read
+        } finally {
+            tamperedHis.close()
+        }
+    }
+
+    fun testErrorPropagation() {
+        val failingStream = object : InputStream() {
+            override fun read(): Int {
+                throw IOException("Stage error")
+            }
+        }
+        val input = ReadAheadInputStream(failingStream)
+        try {
+            input.read()
+            fail("Stage error not propagated")
+        } catch (e: IOException) {
+            assertEquals("Stage error", e.message)
+        } finally {
+            input.close()
+        }
+    }
+
+    private fun readAll(inputStream: InputStream): ByteArray {
+        val decoded = ByteArrayOutputStream()
+        val buf = ByteArray(1000)
+        while (true) {
+            val read = inputStream.read(buf)
+            if (read == -1) {
+                break
+            }
+            decoded.write(buf, 0, read)
+        }
+        return decoded.toByteArray()
+    }
+
+    companion object {
+        private val rand = Random()
+    }
+}
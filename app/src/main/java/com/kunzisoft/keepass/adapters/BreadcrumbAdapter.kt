@@ -112,8 +112,8 @@ class BreadcrumbAdapter(val context: Context)
 
                 holder.groupNumbersView?.apply {
                     if (mShowNumberEntries) {
-                        group.refreshNumberOfChildEntries(Group.ChildFilter.getDefaults(context))
-                        text = group.numberOfChildEntries.toString()
+                        text = group.getNumberOfChildEntries(
+                            Group.ChildFilter.getDefaults(context)).toString()
                         visibility = View.VISIBLE
                     } else {
                         visibility = View.GONE
@@ -39,6 +39,7 @@ import com.kunzisoft.keepass.database.element.Entry
 import com.kunzisoft.keepass.database.element.Group
 import com.kunzisoft.keepass.database.element.SortNodeEnum
 import com.kunzisoft.keepass.database.element.node.Node
+import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.NodeVersionedInterface
 import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.database.element.template.TemplateField
@@ -79,6 +80,8 @@ class NodesAdapter (private val context: Context,
     private var mShowOTP: Boolean = false
     private var mShowUUID: Boolean = false
     private var mEntryFilters = arrayOf<Group.ChildFilter>()
+    // Number of entries displayed in each group row
+    private val mNumberOfChildEntriesBound = HashMap<NodeId<*>, Int>()
     private var mOldVirtualGroup = false
     private var mVirtualGroup = false
 
@@ -165,7 +168,11 @@ class NodesAdapter (private val context: Context,
         mOldVirtualGroup = mVirtualGroup
         mVirtualGroup = group.isVirtual
         assignPreferences()
-        mNodeSortedList.replaceAll(group.getFilteredChildren(mEntryFilters))
+        val children = group.getFilteredChildren(mEntryFilters)
+        mNodeSortedList.replaceAll(children)
+        // Forget the groups no longer displayed, the others are compared at their next rebuild
+        val childIds = children.mapTo(HashSet()) { it.nodeId }
+        mNumberOfChildEntriesBound.keys.retainAll(childIds)
     }
 
     private inner class NodeSortedListCallback: SortedListAdapterCallback<Node>(this) {
@@ -185,7 +192,11 @@ class NodesAdapter (private val context: Context,
                         && oldItem.getOtpElement() == newItem.getOtpElement()
                         && oldItem.containsAttachment() == newItem.containsAttachment()
             } else if (oldItem is Group && newItem is Group) {
-                typeContentTheSame = oldItem.numberOfChildEntries == newItem.numberOfChildEntries
+                // A node always gives the same group instance, so the number of entries
+                // is compared with the one displayed by the row
+                typeContentTheSame = (!mShowNumberEntries
+                        || mNumberOfChildEntriesBound[newItem.nodeId]
+                            == newItem.getNumberOfChildEntries(mEntryFilters))
                         && oldItem.notes == newItem.notes
             }
             return typeContentTheSame
@@ -468,9 +479,10 @@ class NodesAdapter (private val context: Context,
         if (subNode.type == Type.GROUP) {
             if (mShowNumberEntries) {
                 holder.numberChildren?.apply {
-                    text = (subNode as Group)
-                            .numberOfChildEntries
-                            .toString()
+                    val numberOfChildEntries = (subNode as Group)
+                            .getNumberOfChildEntries(mEntryFilters)
+                    mNumberOfChildEntriesBound[subNode.nodeId] = numberOfChildEntries
+                    text = numberOfChildEntries.toString()
                     setTextSize(mTextSizeUnit, mNumberChildrenTextDefaultDimension, mPrefSizeMultiplier)
                     visibility = View.VISIBLE
                 }
@@ -44,6 +44,7 @@ import com.kunzisoft.keepass.model.RegisterInfo
 import com.kunzisoft.keepass.model.SearchInfo
 import com.kunzisoft.keepass.settings.AutofillSettingsActivity
 import com.kunzisoft.keepass.settings.PreferencesUtil
+import mozilla.components.lib.publicsuffixlist.PublicSuffixList
 import org.joda.time.DateTime
 import java.util.concurrent.atomic.AtomicBoolean
 
@@ -68,6 +69,9 @@ class KeeAutofillService : AutofillService() {
             this.mDatabase = database
         }
 
+        // Load the public suffixes in background before the first web domain request
+        PublicSuffixList.getInstance(this).prefetch()
+
         getPreferences()
     }
 
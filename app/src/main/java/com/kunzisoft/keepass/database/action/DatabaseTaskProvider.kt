@@ -134,6 +134,10 @@ class DatabaseTaskProvider {
             updateDialog(titleId, messageId, warningId)
         }
 
+        override fun onUpdateProgress(database: Database, progress: Int, max: Int) {
+            progressTaskDialogFragment?.updateProgress(progress, max)
+        }
+
         override fun onStopAction(database: Database, actionTask: String, result: ActionRunnable.Result) {
             onActionFinish?.invoke(database, actionTask, result)
             // Remove the progress task
@@ -43,6 +43,9 @@ class AesKdf : KdfEngine() {
 
     override val defaultKeyRounds = 500000L
 
+    override val calibrationKeyRounds: Long
+        get() = 100000L
+
     @Throws(IOException::class)
     override fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray {
 
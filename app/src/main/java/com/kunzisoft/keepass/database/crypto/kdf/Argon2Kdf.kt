@@ -23,6 +23,8 @@ import com.kunzisoft.keepass.utils.UnsignedInt
 import com.kunzisoft.keepass.utils.UnsignedLong
 import com.kunzisoft.encrypt.argon2.Argon2Transformer
 import com.kunzisoft.encrypt.argon2.Argon2Type
+import com.kunzisoft.encrypt.argon2.NativeArgon2KeyTransformer
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.bytes16ToUuid
 import java.io.IOException
 import java.security.SecureRandom
@@ -52,6 +54,13 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
 
     @Throws(IOException::class)
     override fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray {
+        return transform(masterKey, kdfParameters, null)
+    }
+
+    @Throws(IOException::class)
+    override fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           progressTaskUpdater: ProgressTaskUpdater?): ByteArray {
 
         val salt = kdfParameters.getByteArray(PARAM_SALT) ?: ByteArray(0)
         val parallelism = kdfParameters.getUInt32(PARAM_PARALLELISM)?.toKotlinLong() ?: DEFAULT_PARALLELISM.toKotlinLong()
@@ -72,7 +81,12 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
                 parallelism,
                 memory,
                 iterations,
-                version)
+                version,
+                progressTaskUpdater?.let { updater ->
+                    NativeArgon2KeyTransformer.ProgressListener { pass, passes ->
+                        updater.updateProgress(pass, passes)
+                    }
+                })
     }
 
     override fun randomize(kdfParameters: KdfParameters) {
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.crypto.kdf
+
+import java.io.Serializable
+
+/**
+ * Parameters of a KDF measured on the current device to reach a target unlock time,
+ * [nanosPerKeyRound] is the measured duration of one key round with [memoryUsage] and [parallelism].
+ */
+data class KdfCalibration(val keyRounds: Long,
+                          val memoryUsage: Long,
+                          val parallelism: Long,
+                          val nanosPerKeyRound: Double) : Serializable {
+
+    /**
+     * Predicted unlock time in milliseconds for [rounds] key rounds
+     */
+    fun predictUnlockTime(rounds: Long = keyRounds): Long {
+        return (rounds * nanosPerKeyRound / 1_000_000L).toLong()
+    }
+
+    /**
+     * Predicted unlock times in milliseconds around the calibrated key rounds, by increasing rounds
+     */
+    fun predictedUnlockTimes(kdfEngine: KdfEngine): List<Pair<Long, Long>> {
+        return TABLE_FACTORS.map { factor ->
+            (keyRounds * factor).toLong().coerceIn(kdfEngine.minKeyRounds, kdfEngine.maxKeyRounds)
+        }.distinct().map { rounds ->
+            Pair(rounds, predictUnlockTime(rounds))
+        }
+    }
+
+    /**
+     * Key rounds which unlock in about [targetTime] milliseconds with the calibrated memory usage
+     */
+    fun keyRoundsForUnlockTime(kdfEngine: KdfEngine, targetTime: Long): Long {
+        return keyRoundsForUnlockTime(kdfEngine, nanosPerKeyRound, targetTime)
+    }
+
+    /**
+     * Memory usage in bytes which unlocks in about [targetTime] milliseconds with [keyRounds] key rounds,
+     * [KdfEngine.UNKNOWN_VALUE] if the KDF doesn't use memory
+     */
+    fun memoryUsageForUnlockTime(kdfEngine: KdfEngine, keyRounds: Long, targetTime: Long): Long {
+        if (memoryUsage == KdfEngine.UNKNOWN_VALUE || memoryUsage <= 0 || keyRounds <= 0)
+            return KdfEngine.UNKNOWN_VALUE
+        // The cost of a round is proportional to the memory
+        val nanosPerByteRound = nanosPerKeyRound / memoryUsage
+        val memory = (targetTime * 1_000_000L / (keyRounds * nanosPerByteRound)).toLong()
+        return (memory / KdfEngine.MEMORY_STEP * KdfEngine.MEMORY_STEP)
+            .coerceIn(kdfEngine.minMemoryUsage, kdfEngine.maxMemoryUsage)
+    }
+
+    /**
+     * Write the calibrated parameters in [kdfParameters] of [kdfEngine]
+     */
+    fun applyTo(kdfEngine: KdfEngine, kdfParameters: KdfParameters) {
+        kdfEngine.setKeyRounds(kdfParameters, keyRounds)
+        if (memoryUsage != KdfEngine.UNKNOWN_VALUE)
+            kdfEngine.setMemoryUsage(kdfParameters, memoryUsage)
+        if (parallelism != KdfEngine.UNKNOWN_VALUE)
+            kdfEngine.setParallelism(kdfParameters, parallelism)
+    }
+
+    companion object {
+        private val TABLE_FACTORS = doubleArrayOf(0.25, 0.5, 1.0, 2.0, 4.0)
+
+        fun keyRoundsForUnlockTime(kdfEngine: KdfEngine,
+                                   nanosPerKeyRound: Double,
+                                   targetTime: Long): Long {
+            return (targetTime * 1_000_000L / nanosPerKeyRound).toLong()
+                .coerceIn(kdfEngine.minKeyRounds, kdfEngine.maxKeyRounds)
+        }
+    }
+}
@@ -19,9 +19,11 @@
  */
 package com.kunzisoft.keepass.database.crypto.kdf
 
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.UnsignedInt
 import java.io.IOException
 import java.io.Serializable
+import java.security.SecureRandom
 import java.util.*
 
 // TODO Parcelable
@@ -34,6 +36,16 @@ abstract class KdfEngine : Serializable {
     @Throws(IOException::class)
     abstract fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray
 
+    /**
+     * Same as [transform], the progress of the engines which report it is sent to [progressTaskUpdater]
+     */
+    @Throws(IOException::class)
+    open fun transform(masterKey: ByteArray,
+                       kdfParameters: KdfParameters,
+                       progressTaskUpdater: ProgressTaskUpdater?): ByteArray {
+        return transform(masterKey, kdfParameters)
+    }
+
     abstract fun randomize(kdfParameters: KdfParameters)
 
     /*
@@ -94,7 +106,74 @@ abstract class KdfEngine : Serializable {
     open val maxParallelism: Long
         get() = UnsignedInt.MAX_VALUE.toKotlinLong()
 
+    /*
+     * CALIBRATION
+     */
+
+    /**
+     * Key rounds of the first calibration measure, doubled until the measure is long enough
+     */
+    open val calibrationKeyRounds: Long
+        get() = minKeyRounds
+
+    /**
+     * Time [transform] on this device and derive the parameters which unlock in about [targetTime] milliseconds,
+     * the memory usage stays below [memoryBudget] bytes and is reduced if one key round is already too long.
+     * Must be called outside the UI thread, the measures take a few hundred milliseconds.
+     */
+    @Throws(IOException::class)
+    fun calibrate(targetTime: Long = DEFAULT_TARGET_UNLOCK_TIME,
+                  memoryBudget: Long = defaultMemoryUsage): KdfCalibration {
+        val targetNanos = targetTime * 1_000_000L
+        val parameters = defaultParameters
+        randomize(parameters)
+        val masterKey = ByteArray(32).apply { SecureRandom().nextBytes(this) }
+
+        val parallelism = if (defaultParallelism == UNKNOWN_VALUE) UNKNOWN_VALUE else
+            Runtime.getRuntime().availableProcessors().toLong().coerceIn(minParallelism, maxParallelism)
+        if (parallelism != UNKNOWN_VALUE)
+            setParallelism(parameters, parallelism)
+        var memoryUsage = if (defaultMemoryUsage == UNKNOWN_VALUE) UNKNOWN_VALUE else
+            memoryBudget.coerceIn(minMemoryUsage, maxMemoryUsage)
+        // The cost of a round is proportional to the memory, measured with a smaller memory
+        val calibrationMemory = if (memoryUsage == UNKNOWN_VALUE) UNKNOWN_VALUE else
+            memoryUsage.coerceAtMost(CALIBRATION_MEMORY)
+        if (calibrationMemory != UNKNOWN_VALUE)
+            setMemoryUsage(parameters, calibrationMemory)
+
+        var rounds = calibrationKeyRounds.coerceIn(minKeyRounds, maxKeyRounds)
+        var duration: Long
+        while (true) {
+            setKeyRounds(parameters, rounds)
+            val start = System.nanoTime()
+            transform(masterKey, parameters)
+            duration = System.nanoTime() - start
+            if (duration >= MIN_CALIBRATION_DURATION || rounds > maxKeyRounds / 2)
+                break
+            rounds *= 2
+        }
+        var nanosPerKeyRound = duration.toDouble() / rounds
+        if (memoryUsage != UNKNOWN_VALUE) {
+            nanosPerKeyRound *= memoryUsage.toDouble() / calibrationMemory
+            // Less memory if the minimum rounds are already longer than the target
+            val minimumNanos = nanosPerKeyRound * minKeyRounds
+            if (minimumNanos > targetNanos) {
+                val reducedMemory = ((memoryUsage * (targetNanos / minimumNanos)).toLong() / MEMORY_STEP * MEMORY_STEP)
+                    .coerceIn(minMemoryUsage, memoryUsage)
+                nanosPerKeyRound *= reducedMemory.toDouble() / memoryUsage
+                memoryUsage = reducedMemory
+            }
+        }
+        val keyRounds = KdfCalibration.keyRoundsForUnlockTime(this, nanosPerKeyRound, targetTime)
+        return KdfCalibration(keyRounds, memoryUsage, parallelism, nanosPerKeyRound)
+    }
+
     companion object {
         const val UNKNOWN_VALUE: Long = -1L
+
+        const val DEFAULT_TARGET_UNLOCK_TIME: Long = 1000L
+        private const val MIN_CALIBRATION_DURATION: Long = 100_000_000L
+        private const val CALIBRATION_MEMORY: Long = 16L * 1024L * 1024L
+        const val MEMORY_STEP: Long = 1024L * 1024L
     }
 }
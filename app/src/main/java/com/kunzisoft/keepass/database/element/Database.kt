@@ -35,6 +35,7 @@ import com.kunzisoft.keepass.database.element.binary.BinaryData
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
 import com.kunzisoft.keepass.database.element.database.DatabaseKDB
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
 import com.kunzisoft.keepass.database.element.icon.IconImageCustom
 import com.kunzisoft.keepass.database.element.icon.IconImageStandard
 import com.kunzisoft.keepass.database.element.icon.IconsManager
@@ -53,6 +54,7 @@ import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDB
 import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
 import com.kunzisoft.keepass.database.merge.DatabaseKDBXMerger
 import com.kunzisoft.keepass.database.search.SearchHelper
+import com.kunzisoft.keepass.database.search.SearchIndex
 import com.kunzisoft.keepass.database.search.SearchParameters
 import com.kunzisoft.keepass.icons.IconDrawableFactory
 import com.kunzisoft.keepass.model.MainCredential
@@ -74,6 +76,8 @@ class Database {
         private set
 
     private var mSearchHelper: SearchHelper? = null
+    // Built at the first search, then updated by each node action
+    private var mSearchIndex: SearchIndex? = null
 
     var isReadOnly = false
 
@@ -391,10 +395,10 @@ class Database {
     var rootGroup: Group?
         get() {
             mDatabaseKDB?.rootGroup?.let {
-                return Group(it)
+                return Group.wrap(it)
             }
             mDatabaseKDBX?.rootGroup?.let {
-                return Group(it)
+                return Group.wrap(it)
             }
             return null
         }
@@ -594,6 +598,7 @@ class Database {
             }
 
             this.mSearchHelper = SearchHelper()
+            this.mSearchIndex = null
             loaded = true
         } catch (e: LoadDatabaseException) {
             throw e
@@ -743,6 +748,8 @@ class Database {
                 )
 
                 mDatabaseKDBX?.let { currentDatabaseKDBX ->
+                    // Too many changes to update the search index
+                    mSearchIndex = null
                     val databaseMerger = DatabaseKDBXMerger(currentDatabaseKDBX).apply {
                         this.isRAMSufficient = isRAMSufficient
                     }
@@ -842,6 +849,32 @@ class Database {
         return false
     }
 
+    /**
+     * Ids of the entries which can match [searchParameters],
+     * or null if the search index can't answer and all the entries have to be checked
+     */
+    fun getSearchCandidates(searchParameters: SearchParameters): List<NodeId<UUID>>? {
+        return retrieveSearchIndex()?.candidates(searchParameters)
+    }
+
+    @Synchronized
+    private fun retrieveSearchIndex(): SearchIndex? {
+        if (!loaded)
+            return null
+        return mSearchIndex ?: SearchIndex().also { searchIndex ->
+            rootGroup?.doForEachChild(
+                object : NodeHandler<Entry>() {
+                    override fun operate(node: Entry): Boolean {
+                        searchIndex.putEntry(node)
+                        return true
+                    }
+                },
+                null
+            )
+            mSearchIndex = searchIndex
+        }
+    }
+
     fun createVirtualGroupFromSearch(searchParameters: SearchParameters,
                                      fromGroup: NodeId<*>? = null,
                                      max: Int = Integer.MAX_VALUE): Group? {
@@ -904,7 +937,9 @@ class Database {
 
     fun removeUnlinkedAttachments() {
         // No check in database KDB because unique attachment by entry
-        mDatabaseKDBX?.removeUnlinkedAttachments(true)
+        mDatabaseKDBX?.removeUnlinkedAttachments(true)?.forEach { customIcon ->
+            iconDrawableFactory.clearFromCache(customIcon)
+        }
         dataModifiedSinceLastLoading = true
     }
 
@@ -969,6 +1004,7 @@ class Database {
 
     fun clearAndClose(context: Context? = null) {
         clearIndexesAndBinaries(context?.let { UriUtil.getBinaryDir(context) })
+        this.mSearchIndex = null
         this.mDatabaseKDB = null
         this.mDatabaseKDBX = null
         this.fileUri = null
@@ -1044,10 +1080,10 @@ class Database {
 
     fun getEntryById(id: NodeId<UUID>): Entry? {
         mDatabaseKDB?.getEntryById(id)?.let {
-            return Entry(it)
+            return Entry.wrap(it)
         }
         mDatabaseKDBX?.getEntryById(id)?.let {
-            return Entry(it)
+            return Entry.wrap(it)
         }
         return null
     }
@@ -1055,11 +1091,11 @@ class Database {
     fun getGroupById(id: NodeId<*>): Group? {
         if (id is NodeIdInt)
             mDatabaseKDB?.getGroupById(id)?.let {
-                return Group(it)
+                return Group.wrap(it)
             }
         else if (id is NodeIdUUID)
             mDatabaseKDBX?.getGroupById(id)?.let {
-                return Group(it)
+                return Group.wrap(it)
             }
         return null
     }
@@ -1073,6 +1109,7 @@ class Database {
             mDatabaseKDBX?.addEntryTo(entryKDBX, parent.groupKDBX)
         }
         entry.afterAssignNewParent()
+        mSearchIndex?.putEntry(entry)
     }
 
     fun updateEntry(entry: Entry) {
@@ -1083,6 +1120,7 @@ class Database {
         entry.entryKDBX?.let { entryKDBX ->
             mDatabaseKDBX?.updateEntry(entryKDBX)
         }
+        mSearchIndex?.putEntry(entry)
     }
 
     fun removeEntryFrom(entry: Entry, parent: Group) {
@@ -1094,6 +1132,7 @@ class Database {
             mDatabaseKDBX?.removeEntryFrom(entryKDBX, parent.groupKDBX)
         }
         entry.afterAssignNewParent()
+        mSearchIndex?.removeEntry(entry)
     }
 
     fun addGroupTo(group: Group, parent: Group) {
@@ -1285,58 +1324,47 @@ class Database {
     }
 
     /**
-     * Remove oldest history for each entry if more than max items or max memory
+     * Remove oldest history for each entry if more than max items or max memory,
+     * in a single pass over the entries, the unused attachments are removed at the end
      */
     fun removeOldestHistoryForEachEntry() {
-        rootGroup?.doForEachChildAndForIt(
-                object : NodeHandler<Entry>() {
-                    override fun operate(node: Entry): Boolean {
-                        removeOldestEntryHistory(node, attachmentPool)
-                        return true
-                    }
-                },
-                object : NodeHandler<Group>() {
-                    override fun operate(node: Group): Boolean {
-                        return true
-                    }
-                }
-        )
+        mDatabaseKDBX?.let { database ->
+            val binariesToRemove = LinkedHashSet<BinaryData>()
+            database.getEntryIndexes().forEach { entry ->
+                removeOldestEntryHistory(entry, binariesToRemove)
+            }
+            removeAttachmentsIfNotUsed(database, binariesToRemove)
+        }
     }
 
     /**
      * Remove oldest history if more than max items or max memory
      */
     fun removeOldestEntryHistory(entry: Entry, attachmentPool: AttachmentPool) {
-        mDatabaseKDBX?.let {
-            val maxItems = historyMaxItems
-            if (maxItems >= 0) {
-                while (entry.getHistory().size > maxItems) {
-                    removeOldestEntryHistory(entry)
-                }
+        mDatabaseKDBX?.let { database ->
+            entry.entryKDBX?.let { entryKDBX ->
+                val binariesToRemove = LinkedHashSet<BinaryData>()
+                removeOldestEntryHistory(entryKDBX, binariesToRemove, attachmentPool)
+                removeAttachmentsIfNotUsed(database, binariesToRemove)
             }
+        }
+    }
 
-            val maxSize = historyMaxSize
-            if (maxSize >= 0) {
-                while (true) {
-                    var historySize: Long = 0
-                    for (entryHistory in entry.getHistory()) {
-                        historySize += entryHistory.getSize(attachmentPool)
-                    }
-                    if (historySize > maxSize) {
-                        removeOldestEntryHistory(entry)
-                    } else {
-                        break
-                    }
+    private fun removeOldestEntryHistory(entry: EntryKDBX,
+                                         binariesToRemove: MutableSet<BinaryData>,
+                                         attachmentPool: AttachmentPool = this.attachmentPool) {
+        entry.removeOldestEntriesFromHistory(historyMaxItems, historyMaxSize, attachmentPool)
+            .forEach { entryHistory ->
+                entryHistory.getAttachments(attachmentPool, false).forEach { attachment ->
+                    binariesToRemove.add(attachment.binaryData)
                 }
             }
-        }
     }
 
-    private fun removeOldestEntryHistory(entry: Entry) {
-        entry.removeOldestEntryFromHistory()?.let {
-            it.getAttachments(attachmentPool, false).forEach { attachmentToRemove ->
-                removeAttachmentIfNotUsed(attachmentToRemove)
-            }
+    private fun removeAttachmentsIfNotUsed(database: DatabaseKDBX, binaries: Set<BinaryData>) {
+        // Checked together to browse the entries only once
+        if (binaries.isNotEmpty()) {
+            database.removeUnlinkedAttachments(binaries.toList(), false)
         }
     }
 
@@ -133,10 +133,10 @@ class Entry : Node, EntryVersionedInterface<Group> {
     override var parent: Group?
         get() {
             entryKDB?.parent?.let {
-                return Group(it)
+                return Group.wrap(it)
             }
             entryKDBX?.parent?.let {
-                return Group(it)
+                return Group.wrap(it)
             }
             return null
         }
@@ -430,6 +430,10 @@ class Entry : Node, EntryVersionedInterface<Group> {
         return null
     }
 
+    fun containsFieldReference(): Boolean {
+        return entryKDBX?.containsFieldReference() ?: false
+    }
+
     fun getSize(attachmentPool: AttachmentPool): Long {
         return entryKDBX?.getSize(attachmentPool) ?: 0L
     }
@@ -552,6 +556,20 @@ class Entry : Node, EntryVersionedInterface<Group> {
             return EntryKDBX.newCustomNameAllowed(field.name)
         }
 
+        /**
+         * Retrieve the wrapper of [entry], always the same instance for a node
+         */
+        fun wrap(entry: EntryKDB): Entry {
+            return entry.nodeWrapper as? Entry ?: Entry(entry).also { entry.nodeWrapper = it }
+        }
+
+        /**
+         * Retrieve the wrapper of [entry], always the same instance for a node
+         */
+        fun wrap(entry: EntryKDBX): Entry {
+            return entry.nodeWrapper as? Entry ?: Entry(entry).also { entry.nodeWrapper = it }
+        }
+
         @JvmField
         val CREATOR: Parcelable.Creator<Entry> = object : Parcelable.Creator<Entry> {
             override fun createFromParcel(parcel: Parcel): Entry {
@@ -33,6 +33,7 @@ import com.kunzisoft.keepass.model.GroupInfo
 import com.kunzisoft.keepass.settings.PreferencesUtil
 import java.util.*
 import kotlin.collections.ArrayList
+import kotlin.math.min
 
 class Group : Node, GroupVersionedInterface<Group, Entry> {
 
@@ -44,7 +45,8 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
     // Virtual group is used to defined a detached database group
     var isVirtual = false
 
-    var numberOfChildEntries: Int = 0
+    // Number of child entries by filters, each wrapper is shared so the filters are part of the key
+    private val mNumberOfChildEntries = HashMap<Int, ChildEntriesCount>()
 
     /**
      * Use this constructor to copy a Group
@@ -97,6 +99,9 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
     }
 
     companion object CREATOR : Parcelable.Creator<Group> {
+        // Delay before counting again an entry which expires at a date and not at a time
+        private const val EXPIRY_RECOUNT_DELAY = 60 * 1000L
+
         override fun createFromParcel(parcel: Parcel): Group {
             return Group(parcel)
         }
@@ -104,6 +109,20 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
         override fun newArray(size: Int): Array<Group?> {
             return arrayOfNulls(size)
         }
+
+        /**
+         * Retrieve the wrapper of [group], always the same instance for a node
+         */
+        fun wrap(group: GroupKDB): Group {
+            return group.nodeWrapper as? Group ?: Group(group).also { group.nodeWrapper = it }
+        }
+
+        /**
+         * Retrieve the wrapper of [group], always the same instance for a node
+         */
+        fun wrap(group: GroupKDBX): Group {
+            return group.nodeWrapper as? Group ?: Group(group).also { group.nodeWrapper = it }
+        }
     }
 
     override fun describeContents(): Int {
@@ -153,10 +172,10 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
     override var parent: Group?
         get() {
             groupKDB?.parent?.let {
-                return Group(it)
+                return wrap(it)
             }
             groupKDBX?.parent?.let {
-                return Group(it)
+                return wrap(it)
             }
             return null
         }
@@ -270,34 +289,25 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
 
     override fun getChildGroups(): List<Group> {
         return groupKDB?.getChildGroups()?.map {
-            Group(it)
+            wrap(it)
         } ?:
         groupKDBX?.getChildGroups()?.map {
-            Group(it)
+            wrap(it)
         } ?:
         ArrayList()
     }
 
     fun getFilteredChildGroups(filters: Array<ChildFilter>): List<Group> {
-        return groupKDB?.getChildGroups()?.map {
-            Group(it).apply {
-                this.refreshNumberOfChildEntries(filters)
-            }
-        } ?:
-        groupKDBX?.getChildGroups()?.map {
-            Group(it).apply {
-                this.refreshNumberOfChildEntries(filters)
-            }
-        } ?:
-        ArrayList()
+        // The entries are only counted when the number is read
+        return getChildGroups()
     }
 
     override fun getChildEntries(): List<Entry> {
         return groupKDB?.getChildEntries()?.map {
-            Entry(it)
+            Entry.wrap(it)
         } ?:
         groupKDBX?.getChildEntries()?.map {
-            Entry(it)
+            Entry.wrap(it)
         } ?:
         ArrayList()
     }
@@ -319,20 +329,73 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
             (!withoutMetaStream || (withoutMetaStream && !it.isMetaStream()))
                     && (!it.isCurrentlyExpires or showExpiredEntries)
         }?.map {
-            Entry(it)
+            Entry.wrap(it)
         } ?:
         groupKDBX?.getChildEntries()?.filter {
             !it.isCurrentlyExpires or showExpiredEntries
         }?.map {
-            Entry(it)
+            Entry.wrap(it)
         } ?:
         ArrayList()
     }
 
-    fun refreshNumberOfChildEntries(filters: Array<ChildFilter> = emptyArray()) {
-        this.numberOfChildEntries = getFilteredChildEntries(filters).size
+    /**
+     * Number of child entries without filter
+     */
+    val numberOfChildEntries: Int
+        get() = getNumberOfChildEntries(emptyArray())
+
+    /**
+     * Number of child entries with [filters],
+     * counted again only when the children change or when a counted entry expires
+     */
+    @Synchronized
+    fun getNumberOfChildEntries(filters: Array<ChildFilter>): Int {
+        val modificationCount = groupKDB?.childrenModificationCount
+                ?: groupKDBX?.childrenModificationCount ?: 0
+        val filtersKey = filters.fold(0) { key, filter -> key or (1 shl filter.ordinal) }
+        val count = mNumberOfChildEntries[filtersKey]
+        if (count != null
+                && count.modificationCount == modificationCount
+                && System.currentTimeMillis() < count.expiryTime) {
+            return count.number
+        }
+        return countChildEntries(filters, modificationCount).also {
+            mNumberOfChildEntries[filtersKey] = it
+        }.number
+    }
+
+    private fun countChildEntries(filters: Array<ChildFilter>, modificationCount: Int): ChildEntriesCount {
+        val withoutMetaStream = filters.contains(ChildFilter.META_STREAM)
+        val showExpiredEntries = !filters.contains(ChildFilter.EXPIRED)
+        val now = System.currentTimeMillis()
+        var number = 0
+        var nextExpiryTime = Long.MAX_VALUE
+        val countEntry = { entry: NodeVersioned<*, *, *> ->
+            if (showExpiredEntries || !entry.isCurrentlyExpires) {
+                number++
+                if (!showExpiredEntries && entry.expires) {
+                    val expiryTime = entry.expiryTime.date.time
+                    nextExpiryTime = min(nextExpiryTime,
+                            if (expiryTime > now) expiryTime else now + EXPIRY_RECOUNT_DELAY)
+                }
+            }
+        }
+        groupKDB?.getChildEntries()?.forEach { entry ->
+            if (!withoutMetaStream || !entry.isMetaStream())
+                countEntry(entry)
+        }
+        groupKDBX?.getChildEntries()?.forEach(countEntry)
+        return ChildEntriesCount(number, modificationCount, nextExpiryTime)
     }
 
+    /**
+     * State of the children and next expiry of a counted entry, when the entries were counted
+     */
+    private class ChildEntriesCount(val number: Int,
+                                    val modificationCount: Int,
+                                    val expiryTime: Long)
+
     /**
      * Filter entries and return children
      * @return List of direct children (one level below) as NodeVersioned
@@ -342,9 +405,7 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
     }
 
     fun getFilteredChildren(filters: Array<ChildFilter>): List<Node> {
-        val nodes = getFilteredChildGroups(filters) + getFilteredChildEntries(filters)
-        refreshNumberOfChildEntries(filters)
-        return nodes
+        return getFilteredChildGroups(filters) + getFilteredChildEntries(filters)
     }
 
     override fun addChildGroup(group: Group) {
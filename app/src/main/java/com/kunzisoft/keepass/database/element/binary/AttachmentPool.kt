@@ -25,7 +25,8 @@ class AttachmentPool : BinaryPool<Int>() {
      * Utility method to find an unused key in the pool
      */
     override fun findUnusedKey(): Int {
-        var unusedKey = 0
+        // Keys are mostly contiguous, start after them instead of scanning from 0
+        var unusedKey = pool.size
         while (pool[unusedKey] != null)
             unusedKey++
         return unusedKey
@@ -35,10 +36,6 @@ class AttachmentPool : BinaryPool<Int>() {
      * To register a binary with a ref corresponding to an ordered index
      */
     fun getBinaryIndexFromKey(key: Int): Int? {
-        val index = orderedBinariesWithoutDuplication().indexOfFirst { it.keys.contains(key) }
-        return if (index < 0)
-            null
-        else
-            index
+        return orderedBinaryIndex(key)
     }
 }
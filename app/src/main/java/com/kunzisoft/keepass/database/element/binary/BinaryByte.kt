@@ -21,9 +21,8 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.os.Parcel
 import android.os.Parcelable
-import android.util.Base64
-import android.util.Base64InputStream
-import android.util.Base64OutputStream
+import com.kunzisoft.keepass.stream.ByteArraySeekableInputStream
+import com.kunzisoft.keepass.stream.SeekableInputStream
 import com.kunzisoft.keepass.utils.readAllBytes
 import com.kunzisoft.keepass.database.element.binary.BinaryCache.Companion.UNKNOWN
 import java.io.*
@@ -58,14 +57,24 @@ class BinaryByte : BinaryData {
         dest.writeString(mDataByteId)
     }
 
+    override val storageId: String
+        get() = mDataByteId
+
     @Throws(IOException::class)
     override fun getInputDataStream(binaryCache: BinaryCache): InputStream {
-        return Base64InputStream(ByteArrayInputStream(getByteArray(binaryCache)), Base64.NO_WRAP)
+        return ByteArrayInputStream(getByteArray(binaryCache))
     }
 
     @Throws(IOException::class)
     override fun getOutputDataStream(binaryCache: BinaryCache): OutputStream {
-        return BinaryCountingOutputStream(Base64OutputStream(ByteOutputStream(binaryCache), Base64.NO_WRAP))
+        return BinaryCountingOutputStream(ByteOutputStream(binaryCache))
+    }
+
+    @Throws(IOException::class)
+    override fun getSeekableInputDataStream(binaryCache: BinaryCache): SeekableInputStream {
+        if (isCompressed)
+            return super.getSeekableInputDataStream(binaryCache)
+        return ByteArraySeekableInputStream(getByteArray(binaryCache))
     }
 
     @Throws(IOException::class)
@@ -3,7 +3,11 @@ package com.kunzisoft.keepass.database.element.binary
 import java.io.File
 import java.util.*
 
-class BinaryCache {
+/**
+ * @param chunkSize Size of the independently encrypted chunks of the binary files,
+ * a position in a file is read by decrypting only its chunk
+ */
+class BinaryCache(val chunkSize: Int = DEFAULT_CHUNK_SIZE) {
 
     /**
      * Cipher key generated when the database is loaded, and destroyed when the database is closed
@@ -63,6 +67,7 @@ class BinaryCache {
 
     companion object {
         const val UNKNOWN = "UNKNOWN"
+        const val DEFAULT_CHUNK_SIZE = 64 * 1024
     }
 
     data class KeyByteArray(val key: String, val data: ByteArray) {
@@ -23,12 +23,16 @@ import android.app.ActivityManager
 import android.content.Context
 import android.os.Parcel
 import android.os.Parcelable
+import com.kunzisoft.keepass.stream.ReopenSeekableInputStream
+import com.kunzisoft.keepass.stream.SeekableInputStream
+import com.kunzisoft.encrypt.HashManager
 import org.apache.commons.io.output.CountingOutputStream
+import java.io.DataInputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
-import java.nio.ByteBuffer
 import java.security.MessageDigest
+import java.util.zip.Deflater
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
 
@@ -40,13 +44,16 @@ abstract class BinaryData : Parcelable {
         protected set
     var isCorrupted: Boolean = false
     private var mLength: Long = 0
-    private var mBinaryHash = 0
+    private var mBinaryHash = ""
+    // Compressibility estimated for the content of [mIncompressibleHash], not parceled
+    private var mIncompressible = false
+    private var mIncompressibleHash = ""
 
     protected constructor(compressed: Boolean = false, protected: Boolean = false) {
         this.isCompressed = compressed
         this.isProtected = protected
         this.mLength = 0
-        this.mBinaryHash = 0
+        this.mBinaryHash = ""
     }
 
     protected constructor(parcel: Parcel) {
@@ -54,7 +61,7 @@ abstract class BinaryData : Parcelable {
         isProtected = parcel.readByte().toInt() != 0
         isCorrupted = parcel.readByte().toInt() != 0
         mLength = parcel.readLong()
-        mBinaryHash = parcel.readInt()
+        mBinaryHash = parcel.readString() ?: ""
     }
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
@@ -62,7 +69,7 @@ abstract class BinaryData : Parcelable {
         dest.writeByte((if (isProtected) 1 else 0).toByte())
         dest.writeByte((if (isCorrupted) 1 else 0).toByte())
         dest.writeLong(mLength)
-        dest.writeInt(mBinaryHash)
+        dest.writeString(mBinaryHash)
     }
 
     @Throws(IOException::class)
@@ -89,6 +96,17 @@ abstract class BinaryData : Parcelable {
         }
     }
 
+    /**
+     * Uncompressed data with random access, to read only the ranges needed
+     */
+    @Throws(IOException::class)
+    open fun getSeekableInputDataStream(binaryCache: BinaryCache): SeekableInputStream {
+        // Compressed data can only be read sequentially
+        return ReopenSeekableInputStream(if (isCompressed) null else getSize()) {
+            getUnGzipInputDataStream(binaryCache)
+        }
+    }
+
     @Throws(IOException::class)
     abstract fun compress(binaryCache: BinaryCache)
 
@@ -105,11 +123,51 @@ abstract class BinaryData : Parcelable {
         return mLength
     }
 
+    /**
+     * Full SHA-256 digest of the stored data in hexadecimal, empty if no data was written
+     */
     @Throws(IOException::class)
-    fun binaryHash(): Int {
+    fun binaryHash(): String {
         return mBinaryHash
     }
 
+    /**
+     * Estimate if the data is not worth deflating (already compressed media or archives),
+     * the estimation is kept while the content doesn't change so unchanged binaries are sampled once
+     */
+    @Throws(IOException::class)
+    fun isIncompressible(binaryCache: BinaryCache): Boolean {
+        if (isCompressed || mLength < COMPRESSIBILITY_SAMPLE_SIZE)
+            return false
+        if (mIncompressibleHash.isEmpty() || mIncompressibleHash != mBinaryHash) {
+            val sample = ByteArray(COMPRESSIBILITY_SAMPLE_SIZE)
+            DataInputStream(getInputDataStream(binaryCache)).use {
+                it.readFully(sample)
+            }
+            val deflater = Deflater(Deflater.BEST_SPEED)
+            try {
+                deflater.setInput(sample)
+                deflater.finish()
+                val output = ByteArray(sample.size + 64)
+                var deflatedLength = 0
+                while (!deflater.finished()) {
+                    deflatedLength += deflater.deflate(output)
+                }
+                mIncompressible = deflatedLength > sample.size * INCOMPRESSIBLE_RATIO
+            } finally {
+                deflater.end()
+            }
+            mIncompressibleHash = mBinaryHash
+        }
+        return mIncompressible
+    }
+
+    /**
+     * Identify the storage place of the data (file or byte array),
+     * two binaries with the same storage id refer to the same data
+     */
+    abstract val storageId: String
+
     @Throws(IOException::class)
     abstract fun clear(binaryCache: BinaryCache)
 
@@ -133,7 +191,7 @@ abstract class BinaryData : Parcelable {
         result = 31 * result + isProtected.hashCode()
         result = 31 * result + isCorrupted.hashCode()
         result = 31 * result + mLength.hashCode()
-        result = 31 * result + mBinaryHash
+        result = 31 * result + mBinaryHash.hashCode()
         return result
     }
 
@@ -146,8 +204,8 @@ abstract class BinaryData : Parcelable {
         private val mMessageDigest: MessageDigest
         init {
             mLength = 0
-            mMessageDigest = MessageDigest.getInstance("MD5")
-            mBinaryHash = 0
+            mMessageDigest = HashManager.getHash256()
+            mBinaryHash = ""
         }
 
         override fun beforeWrite(n: Int) {
@@ -173,14 +231,17 @@ abstract class BinaryData : Parcelable {
         override fun close() {
             super.close()
             mLength = byteCount
-            val bytes = mMessageDigest.digest()
-            mBinaryHash = ByteBuffer.wrap(bytes).int
+            mBinaryHash = mMessageDigest.digest().joinToString("") { byte ->
+                "%02x".format(byte)
+            }
         }
     }
 
     companion object {
         private val TAG = BinaryData::class.java.name
         private const val MAX_BINARY_BYTE = 10485760 // 10 MB
+        private const val COMPRESSIBILITY_SAMPLE_SIZE = 65536
+        private const val INCOMPRESSIBLE_RATIO = 0.95
 
         fun canMemoryBeAllocatedInRAM(context: Context, memoryWanted: Long): Boolean {
             if (memoryWanted > MAX_BINARY_BYTE)
@@ -23,22 +23,23 @@ import android.os.Parcel
 import android.os.Parcelable
 import android.util.Base64
 import android.util.Base64InputStream
-import android.util.Base64OutputStream
-import com.kunzisoft.keepass.utils.readAllBytes
+import com.kunzisoft.keepass.stream.ChunkedCipherFileInputStream
+import com.kunzisoft.keepass.stream.ChunkedCipherInputStream
+import com.kunzisoft.keepass.stream.ChunkedCipherOutputStream
+import com.kunzisoft.keepass.stream.SeekableInputStream
+import com.kunzisoft.keepass.utils.*
 import java.io.*
+import java.security.SecureRandom
 import java.util.zip.GZIPOutputStream
 import javax.crypto.Cipher
 import javax.crypto.CipherInputStream
-import javax.crypto.CipherOutputStream
 import javax.crypto.spec.IvParameterSpec
 
 class BinaryFile : BinaryData {
 
     private var mDataFile: File? = null
 
-    // Cipher to encrypt temp file
-    @Transient
-    private var cipherEncryption: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
+    // Cipher to decrypt legacy temp file
     @Transient
     private var cipherDecryption: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
 
@@ -59,6 +60,9 @@ class BinaryFile : BinaryData {
         dest.writeString(mDataFile?.absolutePath)
     }
 
+    override val storageId: String
+        get() = mDataFile?.absolutePath ?: ""
+
     @Throws(IOException::class)
     override fun getInputDataStream(binaryCache: BinaryCache): InputStream {
         return buildInputStream(mDataFile, binaryCache)
@@ -69,25 +73,88 @@ class BinaryFile : BinaryData {
         return buildOutputStream(mDataFile, binaryCache)
     }
 
+    @Throws(IOException::class)
+    override fun getSeekableInputDataStream(binaryCache: BinaryCache): SeekableInputStream {
+        mDataFile?.let { file ->
+            if (!isCompressed && file.length() > 0) {
+                val header = FileInputStream(file).use { fileInputStream ->
+                    readHeader(fileInputStream)
+                }
+                if (header.version == FORMAT_VERSION_CHUNKED) {
+                    return ChunkedCipherFileInputStream(RandomAccessFile(file, "r"),
+                            HEADER_SIZE.toLong(),
+                            ChunkedCipher(binaryCache.loadedCipherKey, header.nonce, header.chunkSize))
+                }
+            }
+        }
+        return super.getSeekableInputDataStream(binaryCache)
+    }
+
     @Throws(IOException::class)
     private fun buildInputStream(file: File?, binaryCache: BinaryCache): InputStream {
         val cipherKey = binaryCache.loadedCipherKey
         return when {
             file != null && file.length() > 0 -> {
-                cipherDecryption.init(Cipher.DECRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                Base64InputStream(CipherInputStream(FileInputStream(file), cipherDecryption), Base64.NO_WRAP)
+                val fileInputStream = BufferedInputStream(FileInputStream(file))
+                fileInputStream.mark(HEADER_SIZE)
+                val header = readHeader(fileInputStream)
+                when (header.version) {
+                    FORMAT_VERSION_CHUNKED -> {
+                        ChunkedCipherInputStream(fileInputStream,
+                                ChunkedCipher(cipherKey, header.nonce, header.chunkSize))
+                    }
+                    FORMAT_VERSION_LEGACY -> {
+                        fileInputStream.reset()
+                        cipherDecryption.init(Cipher.DECRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
+                        // Legacy files contain encrypted Base64 data
+                        Base64InputStream(CipherInputStream(fileInputStream, cipherDecryption),
+                                Base64.NO_WRAP)
+                    }
+                    else -> {
+                        fileInputStream.close()
+                        throw IOException("Unknown binary file version ${header.version}")
+                    }
+                }
             }
             else -> ByteArrayInputStream(ByteArray(0))
         }
     }
 
+    private class Header(val version: Int,
+                         val chunkSize: Int = 0,
+                         val nonce: ByteArray = ByteArray(0))
+
+    /**
+     * Read the header of the file format,
+     * [FORMAT_VERSION_LEGACY] if the file doesn't start with the signature
+     */
+    @Throws(IOException::class)
+    private fun readHeader(inputStream: InputStream): Header {
+        val signature = inputStream.readBytesLength(FORMAT_SIGNATURE.size)
+        if (!signature.contentEquals(FORMAT_SIGNATURE))
+            return Header(FORMAT_VERSION_LEGACY)
+        val version = inputStream.read()
+        if (version != FORMAT_VERSION_CHUNKED)
+            return Header(version)
+        val chunkSize = inputStream.readBytes4ToUInt().toKotlinInt()
+        val nonce = inputStream.readBytesLength(ChunkedCipher.NONCE_SIZE)
+        return Header(version, chunkSize, nonce)
+    }
+
     @Throws(IOException::class)
     private fun buildOutputStream(file: File?, binaryCache: BinaryCache): OutputStream {
         val cipherKey = binaryCache.loadedCipherKey
         return when {
             file != null -> {
-                cipherEncryption.init(Cipher.ENCRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                BinaryCountingOutputStream(Base64OutputStream(CipherOutputStream(FileOutputStream(file), cipherEncryption), Base64.NO_WRAP))
+                val nonce = ByteArray(ChunkedCipher.NONCE_SIZE)
+                SecureRandom().nextBytes(nonce)
+                val fileOutputStream = BufferedOutputStream(FileOutputStream(file))
+                fileOutputStream.write(FORMAT_SIGNATURE)
+                fileOutputStream.write(FORMAT_VERSION_CHUNKED)
+                fileOutputStream.write4BytesUInt(UnsignedInt(binaryCache.chunkSize))
+                fileOutputStream.write(nonce)
+                BinaryCountingOutputStream(ChunkedCipherOutputStream(fileOutputStream,
+                        ChunkedCipher(cipherKey, nonce, binaryCache.chunkSize)))
             }
             else -> throw IOException("Unable to write in an unknown file")
         }
@@ -168,6 +235,14 @@ class BinaryFile : BinaryData {
     companion object {
         private val TAG = BinaryFile::class.java.name
 
+        // "KPDX" followed by the version of the temp file format
+        private val FORMAT_SIGNATURE = byteArrayOf(0x4B, 0x50, 0x44, 0x58)
+        // Blowfish CBC stream without header
+        private const val FORMAT_VERSION_LEGACY = 1
+        // Raw bytes in authenticated AES-CTR chunks
+        private const val FORMAT_VERSION_CHUNKED = 2
+        private const val HEADER_SIZE = 4 + 1 + 4 + ChunkedCipher.NONCE_SIZE
+
         @JvmField
         val CREATOR: Parcelable.Creator<BinaryFile> = object : Parcelable.Creator<BinaryFile> {
             override fun createFromParcel(parcel: Parcel): BinaryFile {
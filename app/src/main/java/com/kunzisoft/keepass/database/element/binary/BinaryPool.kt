@@ -26,6 +26,18 @@ import kotlin.math.abs
 abstract class BinaryPool<T> {
 
     protected val pool = LinkedHashMap<T, BinaryData>()
+    // To retrieve the key of a binary without scanning the pool
+    private val keysByStorageId = HashMap<String, T>()
+    // Ordered indexes of the last deduplication, cleared when the pool changes
+    private var orderedIndexes: HashMap<T, Int>? = null
+    // Keys by content, to find duplicates without scanning the pool
+    private val keysByContent = HashMap<ContentKey, MutableSet<T>>()
+    private val contentKeys = HashMap<T, ContentKey>()
+    // Keys put since the last duplicate check, the content is only known once written
+    private val keysToIndex = LinkedHashSet<T>()
+    // Incremented each time the binaries or their sizes change, to invalidate the cached sizes
+    var modificationCount = 0L
+        private set
 
     // To build unique file id
     private var creationId: Long = System.currentTimeMillis()
@@ -57,7 +69,7 @@ abstract class BinaryPool<T> {
         if (key == null)
             return put(value)
         else
-            pool[key] = value
+            putInPool(key, value)
         return key
     }
 
@@ -71,26 +83,78 @@ abstract class BinaryPool<T> {
         if (key == null) {
             key = findUnusedKey()
         }
-        pool[key!!] = binaryData
+        putInPool(key!!, binaryData)
         return key
     }
 
+    private fun putInPool(key: T, binaryData: BinaryData) {
+        pool.put(key, binaryData)?.let { oldBinary ->
+            unlinkStorageId(key, oldBinary)
+        }
+        // Keep the first key of a storage, like a pool scan would
+        if (!keysByStorageId.containsKey(binaryData.storageId)) {
+            keysByStorageId[binaryData.storageId] = key
+        }
+        removeContentKey(key)
+        keysToIndex.add(key)
+        orderedIndexes = null
+        modificationCount++
+    }
+
+    private fun unlinkStorageId(key: T, binaryData: BinaryData) {
+        val storageId = binaryData.storageId
+        if (keysByStorageId[storageId] == key) {
+            keysByStorageId.remove(storageId)
+            // Rare case of a storage shared by many keys
+            pool.entries.firstOrNull { it.value.storageId == storageId }?.let {
+                keysByStorageId[storageId] = it.key
+            }
+        }
+    }
+
     /**
      * Remove a binary from the pool with its [key], the file is not deleted
      */
     @Throws(IOException::class)
     fun remove(key: T) {
-        pool.remove(key)
+        pool.remove(key)?.let { binary ->
+            unlinkStorageId(key, binary)
+        }
+        removeContentKey(key)
+        orderedIndexes = null
+        modificationCount++
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
 
+    /**
+     * Remove the binaries linked to [keys] in a single pass, the files are not deleted
+     */
+    @Throws(IOException::class)
+    fun remove(keys: Collection<T>) {
+        if (keys.isEmpty())
+            return
+        keys.forEach { key ->
+            pool.remove(key)
+            removeContentKey(key)
+        }
+        // Rebuild the storage index once instead of scanning the pool for each key
+        keysByStorageId.clear()
+        for ((key, binary) in pool) {
+            if (!keysByStorageId.containsKey(binary.storageId)) {
+                keysByStorageId[binary.storageId] = key
+            }
+        }
+        orderedIndexes = null
+        modificationCount++
+    }
+
     /**
      * Remove a binary from the pool, the file is not deleted
      */
     @Throws(IOException::class)
     fun remove(binaryData: BinaryData) {
         findKey(binaryData)?.let {
-            pool.remove(it)
+            remove(it)
         }
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
@@ -104,32 +168,21 @@ abstract class BinaryPool<T> {
      * Return key of [binaryDataToRetrieve] or null if not found
      */
     private fun findKey(binaryDataToRetrieve: BinaryData): T? {
-        val contains = pool.containsValue(binaryDataToRetrieve)
-        return if (!contains)
-            null
-        else {
-            for ((key, binary) in pool) {
-                if (binary == binaryDataToRetrieve) {
-                    return key
-                }
-            }
-            return null
-        }
+        val key = keysByStorageId[binaryDataToRetrieve.storageId] ?: return null
+        return if (pool[key] == binaryDataToRetrieve) key else null
+    }
+
+    operator fun contains(binaryData: BinaryData): Boolean {
+        return findKey(binaryData) != null
     }
 
     fun isBinaryDuplicate(binaryData: BinaryData?): Boolean {
         try {
             binaryData?.let {
                 if (it.getSize() > 0) {
-                    val searchBinaryMD5 = it.binaryHash()
-                    var i = 0
-                    for ((_, binary) in pool) {
-                        if (binary.binaryHash() == searchBinaryMD5) {
-                            i++
-                            if (i > 1)
-                                return true
-                        }
-                    }
+                    indexContentKeys()
+                    val numberOfBinaries = keysByContent[ContentKey(it)]?.size ?: 0
+                    return numberOfBinaries > 1
                 }
             }
         } catch (e: Exception) {
@@ -138,6 +191,37 @@ abstract class BinaryPool<T> {
         return false
     }
 
+    /**
+     * Index the content of the binaries put since the last call,
+     * a binary not yet written is kept for the next call
+     */
+    private fun indexContentKeys() {
+        val iterator = keysToIndex.iterator()
+        while (iterator.hasNext()) {
+            val key = iterator.next()
+            val binary = pool[key]
+            if (binary == null) {
+                iterator.remove()
+            } else if (binary.binaryHash().isNotEmpty()) {
+                val contentKey = ContentKey(binary)
+                contentKeys[key] = contentKey
+                keysByContent.getOrPut(contentKey) { HashSet() }.add(key)
+                iterator.remove()
+            }
+        }
+    }
+
+    private fun removeContentKey(key: T) {
+        keysToIndex.remove(key)
+        contentKeys.remove(key)?.let { contentKey ->
+            keysByContent[contentKey]?.let { keys ->
+                keys.remove(key)
+                if (keys.isEmpty())
+                    keysByContent.remove(contentKey)
+            }
+        }
+    }
+
     /**
      * To do an action on each binary in the pool (order is not important)
      */
@@ -155,21 +239,19 @@ abstract class BinaryPool<T> {
     }
 
     /**
-     * Utility method to order binaries and solve index problem in database v4
+     * Utility method to order binaries and solve index problem in database v4,
+     * binaries with the same content digest are merged in one pass
      */
     protected fun orderedBinariesWithoutDuplication(condition: ((binary: BinaryData) -> Boolean) = { true })
     : List<KeyBinary<T>> {
         val keyBinaryList = ArrayList<KeyBinary<T>>()
+        val keyBinaryByContent = HashMap<ContentKey, KeyBinary<T>>()
         for ((key, binary) in pool) {
             // Don't deduplicate
-            val existentBinary =
+            val contentKey =
             try {
-                if (binary.getSize() > 0) {
-                    keyBinaryList.find {
-                        val hash0 = it.binary.binaryHash()
-                        val hash1 = binary.binaryHash()
-                        hash0 != 0 && hash1 != 0 && hash0 == hash1
-                    }
+                if (binary.getSize() > 0 && binary.binaryHash().isNotEmpty()) {
+                    ContentKey(binary)
                 } else {
                     null
                 }
@@ -177,10 +259,12 @@ abstract class BinaryPool<T> {
                 Log.e(TAG, "Unable to check binary hash", e)
                 null
             }
+            val existentBinary = contentKey?.let { keyBinaryByContent[it] }
             if (existentBinary == null) {
                 val newKeyBinary = KeyBinary(binary, key)
                 if (condition.invoke(newKeyBinary.binary)) {
                     keyBinaryList.add(newKeyBinary)
+                    contentKey?.let { keyBinaryByContent[it] = newKeyBinary }
                 }
             } else {
                 if (condition.invoke(existentBinary.binary)) {
@@ -191,6 +275,26 @@ abstract class BinaryPool<T> {
         return keyBinaryList
     }
 
+    /**
+     * Retrieve the index of the binary linked to [key] in the ordered binaries without duplication,
+     * the indexes of the last ordered iteration are reused to be consistent during a save
+     */
+    protected fun orderedBinaryIndex(key: T): Int? {
+        val indexes = orderedIndexes ?: buildOrderedIndexes(orderedBinariesWithoutDuplication())
+        return indexes[key]
+    }
+
+    private fun buildOrderedIndexes(keyBinaries: List<KeyBinary<T>>): HashMap<T, Int> {
+        val indexes = HashMap<T, Int>()
+        keyBinaries.forEachIndexed { index, keyBinary ->
+            keyBinary.keys.forEach { key ->
+                indexes[key] = index
+            }
+        }
+        orderedIndexes = indexes
+        return indexes
+    }
+
     /**
      * Different from doForEach, provide an ordered index to each binary
      */
@@ -208,17 +312,14 @@ abstract class BinaryPool<T> {
     /**
      * Different from doForEach, provide an ordered index to each binary
      */
-    private fun doForEachOrderedBinaryWithoutDuplication(action: (index: Int, binary: BinaryData) -> Unit,
-                                                         conditionToAdd: (binary: BinaryData) -> Boolean) {
-        orderedBinariesWithoutDuplication(conditionToAdd).forEachIndexed { index, keyBinary ->
+    fun doForEachOrderedBinaryWithoutDuplication(action: (index: Int, binary: BinaryData) -> Unit) {
+        val orderedBinaries = orderedBinariesWithoutDuplication()
+        buildOrderedIndexes(orderedBinaries)
+        orderedBinaries.forEachIndexed { index, keyBinary ->
             action.invoke(index, keyBinary.binary)
         }
     }
 
-    fun doForEachOrderedBinaryWithoutDuplication(action: (index: Int, binary: BinaryData) -> Unit) {
-        doForEachOrderedBinaryWithoutDuplication(action, { true })
-    }
-
     fun isEmpty(): Boolean {
         return pool.isEmpty()
     }
@@ -226,6 +327,23 @@ abstract class BinaryPool<T> {
     @Throws(IOException::class)
     fun clear() {
         pool.clear()
+        keysByStorageId.clear()
+        keysByContent.clear()
+        contentKeys.clear()
+        keysToIndex.clear()
+        orderedIndexes = null
+        modificationCount++
+    }
+
+    /**
+     * To call when the content of the binaries has changed outside the pool (compression)
+     */
+    fun notifyBinariesChanged() {
+        // Contents are indexed again at the next duplicate check
+        keysByContent.clear()
+        contentKeys.clear()
+        keysToIndex.addAll(pool.keys)
+        modificationCount++
     }
 
     override fun toString(): String {
@@ -253,6 +371,13 @@ abstract class BinaryPool<T> {
         }
     }
 
+    /**
+     * Full content digest and size, to compare binaries without reading them
+     */
+    private data class ContentKey(val hash: String, val size: Long) {
+        constructor(binaryData: BinaryData) : this(binaryData.binaryHash(), binaryData.getSize())
+    }
+
     companion object {
         private val TAG = BinaryPool::class.java.name
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.binary
+
+import com.kunzisoft.keepass.utils.longTo8Bytes
+import java.io.IOException
+import java.security.GeneralSecurityException
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+
+/**
+ * Encrypt-then-MAC of fixed size chunks, each chunk can be decrypted independently.
+ * A chunk is encrypted with AES-CTR starting at its own counter,
+ * and authenticated with HMAC-SHA256 over the nonce, the chunk size, the chunk index,
+ * the last chunk flag and the encrypted bytes, so chunks can't be reordered or truncated.
+ */
+class ChunkedCipher(private val loadedKey: LoadedKey,
+                    private val nonce: ByteArray,
+                    val chunkSize: Int) {
+
+    private val cipher: Cipher = Cipher.getInstance(LoadedKey.CHUNK_CIPHER)
+    private val mac: Mac = Mac.getInstance(LoadedKey.CHUNK_MAC).apply {
+        init(loadedKey.chunkMacKey)
+    }
+    private val iv = ByteArray(IV_SIZE)
+    private val tag = ByteArray(TAG_SIZE)
+    private val chunkSizeBytes = longTo8Bytes(chunkSize.toLong())
+
+    /**
+     * Size of an encrypted chunk in the file
+     */
+    val encryptedChunkSize: Int
+        get() = chunkSize + TAG_SIZE
+
+    init {
+        if (nonce.size != NONCE_SIZE)
+            throw IllegalArgumentException("Wrong nonce size")
+        if (chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0)
+            throw IllegalArgumentException("Chunk size must be a multiple of $BLOCK_SIZE")
+    }
+
+    /**
+     * Encrypt [length] bytes of [input] as chunk [index],
+     * the encrypted bytes and the tag are written in [output]
+     * @return the number of bytes written in [output]
+     */
+    @Throws(IOException::class)
+    fun encryptChunk(index: Long, last: Boolean,
+                     input: ByteArray, length: Int,
+                     output: ByteArray): Int {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, loadedKey.chunkKey, chunkIv(index))
+            val encrypted = cipher.doFinal(input, 0, length, output, 0)
+            computeTag(index, last, output, encrypted)
+            System.arraycopy(tag, 0, output, encrypted, TAG_SIZE)
+            return encrypted + TAG_SIZE
+        } catch (e: GeneralSecurityException) {
+            throw IOException(e)
+        }
+    }
+
+    /**
+     * Verify and decrypt the [length] bytes of chunk [index] contained in [input],
+     * the decrypted bytes are written in [output]
+     * @return the number of bytes written in [output]
+     */
+    @Throws(IOException::class)
+    fun decryptChunk(index: Long, last: Boolean,
+                     input: ByteArray, length: Int,
+                     output: ByteArray): Int {
+        val encryptedLength = length - TAG_SIZE
+        if (encryptedLength < 0)
+            throw IOException("Chunk corrupted")
+        computeTag(index, last, input, encryptedLength)
+        // Constant time comparison
+        var difference = 0
+        for (i in 0 until TAG_SIZE) {
+            difference = difference or (tag[i].toInt() xor input[encryptedLength + i].toInt())
+        }
+        if (difference != 0)
+            throw IOException("Invalid chunk tag")
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, loadedKey.chunkKey, chunkIv(index))
+            return cipher.doFinal(input, 0, encryptedLength, output, 0)
+        } catch (e: GeneralSecurityException) {
+            throw IOException(e)
+        }
+    }
+
+    private fun chunkIv(index: Long): IvParameterSpec {
+        System.arraycopy(nonce, 0, iv, 0, NONCE_SIZE)
+        // CTR counter of the first block of the chunk, big endian
+        val counter = index * (chunkSize / BLOCK_SIZE)
+        for (i in 0 until 8) {
+            iv[IV_SIZE - 1 - i] = (counter ushr (8 * i)).toByte()
+        }
+        return IvParameterSpec(iv)
+    }
+
+    private fun computeTag(index: Long, last: Boolean, encrypted: ByteArray, length: Int) {
+        mac.update(nonce)
+        mac.update(chunkSizeBytes)
+        mac.update(longTo8Bytes(index))
+        mac.update((if (last) 1 else 0).toByte())
+        mac.update(encrypted, 0, length)
+        mac.doFinal(tag, 0)
+    }
+
+    companion object {
+        const val NONCE_SIZE = 8
+        const val TAG_SIZE = 32
+        private const val IV_SIZE = 16
+        private const val BLOCK_SIZE = 16
+    }
+}
@@ -5,14 +5,23 @@ import java.security.Key
 import java.security.SecureRandom
 import javax.crypto.KeyGenerator
 
-class LoadedKey(val key: Key, val iv: ByteArray): Serializable {
+class LoadedKey(val key: Key,
+                val iv: ByteArray,
+                val chunkKey: Key,
+                val chunkMacKey: Key): Serializable {
     companion object {
+        // Legacy cipher, only used to read the unversioned temp files
         const val BINARY_CIPHER = "Blowfish/CBC/PKCS5Padding"
+        const val CHUNK_CIPHER = "AES/CTR/NoPadding"
+        const val CHUNK_MAC = "HmacSHA256"
 
         fun generateNewCipherKey(): LoadedKey {
             val iv = ByteArray(8)
             SecureRandom().nextBytes(iv)
-            return LoadedKey(KeyGenerator.getInstance("Blowfish").generateKey(), iv)
+            return LoadedKey(KeyGenerator.getInstance("Blowfish").generateKey(),
+                iv,
+                KeyGenerator.getInstance("AES").apply { init(256) }.generateKey(),
+                KeyGenerator.getInstance(CHUNK_MAC).generateKey())
         }
     }
-}
\ No newline at end of file
+}
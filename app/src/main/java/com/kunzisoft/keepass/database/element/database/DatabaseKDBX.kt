@@ -52,6 +52,7 @@ import com.kunzisoft.keepass.database.element.template.TemplateEngineCompatible
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_31
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_41
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.StringUtil.removeSpaceChars
 import com.kunzisoft.keepass.utils.StringUtil.toHexString
 import com.kunzisoft.keepass.utils.UnsignedInt
@@ -312,6 +313,8 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
                 Log.e(TAG, "Unable to compress $binary", e)
             }
         }
+        // Sizes of the attachments have changed
+        attachmentPool.notifyBinariesChanged()
     }
 
     private fun decompressAllBinaries() {
@@ -322,6 +325,8 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
                 Log.e(TAG, "Unable to decompress $binary", e)
             }
         }
+        // Sizes of the attachments have changed
+        attachmentPool.notifyBinariesChanged()
     }
 
     override var numberKeyEncryptionRounds: Long
@@ -545,13 +550,15 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     }
 
     @Throws(IOException::class)
-    fun makeFinalKey(masterSeed: ByteArray) {
+    fun makeFinalKey(masterSeed: ByteArray, progressTaskUpdater: ProgressTaskUpdater? = null) {
 
         kdfParameters?.let { keyDerivationFunctionParameters ->
             val kdfEngine = getKdfEngineFromParameters(keyDerivationFunctionParameters)
                 ?: throw IOException("Unknown key derivation function")
 
-            var transformedMasterKey = kdfEngine.transform(masterKey, keyDerivationFunctionParameters)
+            var transformedMasterKey = kdfEngine.transform(masterKey,
+                keyDerivationFunctionParameters,
+                progressTaskUpdater)
             if (transformedMasterKey.size != 32) {
                 transformedMasterKey = HashManager.hashSha256(transformedMasterKey)
             }
@@ -840,19 +847,19 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     override fun addEntryTo(newEntry: EntryKDBX, parent: GroupKDBX?) {
         super.addEntryTo(newEntry, parent)
         tagPool.put(newEntry.tags)
-        mFieldReferenceEngine.clear()
+        mFieldReferenceEngine.invalidate(newEntry)
     }
 
     override fun updateEntry(entry: EntryKDBX) {
         super.updateEntry(entry)
         tagPool.put(entry.tags)
-        mFieldReferenceEngine.clear()
+        mFieldReferenceEngine.invalidate(entry)
     }
 
     override fun removeEntryFrom(entryToRemove: EntryKDBX, parent: GroupKDBX?) {
         super.removeEntryFrom(entryToRemove, parent)
         // Do not remove tags from pool, it's only in temp memory
-        mFieldReferenceEngine.clear()
+        mFieldReferenceEngine.invalidate(entryToRemove)
     }
 
     fun buildNewBinaryAttachment(smallSize: Boolean,
@@ -870,38 +877,83 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         removeUnlinkedAttachments(listBinaries, clear)
     }
 
-    fun removeUnlinkedAttachments(clear: Boolean) {
-        removeUnlinkedAttachments(emptyList(), clear)
+    fun removeUnlinkedAttachments(clear: Boolean): List<IconImageCustom> {
+        return removeUnlinkedAttachments(emptyList(), clear)
     }
 
-    private fun removeUnlinkedAttachments(binaries: List<BinaryData>, clear: Boolean) {
-        // TODO check in icon pool
-        // Build binaries to remove with all binaries known
-        val binariesToRemove = ArrayList<BinaryData>()
-        if (binaries.isEmpty()) {
-            attachmentPool.doForEachBinary { _, binary ->
-                binariesToRemove.add(binary)
+    /**
+     * Mark the pool keys referenced by the entries and their history, then sweep the other ones.
+     * If [binaries] is empty, every attachment and custom icon not linked to a node is removed,
+     * else only the attachments in [binaries] can be removed.
+     * Returns the custom icons removed, each one is recorded as a deleted object
+     */
+    fun removeUnlinkedAttachments(binaries: List<BinaryData>, clear: Boolean): List<IconImageCustom> {
+        val removeAll = binaries.isEmpty()
+        // Attachment keys not yet marked
+        val unlinkedBinaries = HashMap<Int, BinaryData>()
+        // Binaries can come from a parcel, retrieve them by storage
+        val storagesToCheck = binaries.mapTo(HashSet()) { it.storageId }
+        attachmentPool.doForEachBinary { key, binary ->
+            if (removeAll || storagesToCheck.contains(binary.storageId))
+                unlinkedBinaries[key] = binary
+        }
+        // Custom icons not yet marked, only checked for a complete clean
+        val unlinkedIcons = HashSet<UUID>()
+        if (removeAll) {
+            iconsManager.doForEachCustomIcon { customIcon, _ ->
+                unlinkedIcons.add(customIcon.uuid)
             }
-        } else {
-            binariesToRemove.addAll(binaries)
         }
-        // Remove binaries from the list
-        rootGroup?.doForEachChild(object : NodeHandler<EntryKDBX>() {
-            override fun operate(node: EntryKDBX): Boolean {
-                node.getAttachments(attachmentPool, true).forEach {
-                    binariesToRemove.remove(it.binaryData)
+        fun markIcon(iconUuid: UUID) {
+            if (unlinkedIcons.isNotEmpty())
+                unlinkedIcons.remove(iconUuid)
+        }
+        fun markEntry(entry: EntryKDBX) {
+            entry.binaries.values.forEach { key ->
+                unlinkedBinaries.remove(key)
+            }
+            markIcon(entry.icon.custom.uuid)
+        }
+        fun isMarkingNeeded(): Boolean {
+            return unlinkedBinaries.isNotEmpty() || unlinkedIcons.isNotEmpty()
+        }
+        // Mark
+        rootGroup?.let { root ->
+            markIcon(root.icon.custom.uuid)
+            root.doForEachChild(object : NodeHandler<EntryKDBX>() {
+                override fun operate(node: EntryKDBX): Boolean {
+                    markEntry(node)
+                    node.history.forEach { markEntry(it) }
+                    return isMarkingNeeded()
+                }
+            }, object : NodeHandler<GroupKDBX>() {
+                override fun operate(node: GroupKDBX): Boolean {
+                    markIcon(node.icon.custom.uuid)
+                    return isMarkingNeeded()
+                }
+            })
+        }
+        // Sweep
+        try {
+            attachmentPool.remove(unlinkedBinaries.keys)
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to remove binaries", e)
+        }
+        if (clear) {
+            unlinkedBinaries.values.forEach { binary ->
+                try {
+                    // A file can be shared by a key still linked
+                    if (!attachmentPool.contains(binary))
+                        binary.clear(binaryCache)
+                } catch (e: Exception) {
+                    Log.w(TAG, "Unable to clean binaries", e)
                 }
-                return binariesToRemove.isNotEmpty()
             }
-        }, null)
-        // Effective removing
-        binariesToRemove.forEach {
-            try {
-                attachmentPool.remove(it)
-                if (clear)
-                    it.clear(binaryCache)
-            } catch (e: Exception) {
-                Log.w(TAG, "Unable to clean binaries", e)
+        }
+        return unlinkedIcons.mapNotNull { iconUuid ->
+            getCustomIcon(iconUuid)?.also {
+                removeCustomIcon(iconUuid)
+                addDeletedObject(iconUuid)
             }
         }
     }
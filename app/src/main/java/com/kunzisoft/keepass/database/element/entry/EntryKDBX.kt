@@ -45,6 +45,14 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     private var mDatabase: DatabaseKDBX? = null
     @Transient
     private var mDecodeRef = false
+    // Sizes of the first history items already measured, the next ones are measured on demand
+    @Transient
+    private var mHistorySize = 0L
+    @Transient
+    private val mHistoryItemSizes = ArrayList<Long>()
+    // Modification count of the attachment pool when the sizes were measured
+    @Transient
+    private var mHistorySizePoolModification = -1L
 
     override var usageCount = UnsignedLong(0)
     override var locationChanged = DateInstant()
@@ -58,7 +66,9 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     override var previousParentGroup: UUID = DatabaseVersioned.UUID_ZERO
     var qualityCheck = true
     var autoType = AutoType()
-    var history = ArrayList<EntryKDBX>()
+    private val mHistory = ArrayList<EntryKDBX>()
+    val history: List<EntryKDBX>
+        get() = mHistory
     var additional = ""
 
     override var expires: Boolean = false
@@ -77,7 +87,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         tags = parcel.readParcelable(Tags::class.java.classLoader) ?: tags
         previousParentGroup = parcel.readParcelable<ParcelUuid>(ParcelUuid::class.java.classLoader)?.uuid ?: DatabaseVersioned.UUID_ZERO
         autoType = parcel.readParcelable(AutoType::class.java.classLoader) ?: autoType
-        parcel.readTypedList(history, CREATOR)
+        parcel.readTypedList(mHistory, CREATOR)
         additional = parcel.readString() ?: additional
     }
 
@@ -102,7 +112,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         dest.writeParcelable(tags, flags)
         dest.writeParcelable(ParcelUuid(previousParentGroup), flags)
         dest.writeParcelable(autoType, flags)
-        dest.writeTypedList(history)
+        dest.writeTypedList(mHistory)
         dest.writeString(additional)
     }
 
@@ -127,9 +137,9 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         tags = source.tags
         previousParentGroup = source.previousParentGroup
         autoType = AutoType(source.autoType)
-        history.clear()
+        clearHistory()
         if (copyHistory)
-            history.addAll(source.history)
+            source.history.forEach { addEntryToHistory(it) }
         additional = source.additional
     }
 
@@ -223,6 +233,13 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
             fields[STR_NOTES] = ProtectedString(protect, value)
         }
 
+    /**
+     * True if a field contains a reference, its value then depends on the decoding state
+     */
+    fun containsFieldReference(): Boolean {
+        return fields.values.any { FieldReferencesEngine.containsReference(it.toString()) }
+    }
+
     fun getCustomFieldValue(label: String): String {
         return decodeRefKey(mDecodeRef, label, 0)
     }
@@ -243,9 +260,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
             size += value.length.toLong()
         }
 
-        for (entry in history) {
-            size += entry.getSize(attachmentPool)
-        }
+        size += getHistorySize(attachmentPool)
 
         size += overrideURL.length.toLong()
         size += tags.toString().length
@@ -348,19 +363,23 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     }
 
     fun addEntryToHistory(entry: EntryKDBX) {
-        history.add(entry)
+        // Measured on demand by getHistorySize
+        mHistory.add(entry)
     }
 
     fun removeEntryFromHistory(position: Int): EntryKDBX {
-        return history.removeAt(position)
+        if (position < mHistoryItemSizes.size) {
+            mHistorySize -= mHistoryItemSizes.removeAt(position)
+        }
+        return mHistory.removeAt(position)
     }
 
     fun removeOldestEntryFromHistory(): EntryKDBX? {
         var min: Date? = null
         var index = -1
 
-        for (i in history.indices) {
-            val entry = history[i]
+        for (i in mHistory.indices) {
+            val entry = mHistory[i]
             val lastMod = entry.lastModificationTime.date
             if (min == null  || lastMod.before(min)) {
                 index = i
@@ -369,10 +388,77 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         }
 
         return if (index != -1) {
-            history.removeAt(index)
+            removeEntryFromHistory(index)
         } else null
     }
 
+    fun clearHistory() {
+        mHistory.clear()
+        invalidateHistorySize()
+    }
+
+    /**
+     * Remove the oldest history items until the history contains at most [maxItems] items
+     * and takes at most [maxSize] bytes, a negative limit is not checked
+     * @return the removed history items
+     */
+    fun removeOldestEntriesFromHistory(maxItems: Int,
+                                       maxSize: Long,
+                                       attachmentPool: AttachmentPool): List<EntryKDBX> {
+        val removedEntries = ArrayList<EntryKDBX>()
+        var historySize = getHistorySize(attachmentPool)
+        var numberOfItems = mHistory.size
+        fun isOverLimit(): Boolean {
+            return (maxItems in 0 until numberOfItems)
+                    || (maxSize in 0 until historySize)
+        }
+        if (!isOverLimit())
+            return removedEntries
+        // Stable sort, the first of the items with the same time is removed first
+        val entriesToRemove = Collections.newSetFromMap(IdentityHashMap<EntryKDBX, Boolean>())
+        for (position in mHistory.indices.sortedBy { mHistory[it].lastModificationTime.date }) {
+            if (!isOverLimit())
+                break
+            historySize -= mHistoryItemSizes[position]
+            numberOfItems--
+            removedEntries.add(mHistory[position])
+            entriesToRemove.add(mHistory[position])
+        }
+        // History items share the same UUID, remove them by identity in a single pass
+        val iterator = mHistory.listIterator()
+        while (iterator.hasNext()) {
+            val position = iterator.nextIndex()
+            if (entriesToRemove.contains(iterator.next())) {
+                iterator.remove()
+                mHistoryItemSizes.removeAt(position)
+            }
+        }
+        mHistorySize = historySize
+        return removedEntries
+    }
+
+    /**
+     * Size of the history items, only the items added since the last call are measured,
+     * all of them are measured again when the attachments of the pool have changed
+     */
+    fun getHistorySize(attachmentPool: AttachmentPool): Long {
+        if (mHistorySizePoolModification != attachmentPool.modificationCount) {
+            invalidateHistorySize()
+            mHistorySizePoolModification = attachmentPool.modificationCount
+        }
+        while (mHistoryItemSizes.size < mHistory.size) {
+            val itemSize = mHistory[mHistoryItemSizes.size].getSize(attachmentPool)
+            mHistoryItemSizes.add(itemSize)
+            mHistorySize += itemSize
+        }
+        return mHistorySize
+    }
+
+    private fun invalidateHistorySize() {
+        mHistorySize = 0L
+        mHistoryItemSizes.clear()
+    }
+
     override fun touch(modified: Boolean, touchParents: Boolean) {
         super.touch(modified, touchParents)
         usageCount.plusOne()
@@ -21,6 +21,7 @@ package com.kunzisoft.keepass.database.element.entry
 
 import android.os.Parcel
 import com.kunzisoft.keepass.database.element.group.GroupVersioned
+import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.NodeVersioned
 
 abstract class EntryVersioned
@@ -40,10 +41,16 @@ abstract class EntryVersioned
         super.writeToParcel(dest, flags)
     }
 
+    @Suppress("UNCHECKED_CAST")
+    override fun afterNodeIdChanged(oldNodeId: NodeId<EntryId>) {
+        parent?.onChildEntryIdChanged(this as Entry, oldNodeId)
+    }
+
+    @Suppress("UNCHECKED_CAST")
     override fun nodeIndexInParentForNaturalOrder(): Int {
         if (nodeIndexInParentForNaturalOrder == -1) {
             val numberOfGroups = parent?.getChildGroups()?.size
-            val indexInEntries = parent?.getChildEntries()?.indexOf(this)
+            val indexInEntries = parent?.getChildEntries()?.indexOf(this as Entry)
             if (numberOfGroups != null && indexInEntries != null)
                 return numberOfGroups + indexInEntries
         }
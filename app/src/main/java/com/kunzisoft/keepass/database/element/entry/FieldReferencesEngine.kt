@@ -23,16 +23,109 @@ import android.util.Log
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
 import com.kunzisoft.keepass.database.element.node.NodeIdUUID
 import com.kunzisoft.keepass.utils.UuidUtil
+import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
 
 class FieldReferencesEngine(private val mDatabase: DatabaseKDBX) {
 
-    // Key : <WantedField>@<SearchIn>:<Text>
-    // Value : content
-    private var refsCache = ConcurrentHashMap<String, String?>()
+    // Key : <WantedField>@<SearchIn>:<Text> in upper case
+    // Value : content and entries used to build it
+    private var refsCache = ConcurrentHashMap<String, CachedReference>()
+    // Keys of the references built with an entry, to invalidate only them when the entry changes
+    private val referencesByEntry = HashMap<UUID, MutableSet<String>>()
+    // Keys of the references built with a search in all the entries
+    private val searchReferences = HashSet<String>()
+    // Keys of the references built with the title index, by lower case searched title
+    private val referencesByTitle = HashMap<String, MutableSet<String>>()
+    // Entries by lower case title, null if a title contains a reference
+    private var titleIndex: HashMap<String, EntryKDBX>? = null
+    private var titleIndexBuilt = false
+    // Lower case titles of the entries when the index was built or the entries invalidated
+    private val titlesByEntry = HashMap<UUID, String>()
+    // Dependencies of the references currently resolved by the thread, the last one is the deepest
+    private val resolvingDependencies = object : ThreadLocal<ArrayList<Dependencies>>() {
+        override fun initialValue(): ArrayList<Dependencies> {
+            return ArrayList()
+        }
+    }
 
+    @Synchronized
     fun clear() {
         refsCache.clear()
+        referencesByEntry.clear()
+        searchReferences.clear()
+        referencesByTitle.clear()
+        titlesByEntry.clear()
+        clearTitleIndex()
+    }
+
+    /**
+     * Remove the references built with [entry], the ones built with a search
+     * and the ones searching the old or the new title of the entry,
+     * to call when the entry is added, updated or removed
+     */
+    @Synchronized
+    fun invalidate(entry: EntryKDBX) {
+        val entryId = entry.nodeId.id
+        referencesByEntry.remove(entryId)?.forEach { key ->
+            removeReference(key)
+        }
+        // A search can now give another entry
+        searchReferences.toList().forEach { key ->
+            removeReference(key)
+        }
+        // Only the searches of the old or the new title can give another entry
+        val newTitle = entry.getFieldValue(EntryKDBX.STR_TITLE)?.toString() ?: ""
+        val oldTitle = titlesByEntry.put(entryId, newTitle.lowercase())
+        if (containsReference(newTitle)) {
+            // The index can't be used anymore, each title must be decoded
+            referencesByTitle.values.flatten().forEach { key ->
+                removeReference(key)
+            }
+        } else {
+            listOfNotNull(oldTitle, newTitle.lowercase()).forEach { title ->
+                referencesByTitle[title]?.toList()?.forEach { key ->
+                    removeReference(key)
+                }
+            }
+        }
+        clearTitleIndex()
+    }
+
+    private fun removeReference(key: String) {
+        refsCache.remove(key)?.let { cachedReference ->
+            val dependencies = cachedReference.dependencies
+            dependencies.entries.forEach { entryId ->
+                referencesByEntry[entryId]?.remove(key)
+            }
+            dependencies.titles.forEach { title ->
+                referencesByTitle[title]?.let { keys ->
+                    keys.remove(key)
+                    if (keys.isEmpty())
+                        referencesByTitle.remove(title)
+                }
+            }
+        }
+        searchReferences.remove(key)
+    }
+
+    @Synchronized
+    private fun putReference(key: String, cachedReference: CachedReference) {
+        refsCache[key] = cachedReference
+        val dependencies = cachedReference.dependencies
+        dependencies.entries.forEach { entryId ->
+            referencesByEntry.getOrPut(entryId) { HashSet() }.add(key)
+        }
+        dependencies.titles.forEach { title ->
+            referencesByTitle.getOrPut(title) { HashSet() }.add(key)
+        }
+        if (dependencies.search)
+            searchReferences.add(key)
+    }
+
+    private fun clearTitleIndex() {
+        titleIndex = null
+        titleIndexBuilt = false
     }
 
     fun compile(textReference: String, recursionLevel: Int): String {
@@ -50,94 +143,167 @@ class FieldReferencesEngine(private val mDatabase: DatabaseKDBX) {
 
         var offset = 0
         var numberInlineRef = 0
-        while (textValue.contains(STR_REF_START)
-                && numberInlineRef <= MAX_INLINE_REF) {
+        while (numberInlineRef <= MAX_INLINE_REF) {
             numberInlineRef++
 
             try {
-                textValue = fillReferencesUsingCache(textValue)
-
                 val start = textValue.indexOf(STR_REF_START, offset, true)
                 if (start < 0) {
                     break
                 }
-                val end = textValue.indexOf(STR_REF_END, offset, true)
-                if (end <= start) {
+                val end = textValue.indexOf(STR_REF_END, start, true)
+                if (end < 0) {
                     break
                 }
 
                 val reference = textValue.substring(start + STR_REF_START.length, end)
                 val fullReference = "$STR_REF_START$reference$STR_REF_END"
 
-                if (!refsCache.containsKey(fullReference)) {
-                    val newRecursionLevel = recursionLevel + 1
-                    val result = findReferenceTarget(reference, newRecursionLevel)
-                    val entryFound = result.entry
-                    val data: String? = when (result.wanted) {
-                        'T' -> entryFound?.decodeTitleKey(newRecursionLevel)
-                        'U' -> entryFound?.decodeUsernameKey(newRecursionLevel)
-                        'A' -> entryFound?.decodeUrlKey(newRecursionLevel)
-                        'P' -> entryFound?.decodePasswordKey(newRecursionLevel)
-                        'N' -> entryFound?.decodeNotesKey(newRecursionLevel)
-                        'I' -> UuidUtil.toHexString(entryFound?.nodeId?.id)
-                        else -> null
-                    }
-                    refsCache[fullReference] = data
-                    textValue = fillReferencesUsingCache(textValue)
+                val data = getReferenceValue(reference, recursionLevel)
+                offset = if (data != null) {
+                    textValue = textValue.replace(fullReference, data, true)
+                    start + data.length
+                } else {
+                    // Keep the reference if value not found
+                    end
                 }
-
-                offset = end
             } catch (e: Exception) {
                 Log.e(TAG, "Error when fill placeholders by reference", e)
+                break
             }
         }
         return textValue
     }
 
-    private fun fillReferencesUsingCache(text: String): String {
-        var newText = text
-        refsCache.keys.forEach { key ->
-            // Replace by key if value not found
-            newText = newText.replace(key, refsCache[key] ?: key, true)
+    /**
+     * Retrieve the value of a [reference] from the cache or resolve it,
+     * the dependencies are added to the references which contain it
+     */
+    private fun getReferenceValue(reference: String, recursionLevel: Int): String? {
+        val key = reference.uppercase()
+        val dependenciesStack = resolvingDependencies.get()!!
+        val cachedReference = refsCache[key] ?: run {
+            val dependencies = Dependencies()
+            dependenciesStack.add(dependencies)
+            val data = try {
+                val newRecursionLevel = recursionLevel + 1
+                val entryFound = findReferenceTarget(reference, newRecursionLevel, dependencies)
+                when (reference.firstOrNull()?.uppercaseChar()) {
+                    'T' -> entryFound?.decodeTitleKey(newRecursionLevel)
+                    'U' -> entryFound?.decodeUsernameKey(newRecursionLevel)
+                    'A' -> entryFound?.decodeUrlKey(newRecursionLevel)
+                    'P' -> entryFound?.decodePasswordKey(newRecursionLevel)
+                    'N' -> entryFound?.decodeNotesKey(newRecursionLevel)
+                    'I' -> UuidUtil.toHexString(entryFound?.nodeId?.id)
+                    else -> null
+                }
+            } finally {
+                dependenciesStack.removeAt(dependenciesStack.lastIndex)
+            }
+            CachedReference(data, dependencies).also {
+                putReference(key, it)
+            }
         }
-        return newText
+        // The reference which contains this one depends on the same entries
+        dependenciesStack.lastOrNull()?.addAll(cachedReference.dependencies)
+        return cachedReference.value
     }
 
-    private fun findReferenceTarget(reference: String, recursionLevel: Int): TargetResult {
-
-        val targetResult = TargetResult(null, 'J')
-
+    private fun findReferenceTarget(reference: String,
+                                    recursionLevel: Int,
+                                    dependencies: Dependencies): EntryKDBX? {
         if (reference.length <= 4) {
-            return targetResult
+            return null
         }
         if (reference[1] != '@') {
-            return targetResult
+            return null
         }
         if (reference[3] != ':') {
-            return targetResult
+            return null
         }
 
-        targetResult.wanted = Character.toUpperCase(reference[0])
         val searchIn = Character.toUpperCase(reference[2])
         val searchQuery = reference.substring(4)
-        targetResult.entry = when (searchIn) {
-            'T' -> mDatabase.getEntryByTitle(searchQuery, recursionLevel)
+        val entry = when (searchIn) {
+            'T' -> getEntryByTitle(searchQuery, recursionLevel, dependencies)
             'U' -> mDatabase.getEntryByUsername(searchQuery, recursionLevel)
             'A' -> mDatabase.getEntryByURL(searchQuery, recursionLevel)
             'P' -> mDatabase.getEntryByPassword(searchQuery, recursionLevel)
             'N' -> mDatabase.getEntryByNotes(searchQuery, recursionLevel)
             'I' -> {
                 UuidUtil.fromHexString(searchQuery)?.let { uuid ->
+                    // Also depends on the entry if not yet created
+                    dependencies.entries.add(uuid)
                     mDatabase.getEntryById(NodeIdUUID(uuid))
                 }
             }
             'O' -> mDatabase.getEntryByCustomData(searchQuery)
             else -> null
         }
-        return targetResult
+        if (searchIn != 'I' && searchIn != 'T')
+            dependencies.search = true
+        entry?.let {
+            dependencies.entries.add(it.nodeId.id)
+        }
+        return entry
     }
 
-    private data class TargetResult(var entry: EntryKDBX?, var wanted: Char)
+    /**
+     * Retrieve the first entry with the [title] in the title index,
+     * or by decoding each title if a title contains a reference
+     */
+    private fun getEntryByTitle(title: String,
+                                recursionLevel: Int,
+                                dependencies: Dependencies): EntryKDBX? {
+        val index = synchronized(this) {
+            if (!titleIndexBuilt) {
+                titleIndex = buildTitleIndex()
+                titleIndexBuilt = true
+            }
+            titleIndex
+        }
+        return if (index != null) {
+            // Only an entry with this title can change the result
+            dependencies.titles.add(title.lowercase())
+            index[title.lowercase()]?.takeIf {
+                (it.getFieldValue(EntryKDBX.STR_TITLE)?.toString() ?: "").equals(title, true)
+            }
+        } else {
+            // A decoded title can change with any entry
+            dependencies.search = true
+            mDatabase.getEntryByTitle(title, recursionLevel)
+        }
+    }
+
+    private fun buildTitleIndex(): HashMap<String, EntryKDBX>? {
+        val index = HashMap<String, EntryKDBX>()
+        titlesByEntry.clear()
+        for (entry in mDatabase.getEntryIndexes()) {
+            val title = entry.getFieldValue(EntryKDBX.STR_TITLE)?.toString() ?: ""
+            val key = title.lowercase()
+            titlesByEntry[entry.nodeId.id] = key
+            if (containsReference(title))
+                return null
+            // Keep the first entry, like a search
+            if (!index.containsKey(key))
+                index[key] = entry
+        }
+        return index
+    }
+
+    private class Dependencies {
+        val entries = HashSet<UUID>()
+        val titles = HashSet<String>()
+        var search = false
+
+        fun addAll(dependencies: Dependencies) {
+            entries.addAll(dependencies.entries)
+            titles.addAll(dependencies.titles)
+            search = search || dependencies.search
+        }
+    }
+
+    private class CachedReference(val value: String?, val dependencies: Dependencies)
 
     companion object {
         private const val MAX_RECURSION_DEPTH = 10
@@ -146,5 +312,9 @@ class FieldReferencesEngine(private val mDatabase: DatabaseKDBX) {
         private const val STR_REF_END = "}"
 
         private val TAG = FieldReferencesEngine::class.java.name
+
+        fun containsReference(text: String): Boolean {
+            return text.contains(STR_REF_START, true)
+        }
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.group
+
+import com.kunzisoft.keepass.database.element.node.NodeId
+import com.kunzisoft.keepass.database.element.node.NodeVersioned
+import java.util.Arrays
+
+/**
+ * Children of a group, kept in insertion order,
+ * membership, position, replacement and removal of a node are retrieved by its [NodeId] in constant time.
+ * A removed node leaves a hole in the slots, holes are compacted at the next positional access.
+ */
+class ChildNodeList<Node : NodeVersioned<*, *, *>> : AbstractList<Node>() {
+
+    private var slots = arrayOfNulls<Any>(INITIAL_CAPACITY)
+    private var slotCount = 0
+    private var holeCount = 0
+    private val slotIndexes = HashMap<NodeId<*>, Int>()
+    // To detect a compaction during an iteration
+    private var compactionCount = 0
+
+    override val size: Int
+        get() = slotCount - holeCount
+
+    override fun get(index: Int): Node {
+        compact()
+        if (index < 0 || index >= slotCount)
+            throw IndexOutOfBoundsException("Index: $index, Size: $slotCount")
+        return nodeAt(index)!!
+    }
+
+    override fun contains(element: Node): Boolean {
+        return slotIndexes.containsKey(element.nodeId)
+    }
+
+    override fun indexOf(element: Node): Int {
+        if (!contains(element))
+            return -1
+        compact()
+        return slotIndexes[element.nodeId] ?: -1
+    }
+
+    override fun lastIndexOf(element: Node): Int {
+        // A node id is present only once
+        return indexOf(element)
+    }
+
+    override fun iterator(): Iterator<Node> {
+        return object : Iterator<Node> {
+            private val expectedCompactionCount = compactionCount
+            private var nextSlot = nextNodeSlot(0)
+
+            override fun hasNext(): Boolean {
+                return nextSlot < slotCount
+            }
+
+            override fun next(): Node {
+                if (compactionCount != expectedCompactionCount)
+                    throw ConcurrentModificationException()
+                if (!hasNext())
+                    throw NoSuchElementException()
+                val node = nodeAt(nextSlot)!!
+                nextSlot = nextNodeSlot(nextSlot + 1)
+                return node
+            }
+        }
+    }
+
+    private fun nextNodeSlot(from: Int): Int {
+        var slot = from
+        while (slot < slotCount && slots[slot] == null) {
+            slot++
+        }
+        return slot
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun nodeAt(slot: Int): Node? {
+        return slots[slot] as Node?
+    }
+
+    /**
+     * Add [node] at the end, the node must not already be present
+     */
+    fun add(node: Node) {
+        if (slotCount == slots.size) {
+            compact()
+            if (slotCount * 2 > slots.size)
+                slots = slots.copyOf(slots.size * 2)
+        }
+        slots[slotCount] = node
+        slotIndexes[node.nodeId] = slotCount
+        slotCount++
+    }
+
+    /**
+     * Remove the node with the same id as [node]
+     * @return the removed node, or null if not present
+     */
+    fun remove(node: Node): Node? {
+        val slot = slotIndexes.remove(node.nodeId) ?: return null
+        val removedNode = nodeAt(slot)
+        slots[slot] = null
+        if (slot == slotCount - 1) {
+            slotCount--
+        } else {
+            holeCount++
+        }
+        return removedNode
+    }
+
+    /**
+     * Put [node] in place of the node with the same id
+     * @return the replaced node, or null if not present
+     */
+    fun replace(node: Node): Node? {
+        val slot = slotIndexes[node.nodeId] ?: return null
+        val replacedNode = nodeAt(slot)
+        slots[slot] = node
+        return replacedNode
+    }
+
+    /**
+     * Update the index after the id of [node] has been replaced
+     */
+    fun updateNodeId(node: Node, oldNodeId: NodeId<*>) {
+        var slot = slotIndexes[oldNodeId]
+        if (slot == null || slots[slot] !== node) {
+            // Not indexed with its old id, a duplicate id at loading
+            slot = slots.indexOfFirst { it === node }
+            if (slot < 0 || slot >= slotCount)
+                return
+        } else {
+            slotIndexes.remove(oldNodeId)
+        }
+        // Keep the node already indexed with the new id, the duplicate is only reachable by iteration
+        if (!slotIndexes.containsKey(node.nodeId))
+            slotIndexes[node.nodeId] = slot
+    }
+
+    fun clear() {
+        Arrays.fill(slots, 0, slotCount, null)
+        slotCount = 0
+        holeCount = 0
+        slotIndexes.clear()
+        compactionCount++
+    }
+
+    private fun compact() {
+        if (holeCount == 0)
+            return
+        var writeSlot = 0
+        for (readSlot in 0 until slotCount) {
+            val node = nodeAt(readSlot) ?: continue
+            slots[writeSlot] = node
+            if (slotIndexes[node.nodeId] == readSlot)
+                slotIndexes[node.nodeId] = writeSlot
+            writeSlot++
+        }
+        Arrays.fill(slots, writeSlot, slotCount, null)
+        slotCount = writeSlot
+        holeCount = 0
+        compactionCount++
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 8
+    }
+}
@@ -21,8 +21,8 @@ package com.kunzisoft.keepass.database.element.group
 
 import android.os.Parcel
 import com.kunzisoft.keepass.database.element.entry.EntryVersioned
+import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.NodeVersioned
-import java.util.*
 
 abstract class GroupVersioned
         <
@@ -35,11 +35,17 @@ abstract class GroupVersioned
 
     private var titleGroup = ""
     @Transient
-    private val childGroups = LinkedList<Group>()
+    private val childGroups = ChildNodeList<Group>()
     @Transient
-    private val childEntries = LinkedList<Entry>()
+    private val childEntries = ChildNodeList<Entry>()
     private var positionIndexChildren = 0
 
+    /**
+     * Incremented at each change of the children, to invalidate the values computed from them
+     */
+    var childrenModificationCount = 0
+        private set
+
     constructor() : super()
 
     constructor(parcel: Parcel) : super(parcel) {
@@ -57,8 +63,9 @@ abstract class GroupVersioned
         titleGroup = source.titleGroup
         if (updateParents) {
             removeChildren()
-            childGroups.addAll(source.childGroups)
-            childEntries.addAll(source.childEntries)
+            source.childGroups.forEach { childGroups.add(it) }
+            source.childEntries.forEach { childEntries.add(it) }
+            childrenModificationCount++
         }
     }
 
@@ -86,55 +93,74 @@ abstract class GroupVersioned
     }
 
     override fun addChildGroup(group: Group) {
-        if (childGroups.contains(group))
-            removeChildGroup(group)
+        removeChildGroup(group)
         positionIndexChildren++
         group.nodeIndexInParentForNaturalOrder = positionIndexChildren
         this.childGroups.add(group)
+        childrenModificationCount++
     }
 
     override fun addChildEntry(entry: Entry) {
-        if (childEntries.contains(entry))
-            removeChildEntry(entry)
+        removeChildEntry(entry)
         positionIndexChildren++
         entry.nodeIndexInParentForNaturalOrder = positionIndexChildren
         this.childEntries.add(entry)
+        childrenModificationCount++
     }
 
     override fun updateChildGroup(group: Group) {
-        val index = this.childGroups.indexOfFirst { it.nodeId == group.nodeId }
-        if (index >= 0) {
-            val oldGroup = this.childGroups.removeAt(index)
+        this.childGroups.replace(group)?.let { oldGroup ->
             group.nodeIndexInParentForNaturalOrder = oldGroup.nodeIndexInParentForNaturalOrder
-            this.childGroups.add(index, group)
+            childrenModificationCount++
         }
     }
 
     override fun updateChildEntry(entry: Entry) {
-        val index = this.childEntries.indexOfFirst { it.nodeId == entry.nodeId }
-        if (index >= 0) {
-            val oldEntry = this.childEntries.removeAt(index)
+        this.childEntries.replace(entry)?.let { oldEntry ->
             entry.nodeIndexInParentForNaturalOrder = oldEntry.nodeIndexInParentForNaturalOrder
-            this.childEntries.add(index, entry)
+            childrenModificationCount++
         }
     }
 
     override fun removeChildGroup(group: Group) {
-        this.childGroups.remove(group)
+        if (this.childGroups.remove(group) != null)
+            childrenModificationCount++
     }
 
     override fun removeChildEntry(entry: Entry) {
-        this.childEntries.remove(entry)
+        if (this.childEntries.remove(entry) != null)
+            childrenModificationCount++
     }
 
     override fun removeChildren() {
         this.childGroups.clear()
         this.childEntries.clear()
+        childrenModificationCount++
+    }
+
+    /**
+     * Keep the children indexed after the id of [group] has been replaced
+     */
+    fun onChildGroupIdChanged(group: Group, oldNodeId: NodeId<GroupId>) {
+        this.childGroups.updateNodeId(group, oldNodeId)
+    }
+
+    /**
+     * Keep the children indexed after the id of [entry] has been replaced
+     */
+    fun onChildEntryIdChanged(entry: Entry, oldNodeId: NodeId<EntryId>) {
+        this.childEntries.updateNodeId(entry, oldNodeId)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    override fun afterNodeIdChanged(oldNodeId: NodeId<GroupId>) {
+        parent?.onChildGroupIdChanged(this as Group, oldNodeId)
     }
 
+    @Suppress("UNCHECKED_CAST")
     override fun nodeIndexInParentForNaturalOrder(): Int {
         return if (nodeIndexInParentForNaturalOrder == -1)
-            childGroups.indexOf(this)
+            parent?.getChildGroups()?.indexOf(this as Group) ?: -1
         else
             nodeIndexInParentForNaturalOrder
     }
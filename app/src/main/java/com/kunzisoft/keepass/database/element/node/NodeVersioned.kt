@@ -34,12 +34,24 @@ abstract class NodeVersioned<IdType, Parent : GroupVersionedInterface<Parent, En
     : NodeVersionedInterface<Parent>, NodeTimeInterface, Parcelable {
 
     var nodeId: NodeId<IdType> = this.initNodeId()
+        set(value) {
+            val oldNodeId = field
+            field = value
+            if (oldNodeId != value)
+                afterNodeIdChanged(oldNodeId)
+        }
 
     val id: IdType
         get() = nodeId.id
 
     var nodeIndexInParentForNaturalOrder = -1
 
+    /**
+     * Group or Entry wrapping this node, reused by all the views of the node
+     */
+    @Transient
+    var nodeWrapper: Node? = null
+
     protected constructor()
 
     protected constructor(parcel: Parcel) {
@@ -83,6 +95,10 @@ abstract class NodeVersioned<IdType, Parent : GroupVersionedInterface<Parent, En
     }
 
     protected abstract fun initNodeId(): NodeId<IdType>
+    /**
+     * Called when [nodeId] is replaced, the parent indexes its children by id
+     */
+    protected open fun afterNodeIdChanged(oldNodeId: NodeId<IdType>) {}
     protected abstract fun copyNodeId(nodeId: NodeId<IdType>): NodeId<IdType>
     protected abstract fun readParentParcelable(parcel: Parcel): Parent?
     protected abstract fun writeParentParcelable(parent: Parent?, parcel: Parcel, flags: Int)
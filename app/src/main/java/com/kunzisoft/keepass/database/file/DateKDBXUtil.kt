@@ -21,7 +21,6 @@ package com.kunzisoft.keepass.database.file
 
 import org.joda.time.DateTime
 import org.joda.time.DateTimeZone
-import org.joda.time.Duration
 import java.util.*
 
 object DateKDBXUtil {
@@ -39,8 +38,7 @@ object DateKDBXUtil {
     }
 
     fun convertDateToKDBX4Time(date: Date): Long {
-        val duration = Duration(javaEpoch, DateTime(date))
-        val seconds = duration.millis / 1000L
-        return seconds + epochOffset
+        // Java epoch is the origin of Date.time, no need of an intermediate DateTime
+        return date.time / 1000L + epochOffset
     }
 }
\ No newline at end of file
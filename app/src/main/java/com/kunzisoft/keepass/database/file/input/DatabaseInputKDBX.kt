@@ -42,8 +42,10 @@ import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
 import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
+import com.kunzisoft.keepass.stream.BulkCipherInputStream
 import com.kunzisoft.keepass.stream.HashedBlockInputStream
 import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.ReadAheadInputStream
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.*
 import org.xmlpull.v1.XmlPullParser
@@ -57,7 +59,6 @@ import java.text.ParseException
 import java.util.*
 import java.util.zip.GZIPInputStream
 import javax.crypto.Cipher
-import javax.crypto.CipherInputStream
 import javax.crypto.Mac
 import kotlin.math.min
 
@@ -69,6 +70,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
     private var hashOfHeader: ByteArray? = null
 
     private var readNextNode = true
+    private val elementsByName = HashMap<String, KdbElement>()
     private val ctxGroups = Stack<GroupKDBX>()
     private var ctxGroup: GroupKDBX? = null
     private var ctxEntry: EntryKDBX? = null
@@ -95,10 +97,44 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
 
     private var isRAMSufficient: (memoryWanted: Long) -> Boolean = {true}
 
+    // Shared by all the binaries of the inner header
+    private val binaryBuffer = ByteArray(BINARY_BUFFER_SIZE)
+
+    // Run HMAC check, decryption and inflate on their own thread
+    private var pipelinedLoading = Runtime.getRuntime().availableProcessors() > 1
+    private val pipelineStages = ArrayList<ReadAheadInputStream>()
+
     fun setMethodToCheckIfRAMIsSufficient(method: (memoryWanted: Long) -> Boolean) {
         this.isRAMSufficient = method
     }
 
+    fun setPipelinedLoading(pipelined: Boolean) {
+        this.pipelinedLoading = pipelined
+    }
+
+    /**
+     * Decouple the stream producer from its reader with a read-ahead stage if pipelined loading is enabled
+     */
+    private fun pipelineStage(inputStream: InputStream, name: String): InputStream {
+        if (!pipelinedLoading)
+            return inputStream
+        return ReadAheadInputStream(inputStream, name = name).also {
+            pipelineStages.add(it)
+        }
+    }
+
+    private fun closePipelineStages() {
+        // Close the last stage first to stop each thread before its source
+        pipelineStages.asReversed().forEach { stage ->
+            try {
+                stage.close()
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to close the pipeline stage", e)
+            }
+        }
+        pipelineStages.clear()
+    }
+
     @Throws(LoadDatabaseException::class)
     override fun openDatabase(databaseInputStream: InputStream,
                               progressTaskUpdater: ProgressTaskUpdater?,
@@ -115,7 +151,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             val pbHeader = headerAndHash.header
 
             assignMasterKey.invoke()
-            mDatabase.makeFinalKey(header.masterSeed)
+            mDatabase.makeFinalKey(header.masterSeed, progressTaskUpdater)
 
             stopKeyTimer()
             startContentTimer(progressTaskUpdater)
@@ -133,7 +169,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             val plainInputStream: InputStream
             if (mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
 
-                val dataDecrypted = CipherInputStream(databaseInputStream, cipher)
+                val dataDecrypted = BulkCipherInputStream(databaseInputStream, cipher)
                 val storedStartBytes: ByteArray?
                 try {
                     storedStartBytes = dataDecrypted.readBytesLength(32)
@@ -148,7 +184,8 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
                     throw InvalidCredentialsDatabaseException()
                 }
 
-                plainInputStream = HashedBlockInputStream(dataDecrypted)
+                plainInputStream = HashedBlockInputStream(
+                    pipelineStage(dataDecrypted, STAGE_DECRYPT))
             } else { // KDBX 4
                 val storedHash = databaseInputStream.readBytesLength(32)
                 if (!storedHash.contentEquals(hashOfHeader)) {
@@ -170,13 +207,15 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
                     throw InvalidCredentialsDatabaseException()
                 }
 
-                val hmIs = HmacBlockInputStream(databaseInputStream, true, hmacKey)
+                val hmIs = HmacBlockInputStream(databaseInputStream, true, hmacKey,
+                    if (pipelinedLoading) HMAC_READ_AHEAD_BLOCKS else 0)
 
-                plainInputStream = CipherInputStream(hmIs, cipher)
+                plainInputStream = pipelineStage(
+                    BulkCipherInputStream(pipelineStage(hmIs, STAGE_HMAC), cipher), STAGE_DECRYPT)
             }
 
             val inputStreamXml: InputStream = when (mDatabase.compressionAlgorithm) {
-                CompressionAlgorithm.GZip -> GZIPInputStream(plainInputStream)
+                CompressionAlgorithm.GZip -> pipelineStage(GZIPInputStream(plainInputStream), STAGE_INFLATE)
                 else -> plainInputStream
             }
 
@@ -213,6 +252,8 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             throw NoMemoryDatabaseException(e)
         } catch (e: Exception) {
             throw LoadDatabaseException(e)
+        } finally {
+            closePipelineStages()
         }
 
         return mDatabase
@@ -260,9 +301,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
                     val protectedBinary = mDatabase.buildNewBinaryAttachment(
                             isRAMSufficient.invoke(byteLength.toLong()), false, protectedFlag)
                     protectedBinary.getOutputDataStream(mDatabase.binaryCache).use { outputStream ->
-                        dataInputStream.readBytes(byteLength) { buffer ->
-                            outputStream.write(buffer)
-                        }
+                        dataInputStream.copyBytesTo(outputStream, byteLength.toLong(), binaryBuffer)
                     }
                 }
             }
@@ -297,6 +336,119 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
         Binaries
     }
 
+    /**
+     * Elements known by the parser, a tag name is converted once to its element
+     * so each context dispatches with a switch instead of comparing strings
+     */
+    private enum class KdbElement(val xmlName: String) {
+        AutoType(DatabaseKDBXXML.ElemAutoType),
+        AutoTypeDefaultSeq(DatabaseKDBXXML.ElemAutoTypeDefaultSeq),
+        AutoTypeEnabled(DatabaseKDBXXML.ElemAutoTypeEnabled),
+        AutoTypeItem(DatabaseKDBXXML.ElemAutoTypeItem),
+        AutoTypeObfuscation(DatabaseKDBXXML.ElemAutoTypeObfuscation),
+        BgColor(DatabaseKDBXXML.ElemBgColor),
+        Binaries(DatabaseKDBXXML.ElemBinaries),
+        Binary(DatabaseKDBXXML.ElemBinary),
+        CreationTime(DatabaseKDBXXML.ElemCreationTime),
+        CustomData(DatabaseKDBXXML.ElemCustomData),
+        CustomIconID(DatabaseKDBXXML.ElemCustomIconID),
+        CustomIconItem(DatabaseKDBXXML.ElemCustomIconItem),
+        CustomIconItemData(DatabaseKDBXXML.ElemCustomIconItemData),
+        CustomIcons(DatabaseKDBXXML.ElemCustomIcons),
+        DbColor(DatabaseKDBXXML.ElemDbColor),
+        DbDefaultUser(DatabaseKDBXXML.ElemDbDefaultUser),
+        DbDefaultUserChanged(DatabaseKDBXXML.ElemDbDefaultUserChanged),
+        DbDesc(DatabaseKDBXXML.ElemDbDesc),
+        DbDescChanged(DatabaseKDBXXML.ElemDbDescChanged),
+        DbKeyChangeForce(DatabaseKDBXXML.ElemDbKeyChangeForce),
+        DbKeyChangeForceOnce(DatabaseKDBXXML.ElemDbKeyChangeForceOnce),
+        DbKeyChangeRec(DatabaseKDBXXML.ElemDbKeyChangeRec),
+        DbKeyChanged(DatabaseKDBXXML.ElemDbKeyChanged),
+        DbMntncHistoryDays(DatabaseKDBXXML.ElemDbMntncHistoryDays),
+        DbName(DatabaseKDBXXML.ElemDbName),
+        DbNameChanged(DatabaseKDBXXML.ElemDbNameChanged),
+        DeletedObject(DatabaseKDBXXML.ElemDeletedObject),
+        DeletedObjects(DatabaseKDBXXML.ElemDeletedObjects),
+        DeletionTime(DatabaseKDBXXML.ElemDeletionTime),
+        DocNode(DatabaseKDBXXML.ElemDocNode),
+        EnableAutoType(DatabaseKDBXXML.ElemEnableAutoType),
+        EnableSearching(DatabaseKDBXXML.ElemEnableSearching),
+        Entry(DatabaseKDBXXML.ElemEntry),
+        EntryTemplatesGroup(DatabaseKDBXXML.ElemEntryTemplatesGroup),
+        EntryTemplatesGroupChanged(DatabaseKDBXXML.ElemEntryTemplatesGroupChanged),
+        Expires(DatabaseKDBXXML.ElemExpires),
+        ExpiryTime(DatabaseKDBXXML.ElemExpiryTime),
+        FgColor(DatabaseKDBXXML.ElemFgColor),
+        Generator(DatabaseKDBXXML.ElemGenerator),
+        Group(DatabaseKDBXXML.ElemGroup),
+        GroupDefaultAutoTypeSeq(DatabaseKDBXXML.ElemGroupDefaultAutoTypeSeq),
+        HeaderHash(DatabaseKDBXXML.ElemHeaderHash),
+        History(DatabaseKDBXXML.ElemHistory),
+        HistoryMaxItems(DatabaseKDBXXML.ElemHistoryMaxItems),
+        HistoryMaxSize(DatabaseKDBXXML.ElemHistoryMaxSize),
+        Icon(DatabaseKDBXXML.ElemIcon),
+        IsExpanded(DatabaseKDBXXML.ElemIsExpanded),
+        Key(DatabaseKDBXXML.ElemKey),
+        KeystrokeSequence(DatabaseKDBXXML.ElemKeystrokeSequence),
+        LastAccessTime(DatabaseKDBXXML.ElemLastAccessTime),
+        LastModTime(DatabaseKDBXXML.ElemLastModTime),
+        LastSelectedGroup(DatabaseKDBXXML.ElemLastSelectedGroup),
+        LastTopVisibleEntry(DatabaseKDBXXML.ElemLastTopVisibleEntry),
+        LastTopVisibleGroup(DatabaseKDBXXML.ElemLastTopVisibleGroup),
+        LocationChanged(DatabaseKDBXXML.ElemLocationChanged),
+        MemoryProt(DatabaseKDBXXML.ElemMemoryProt),
+        Meta(DatabaseKDBXXML.ElemMeta),
+        Name(DatabaseKDBXXML.ElemName),
+        Notes(DatabaseKDBXXML.ElemNotes),
+        OverrideUrl(DatabaseKDBXXML.ElemOverrideUrl),
+        PreviousParentGroup(DatabaseKDBXXML.ElemPreviousParentGroup),
+        ProtAutoHide(DatabaseKDBXXML.ElemProtAutoHide),
+        ProtNotes(DatabaseKDBXXML.ElemProtNotes),
+        ProtPassword(DatabaseKDBXXML.ElemProtPassword),
+        ProtTitle(DatabaseKDBXXML.ElemProtTitle),
+        ProtURL(DatabaseKDBXXML.ElemProtURL),
+        ProtUserName(DatabaseKDBXXML.ElemProtUserName),
+        QualityCheck(DatabaseKDBXXML.ElemQualityCheck),
+        RecycleBinChanged(DatabaseKDBXXML.ElemRecycleBinChanged),
+        RecycleBinEnabled(DatabaseKDBXXML.ElemRecycleBinEnabled),
+        RecycleBinUuid(DatabaseKDBXXML.ElemRecycleBinUuid),
+        Root(DatabaseKDBXXML.ElemRoot),
+        SettingsChanged(DatabaseKDBXXML.ElemSettingsChanged),
+        Field(DatabaseKDBXXML.ElemString),
+        StringDictExItem(DatabaseKDBXXML.ElemStringDictExItem),
+        Tags(DatabaseKDBXXML.ElemTags),
+        Times(DatabaseKDBXXML.ElemTimes),
+        UsageCount(DatabaseKDBXXML.ElemUsageCount),
+        Uuid(DatabaseKDBXXML.ElemUuid),
+        Value(DatabaseKDBXXML.ElemValue),
+        Window(DatabaseKDBXXML.ElemWindow),
+        Unknown("");
+
+        companion object {
+            // Tag names are case insensitive, each name must map to a single element
+            val ELEMENTS_BY_NAME = HashMap<String, KdbElement>().apply {
+                for (element in values()) {
+                    if (element != Unknown)
+                        put(element.xmlName.lowercase(Locale.ROOT), element)
+                }
+            }
+        }
+    }
+
+    /**
+     * Element of the tag [name], the exact spellings already met are cached
+     */
+    private fun kdbElement(name: String?): KdbElement {
+        if (name == null)
+            return KdbElement.Unknown
+        return elementsByName[name] ?: run {
+            val element = KdbElement.ELEMENTS_BY_NAME[name.lowercase(Locale.ROOT)]
+                    ?: KdbElement.Unknown
+            elementsByName[name] = element
+            element
+        }
+    }
+
     @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
     private fun readDocumentStreamed(xpp: XmlPullParser) {
 
@@ -330,272 +482,214 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
 
     @Throws(XmlPullParserException::class, IOException::class, LoadDatabaseException::class)
     private fun readXmlElement(ctx: KdbContext, xpp: XmlPullParser): KdbContext {
-        val name = xpp.name
+        val element = kdbElement(xpp.name)
         when (ctx) {
-            KdbContext.Null -> if (name.equals(DatabaseKDBXXML.ElemDocNode, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.KeePassFile, xpp)
-            } else
-                readUnknown(xpp)
-
-            KdbContext.KeePassFile -> if (name.equals(DatabaseKDBXXML.ElemMeta, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.Meta, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemRoot, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.Root, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.Null -> when (element) {
+                KdbElement.DocNode -> return switchContext(ctx, KdbContext.KeePassFile, xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Meta -> if (name.equals(DatabaseKDBXXML.ElemGenerator, ignoreCase = true)) {
-                readString(xpp) // Ignore
-            } else if (name.equals(DatabaseKDBXXML.ElemHeaderHash, ignoreCase = true)) {
-                val encodedHash = readString(xpp)
-                if (encodedHash.isNotEmpty() && hashOfHeader != null) {
-                    val hash = Base64.decode(encodedHash, BASE_64_FLAG)
-                    if (!Arrays.equals(hash, hashOfHeader)) {
-                        throw LoadDatabaseException()
+            KdbContext.KeePassFile -> when (element) {
+                KdbElement.Meta -> return switchContext(ctx, KdbContext.Meta, xpp)
+                KdbElement.Root -> return switchContext(ctx, KdbContext.Root, xpp)
+                else -> readUnknown(xpp)
+            }
+
+            KdbContext.Meta -> when (element) {
+                KdbElement.Generator -> readString(xpp) // Ignore
+                KdbElement.HeaderHash -> {
+                    val encodedHash = readString(xpp)
+                    if (encodedHash.isNotEmpty() && hashOfHeader != null) {
+                        val hash = Base64.decode(encodedHash, BASE_64_FLAG)
+                        if (!Arrays.equals(hash, hashOfHeader)) {
+                            throw LoadDatabaseException()
+                        }
                     }
                 }
-            } else if (name.equals(DatabaseKDBXXML.ElemSettingsChanged, ignoreCase = true)) {
-                mDatabase.settingsChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbName, ignoreCase = true)) {
-                mDatabase.name = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbNameChanged, ignoreCase = true)) {
-                mDatabase.nameChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDesc, ignoreCase = true)) {
-                mDatabase.description = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDescChanged, ignoreCase = true)) {
-                mDatabase.descriptionChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDefaultUser, ignoreCase = true)) {
-                mDatabase.defaultUserName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbDefaultUserChanged, ignoreCase = true)) {
-                mDatabase.defaultUserNameChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbColor, ignoreCase = true)) {
-                mDatabase.color = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbMntncHistoryDays, ignoreCase = true)) {
-                mDatabase.maintenanceHistoryDays = readUInt(xpp, DEFAULT_HISTORY_DAYS)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChanged, ignoreCase = true)) {
-                mDatabase.keyLastChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChangeRec, ignoreCase = true)) {
-                mDatabase.keyChangeRecDays = readLong(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChangeForce, ignoreCase = true)) {
-                mDatabase.keyChangeForceDays = readLong(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemDbKeyChangeForceOnce, ignoreCase = true)) {
-                mDatabase.isKeyChangeForceOnce = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemMemoryProt, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.MemoryProtection, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIcons, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomIcons, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemRecycleBinEnabled, ignoreCase = true)) {
-                mDatabase.isRecycleBinEnabled = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemRecycleBinUuid, ignoreCase = true)) {
-                mDatabase.recycleBinUUID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemRecycleBinChanged, ignoreCase = true)) {
-                mDatabase.recycleBinChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEntryTemplatesGroup, ignoreCase = true)) {
-                mDatabase.entryTemplatesGroup = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEntryTemplatesGroupChanged, ignoreCase = true)) {
-                mDatabase.entryTemplatesGroupChanged = readDateInstant(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemHistoryMaxItems, ignoreCase = true)) {
-                mDatabase.historyMaxItems = readInt(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemHistoryMaxSize, ignoreCase = true)) {
-                mDatabase.historyMaxSize = readLong(xpp, -1)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastSelectedGroup, ignoreCase = true)) {
-                mDatabase.lastSelectedGroupUUID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastTopVisibleGroup, ignoreCase = true)) {
-                mDatabase.lastTopVisibleGroupUUID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemBinaries, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.Binaries, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomData, xpp)
+                KdbElement.SettingsChanged -> mDatabase.settingsChanged = readDateInstant(xpp)
+                KdbElement.DbName -> mDatabase.name = readString(xpp)
+                KdbElement.DbNameChanged -> mDatabase.nameChanged = readDateInstant(xpp)
+                KdbElement.DbDesc -> mDatabase.description = readString(xpp)
+                KdbElement.DbDescChanged -> mDatabase.descriptionChanged = readDateInstant(xpp)
+                KdbElement.DbDefaultUser -> mDatabase.defaultUserName = readString(xpp)
+                KdbElement.DbDefaultUserChanged -> mDatabase.defaultUserNameChanged = readDateInstant(xpp)
+                KdbElement.DbColor -> mDatabase.color = readString(xpp)
+                KdbElement.DbMntncHistoryDays -> mDatabase.maintenanceHistoryDays = readUInt(xpp, DEFAULT_HISTORY_DAYS)
+                KdbElement.DbKeyChanged -> mDatabase.keyLastChanged = readDateInstant(xpp)
+                KdbElement.DbKeyChangeRec -> mDatabase.keyChangeRecDays = readLong(xpp, -1)
+                KdbElement.DbKeyChangeForce -> mDatabase.keyChangeForceDays = readLong(xpp, -1)
+                KdbElement.DbKeyChangeForceOnce -> mDatabase.isKeyChangeForceOnce = readBool(xpp, false)
+                KdbElement.MemoryProt -> return switchContext(ctx, KdbContext.MemoryProtection, xpp)
+                KdbElement.CustomIcons -> return switchContext(ctx, KdbContext.CustomIcons, xpp)
+                KdbElement.RecycleBinEnabled -> mDatabase.isRecycleBinEnabled = readBool(xpp, true)
+                KdbElement.RecycleBinUuid -> mDatabase.recycleBinUUID = readUuid(xpp)
+                KdbElement.RecycleBinChanged -> mDatabase.recycleBinChanged = readDateInstant(xpp)
+                KdbElement.EntryTemplatesGroup -> mDatabase.entryTemplatesGroup = readUuid(xpp)
+                KdbElement.EntryTemplatesGroupChanged -> mDatabase.entryTemplatesGroupChanged = readDateInstant(xpp)
+                KdbElement.HistoryMaxItems -> mDatabase.historyMaxItems = readInt(xpp, -1)
+                KdbElement.HistoryMaxSize -> mDatabase.historyMaxSize = readLong(xpp, -1)
+                KdbElement.LastSelectedGroup -> mDatabase.lastSelectedGroupUUID = readUuid(xpp)
+                KdbElement.LastTopVisibleGroup -> mDatabase.lastTopVisibleGroupUUID = readUuid(xpp)
+                KdbElement.Binaries -> return switchContext(ctx, KdbContext.Binaries, xpp)
+                KdbElement.CustomData -> return switchContext(ctx, KdbContext.CustomData, xpp)
+                else -> {
+                    // Ignore
+                }
             }
 
-            KdbContext.MemoryProtection -> if (name.equals(DatabaseKDBXXML.ElemProtTitle, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectTitle = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtUserName, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectUserName = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtPassword, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectPassword = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtURL, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectUrl = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtNotes, ignoreCase = true)) {
-                mDatabase.memoryProtection.protectNotes = readBool(xpp, false)
-            } else if (name.equals(DatabaseKDBXXML.ElemProtAutoHide, ignoreCase = true)) {
-                mDatabase.memoryProtection.autoEnableVisualHiding = readBool(xpp, false)
-            } else {
-                readUnknown(xpp)
+            KdbContext.MemoryProtection -> when (element) {
+                KdbElement.ProtTitle -> mDatabase.memoryProtection.protectTitle = readBool(xpp, false)
+                KdbElement.ProtUserName -> mDatabase.memoryProtection.protectUserName = readBool(xpp, false)
+                KdbElement.ProtPassword -> mDatabase.memoryProtection.protectPassword = readBool(xpp, false)
+                KdbElement.ProtURL -> mDatabase.memoryProtection.protectUrl = readBool(xpp, false)
+                KdbElement.ProtNotes -> mDatabase.memoryProtection.protectNotes = readBool(xpp, false)
+                KdbElement.ProtAutoHide -> mDatabase.memoryProtection.autoEnableVisualHiding = readBool(xpp, false)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomIcons -> if (name.equals(DatabaseKDBXXML.ElemCustomIconItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomIcon, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.CustomIcons -> when (element) {
+                KdbElement.CustomIconItem -> return switchContext(ctx, KdbContext.CustomIcon, xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomIcon -> if (name.equals(DatabaseKDBXXML.ElemCustomIconItemID, ignoreCase = true)) {
-                customIconID = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIconItemData, ignoreCase = true)) {
-                val strData = readString(xpp)
-                if (strData.isNotEmpty()) {
-                    customIconData = Base64.decode(strData, BASE_64_FLAG)
+            KdbContext.CustomIcon -> when (element) {
+                // Same tag name as the node UUID, ElemCustomIconItemID is read as Uuid
+                KdbElement.Uuid -> customIconID = readUuid(xpp)
+                KdbElement.CustomIconItemData -> {
+                    val strData = readString(xpp)
+                    if (strData.isNotEmpty()) {
+                        customIconData = Base64.decode(strData, BASE_64_FLAG)
+                    }
                 }
-            } else if (name.equals(DatabaseKDBXXML.ElemName, ignoreCase = true)) {
-                customIconName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true)) {
-                customIconLastModificationTime = readDateInstant(xpp)
-            } else {
-                readUnknown(xpp)
+                KdbElement.Name -> customIconName = readString(xpp)
+                KdbElement.LastModTime -> customIconLastModificationTime = readDateInstant(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Binaries -> if (name.equals(DatabaseKDBXXML.ElemBinary, ignoreCase = true)) {
-                readBinary(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.Binaries -> when (element) {
+                KdbElement.Binary -> readBinary(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomData -> if (name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.CustomDataItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.CustomData -> when (element) {
+                KdbElement.StringDictExItem -> return switchContext(ctx, KdbContext.CustomDataItem, xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.CustomDataItem -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                customDataKey = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
-                customDataValue = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true)) {
-                customDataLastModificationTime = readDateInstant(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.CustomDataItem -> when (element) {
+                KdbElement.Key -> customDataKey = readString(xpp)
+                KdbElement.Value -> customDataValue = readString(xpp)
+                KdbElement.LastModTime -> customDataLastModificationTime = readDateInstant(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Root -> if (name.equals(DatabaseKDBXXML.ElemGroup, ignoreCase = true)) {
-                if (ctxGroups.size != 0)
-                    throw IOException("Group list should be empty.")
+            KdbContext.Root -> when (element) {
+                KdbElement.Group -> {
+                    if (ctxGroups.size != 0)
+                        throw IOException("Group list should be empty.")
 
-                mDatabase.rootGroup = mDatabase.createGroup()
-                ctxGroups.push(mDatabase.rootGroup)
-                ctxGroup = ctxGroups.peek()
+                    mDatabase.rootGroup = mDatabase.createGroup()
+                    ctxGroups.push(mDatabase.rootGroup)
+                    ctxGroup = ctxGroups.peek()
 
-                return switchContext(ctx, KdbContext.Group, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDeletedObjects, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.RootDeletedObjects, xpp)
-            } else {
-                readUnknown(xpp)
+                    return switchContext(ctx, KdbContext.Group, xpp)
+                }
+                KdbElement.DeletedObjects -> return switchContext(ctx, KdbContext.RootDeletedObjects, xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.Group -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxGroup?.nodeId = NodeIdUUID(readUuid(xpp))
-                ctxGroup?.let { mDatabase.addGroupIndex(it) }
-            } else if (name.equals(DatabaseKDBXXML.ElemName, ignoreCase = true)) {
-                ctxGroup?.title = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemNotes, ignoreCase = true)) {
-                ctxGroup?.notes = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemIcon, ignoreCase = true)) {
-                ctxGroup?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIconID, ignoreCase = true)) {
-                val iconUUID = readUuid(xpp)
-                ctxGroup?.icon?.custom = mDatabase.getCustomIcon(iconUUID) ?: IconImageCustom(iconUUID)
-            } else if (name.equals(DatabaseKDBXXML.ElemTags, ignoreCase = true)) {
-                ctxGroup?.tags = readTags(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemPreviousParentGroup, ignoreCase = true)) {
-                ctxGroup?.previousParentGroup = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.GroupTimes, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemIsExpanded, ignoreCase = true)) {
-                ctxGroup?.isExpanded = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemGroupDefaultAutoTypeSeq, ignoreCase = true)) {
-                ctxGroup?.defaultAutoTypeSequence = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEnableAutoType, ignoreCase = true)) {
-                ctxGroup?.enableAutoType = readOptionalBool(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEnableSearching, ignoreCase = true)) {
-                ctxGroup?.enableSearching = readOptionalBool(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemLastTopVisibleEntry, ignoreCase = true)) {
-                ctxGroup?.lastTopVisibleEntry = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.GroupCustomData, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemGroup, ignoreCase = true)) {
-                ctxGroup = mDatabase.createGroup()
-                val groupPeek = ctxGroups.peek()
-                ctxGroup?.let {
-                    groupPeek.addChildGroup(it)
-                    it.parent = groupPeek
-                    ctxGroups.push(it)
+            KdbContext.Group -> when (element) {
+                KdbElement.Uuid -> {
+                    ctxGroup?.nodeId = NodeIdUUID(readUuid(xpp))
+                    ctxGroup?.let { mDatabase.addGroupIndex(it) }
                 }
+                KdbElement.Name -> ctxGroup?.title = readString(xpp)
+                KdbElement.Notes -> ctxGroup?.notes = readString(xpp)
+                KdbElement.Icon -> ctxGroup?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
+                KdbElement.CustomIconID -> {
+                    val iconUUID = readUuid(xpp)
+                    ctxGroup?.icon?.custom = mDatabase.getCustomIcon(iconUUID) ?: IconImageCustom(iconUUID)
+                }
+                KdbElement.Tags -> ctxGroup?.tags = readTags(xpp)
+                KdbElement.PreviousParentGroup -> ctxGroup?.previousParentGroup = readUuid(xpp)
+                KdbElement.Times -> return switchContext(ctx, KdbContext.GroupTimes, xpp)
+                KdbElement.IsExpanded -> ctxGroup?.isExpanded = readBool(xpp, true)
+                KdbElement.GroupDefaultAutoTypeSeq -> ctxGroup?.defaultAutoTypeSequence = readString(xpp)
+                KdbElement.EnableAutoType -> ctxGroup?.enableAutoType = readOptionalBool(xpp)
+                KdbElement.EnableSearching -> ctxGroup?.enableSearching = readOptionalBool(xpp)
+                KdbElement.LastTopVisibleEntry -> ctxGroup?.lastTopVisibleEntry = readUuid(xpp)
+                KdbElement.CustomData -> return switchContext(ctx, KdbContext.GroupCustomData, xpp)
+                KdbElement.Group -> {
+                    ctxGroup = mDatabase.createGroup()
+                    val groupPeek = ctxGroups.peek()
+                    ctxGroup?.let {
+                        groupPeek.addChildGroup(it)
+                        it.parent = groupPeek
+                        ctxGroups.push(it)
+                    }
 
-                return switchContext(ctx, KdbContext.Group, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemEntry, ignoreCase = true)) {
-                ctxEntry = mDatabase.createEntry()
-                ctxEntry?.let {
-                    ctxGroup?.addChildEntry(it)
-                    it.parent = ctxGroup
+                    return switchContext(ctx, KdbContext.Group, xpp)
                 }
+                KdbElement.Entry -> {
+                    ctxEntry = mDatabase.createEntry()
+                    ctxEntry?.let {
+                        ctxGroup?.addChildEntry(it)
+                        it.parent = ctxGroup
+                    }
 
-                entryInHistory = false
-                return switchContext(ctx, KdbContext.Entry, xpp)
-            } else {
-                readUnknown(xpp)
+                    entryInHistory = false
+                    return switchContext(ctx, KdbContext.Entry, xpp)
+                }
+                else -> readUnknown(xpp)
             }
-            KdbContext.GroupCustomData -> if (name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.GroupCustomDataItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.GroupCustomData -> when (element) {
+                KdbElement.StringDictExItem -> return switchContext(ctx, KdbContext.GroupCustomDataItem, xpp)
+                else -> readUnknown(xpp)
             }
-            KdbContext.GroupCustomDataItem -> when {
-                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> groupCustomDataKey = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> groupCustomDataValue = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> readDateInstant(xpp) // Ignore
+            KdbContext.GroupCustomDataItem -> when (element) {
+                KdbElement.Key -> groupCustomDataKey = readString(xpp)
+                KdbElement.Value -> groupCustomDataValue = readString(xpp)
+                KdbElement.LastModTime -> readDateInstant(xpp) // Ignore
                 else -> readUnknown(xpp)
             }
 
 
-            KdbContext.Entry -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxEntry?.nodeId = NodeIdUUID(readUuid(xpp))
-            } else if (name.equals(DatabaseKDBXXML.ElemIcon, ignoreCase = true)) {
-                ctxEntry?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomIconID, ignoreCase = true)) {
-                val iconUUID = readUuid(xpp)
-                ctxEntry?.icon?.custom = mDatabase.getCustomIcon(iconUUID) ?: IconImageCustom(iconUUID)
-            } else if (name.equals(DatabaseKDBXXML.ElemFgColor, ignoreCase = true)) {
-                ctxEntry?.foregroundColor = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemBgColor, ignoreCase = true)) {
-                ctxEntry?.backgroundColor = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemOverrideUrl, ignoreCase = true)) {
-                ctxEntry?.overrideURL = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemQualityCheck, ignoreCase = true)) {
-                ctxEntry?.qualityCheck = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemTags, ignoreCase = true)) {
-                ctxEntry?.tags = readTags(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemPreviousParentGroup, ignoreCase = true)) {
-                ctxEntry?.previousParentGroup = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryTimes, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemString, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryString, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemBinary, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryBinary, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoType, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryAutoType, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryCustomData, xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemHistory, ignoreCase = true)) {
-                if (!entryInHistory) {
-                    ctxHistoryBase = ctxEntry
-                    return switchContext(ctx, KdbContext.EntryHistory, xpp)
-                } else {
-                    readUnknown(xpp)
+            KdbContext.Entry -> when (element) {
+                KdbElement.Uuid -> ctxEntry?.nodeId = NodeIdUUID(readUuid(xpp))
+                KdbElement.Icon -> ctxEntry?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
+                KdbElement.CustomIconID -> {
+                    val iconUUID = readUuid(xpp)
+                    ctxEntry?.icon?.custom = mDatabase.getCustomIcon(iconUUID) ?: IconImageCustom(iconUUID)
                 }
-            } else {
-                readUnknown(xpp)
+                KdbElement.FgColor -> ctxEntry?.foregroundColor = readString(xpp)
+                KdbElement.BgColor -> ctxEntry?.backgroundColor = readString(xpp)
+                KdbElement.OverrideUrl -> ctxEntry?.overrideURL = readString(xpp)
+                KdbElement.QualityCheck -> ctxEntry?.qualityCheck = readBool(xpp, true)
+                KdbElement.Tags -> ctxEntry?.tags = readTags(xpp)
+                KdbElement.PreviousParentGroup -> ctxEntry?.previousParentGroup = readUuid(xpp)
+                KdbElement.Times -> return switchContext(ctx, KdbContext.EntryTimes, xpp)
+                KdbElement.Field -> return switchContext(ctx, KdbContext.EntryString, xpp)
+                KdbElement.Binary -> return switchContext(ctx, KdbContext.EntryBinary, xpp)
+                KdbElement.AutoType -> return switchContext(ctx, KdbContext.EntryAutoType, xpp)
+                KdbElement.CustomData -> return switchContext(ctx, KdbContext.EntryCustomData, xpp)
+                KdbElement.History -> {
+                    if (!entryInHistory) {
+                        ctxHistoryBase = ctxEntry
+                        return switchContext(ctx, KdbContext.EntryHistory, xpp)
+                    } else {
+                        readUnknown(xpp)
+                    }
+                }
+                else -> readUnknown(xpp)
             }
-            KdbContext.EntryCustomData -> if (name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryCustomDataItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryCustomData -> when (element) {
+                KdbElement.StringDictExItem -> return switchContext(ctx, KdbContext.EntryCustomDataItem, xpp)
+                else -> readUnknown(xpp)
             }
-            KdbContext.EntryCustomDataItem -> when {
-                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> entryCustomDataKey = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> entryCustomDataValue = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> readDateInstant(xpp) // Ignore
+            KdbContext.EntryCustomDataItem -> when (element) {
+                KdbElement.Key -> entryCustomDataKey = readString(xpp)
+                KdbElement.Value -> entryCustomDataValue = readString(xpp)
+                KdbElement.LastModTime -> readDateInstant(xpp) // Ignore
                 else -> readUnknown(xpp)
             }
 
@@ -607,77 +701,71 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
                             ctxEntry
                         }
 
-                when {
-                    name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> tl?.lastModificationTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemCreationTime, ignoreCase = true) -> tl?.creationTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemLastAccessTime, ignoreCase = true) -> tl?.lastAccessTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemExpiryTime, ignoreCase = true) -> tl?.expiryTime = readDateInstant(xpp)
-                    name.equals(DatabaseKDBXXML.ElemExpires, ignoreCase = true) -> tl?.expires = readBool(xpp, false)
-                    name.equals(DatabaseKDBXXML.ElemUsageCount, ignoreCase = true) -> tl?.usageCount = readULong(xpp, UnsignedLong(0))
-                    name.equals(DatabaseKDBXXML.ElemLocationChanged, ignoreCase = true) -> tl?.locationChanged = readDateInstant(xpp)
+                when (element) {
+                    KdbElement.LastModTime -> tl?.lastModificationTime = readDateInstant(xpp)
+                    KdbElement.CreationTime -> tl?.creationTime = readDateInstant(xpp)
+                    KdbElement.LastAccessTime -> tl?.lastAccessTime = readDateInstant(xpp)
+                    KdbElement.ExpiryTime -> tl?.expiryTime = readDateInstant(xpp)
+                    KdbElement.Expires -> tl?.expires = readBool(xpp, false)
+                    KdbElement.UsageCount -> tl?.usageCount = readULong(xpp, UnsignedLong(0))
+                    KdbElement.LocationChanged -> tl?.locationChanged = readDateInstant(xpp)
                     else -> readUnknown(xpp)
                 }
             }
 
-            KdbContext.EntryString -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                ctxStringName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
-                ctxStringValue = readProtectedString(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryString -> when (element) {
+                KdbElement.Key -> ctxStringName = readString(xpp)
+                KdbElement.Value -> ctxStringValue = readProtectedString(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.EntryBinary -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                ctxBinaryName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
-                ctxBinaryValue = readBinary(xpp)
+            KdbContext.EntryBinary -> when (element) {
+                KdbElement.Key -> ctxBinaryName = readString(xpp)
+                KdbElement.Value -> ctxBinaryValue = readBinary(xpp)
+                else -> {
+                    // Ignore
+                }
             }
 
-            KdbContext.EntryAutoType -> if (name.equals(DatabaseKDBXXML.ElemAutoTypeEnabled, ignoreCase = true)) {
-                ctxEntry?.autoType?.enabled = readBool(xpp, true)
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeObfuscation, ignoreCase = true)) {
-                ctxEntry?.autoType?.obfuscationOptions = readUInt(xpp, UnsignedInt(0))
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeDefaultSeq, ignoreCase = true)) {
-                ctxEntry?.autoType?.defaultSequence = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeItem, ignoreCase = true)) {
-                return switchContext(ctx, KdbContext.EntryAutoTypeItem, xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryAutoType -> when (element) {
+                KdbElement.AutoTypeEnabled -> ctxEntry?.autoType?.enabled = readBool(xpp, true)
+                KdbElement.AutoTypeObfuscation -> ctxEntry?.autoType?.obfuscationOptions = readUInt(xpp, UnsignedInt(0))
+                KdbElement.AutoTypeDefaultSeq -> ctxEntry?.autoType?.defaultSequence = readString(xpp)
+                KdbElement.AutoTypeItem -> return switchContext(ctx, KdbContext.EntryAutoTypeItem, xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.EntryAutoTypeItem -> if (name.equals(DatabaseKDBXXML.ElemWindow, ignoreCase = true)) {
-                ctxATName = readString(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemKeystrokeSequence, ignoreCase = true)) {
-                ctxATSeq = readString(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.EntryAutoTypeItem -> when (element) {
+                KdbElement.Window -> ctxATName = readString(xpp)
+                KdbElement.KeystrokeSequence -> ctxATSeq = readString(xpp)
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.EntryHistory -> if (name.equals(DatabaseKDBXXML.ElemEntry, ignoreCase = true)) {
-                ctxEntry = EntryKDBX()
-                ctxEntry?.let { ctxHistoryBase?.addEntryToHistory(it) }
+            KdbContext.EntryHistory -> when (element) {
+                KdbElement.Entry -> {
+                    ctxEntry = EntryKDBX()
+                    ctxEntry?.let { ctxHistoryBase?.addEntryToHistory(it) }
 
-                entryInHistory = true
-                return switchContext(ctx, KdbContext.Entry, xpp)
-            } else {
-                readUnknown(xpp)
+                    entryInHistory = true
+                    return switchContext(ctx, KdbContext.Entry, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.RootDeletedObjects -> if (name.equals(DatabaseKDBXXML.ElemDeletedObject, ignoreCase = true)) {
-                ctxDeletedObject = DeletedObject()
-                ctxDeletedObject?.let { mDatabase.addDeletedObject(it) }
+            KdbContext.RootDeletedObjects -> when (element) {
+                KdbElement.DeletedObject -> {
+                    ctxDeletedObject = DeletedObject()
+                    ctxDeletedObject?.let { mDatabase.addDeletedObject(it) }
 
-                return switchContext(ctx, KdbContext.DeletedObject, xpp)
-            } else {
-                readUnknown(xpp)
+                    return switchContext(ctx, KdbContext.DeletedObject, xpp)
+                }
+                else -> readUnknown(xpp)
             }
 
-            KdbContext.DeletedObject -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxDeletedObject?.uuid = readUuid(xpp)
-            } else if (name.equals(DatabaseKDBXXML.ElemDeletionTime, ignoreCase = true)) {
-                ctxDeletedObject?.deletionTime = readDateInstant(xpp)
-            } else {
-                readUnknown(xpp)
+            KdbContext.DeletedObject -> when (element) {
+                KdbElement.Uuid -> ctxDeletedObject?.uuid = readUuid(xpp)
+                KdbElement.DeletionTime -> ctxDeletedObject?.deletionTime = readDateInstant(xpp)
+                else -> readUnknown(xpp)
             }
         }
 
@@ -689,17 +777,18 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
         // (xpp.getEventType() == XmlPullParser.END_TAG);
 
         val name = xpp.name
-        if (ctx == KdbContext.KeePassFile && name.equals(DatabaseKDBXXML.ElemDocNode, ignoreCase = true)) {
+        val element = kdbElement(name)
+        if (ctx == KdbContext.KeePassFile && element == KdbElement.DocNode) {
             return KdbContext.Null
-        } else if (ctx == KdbContext.Meta && name.equals(DatabaseKDBXXML.ElemMeta, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Meta && element == KdbElement.Meta) {
             return KdbContext.KeePassFile
-        } else if (ctx == KdbContext.Root && name.equals(DatabaseKDBXXML.ElemRoot, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Root && element == KdbElement.Root) {
             return KdbContext.KeePassFile
-        } else if (ctx == KdbContext.MemoryProtection && name.equals(DatabaseKDBXXML.ElemMemoryProt, ignoreCase = true)) {
+        } else if (ctx == KdbContext.MemoryProtection && element == KdbElement.MemoryProt) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomIcons && name.equals(DatabaseKDBXXML.ElemCustomIcons, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomIcons && element == KdbElement.CustomIcons) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomIcon && name.equals(DatabaseKDBXXML.ElemCustomIconItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomIcon && element == KdbElement.CustomIconItem) {
             val iconData = customIconData
             if (customIconID != DatabaseVersioned.UUID_ZERO && iconData != null) {
                 mDatabase.addCustomIcon(customIconID,
@@ -716,11 +805,11 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             customIconLastModificationTime = null
             customIconData = null
             return KdbContext.CustomIcons
-        } else if (ctx == KdbContext.Binaries && name.equals(DatabaseKDBXXML.ElemBinaries, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Binaries && element == KdbElement.Binaries) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomData && name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomData && element == KdbElement.CustomData) {
             return KdbContext.Meta
-        } else if (ctx == KdbContext.CustomDataItem && name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.CustomDataItem && element == KdbElement.StringDictExItem) {
             customDataKey?.let { dataKey ->
                 customDataValue?.let { dataValue ->
                     mDatabase.customData.put(CustomDataItem(dataKey,
@@ -731,7 +820,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             customDataValue = null
             customDataLastModificationTime = null
             return KdbContext.CustomData
-        } else if (ctx == KdbContext.Group && name.equals(DatabaseKDBXXML.ElemGroup, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Group && element == KdbElement.Group) {
             if (ctxGroup != null && ctxGroup?.id == DatabaseVersioned.UUID_ZERO) {
                 ctxGroup?.nodeId = mDatabase.newGroupId()
                 mDatabase.addGroupIndex(ctxGroup!!)
@@ -746,11 +835,11 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
                 ctxGroup = ctxGroups.peek()
                 return KdbContext.Group
             }
-        } else if (ctx == KdbContext.GroupTimes && name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
+        } else if (ctx == KdbContext.GroupTimes && element == KdbElement.Times) {
             return KdbContext.Group
-        } else if (ctx == KdbContext.GroupCustomData && name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
+        } else if (ctx == KdbContext.GroupCustomData && element == KdbElement.CustomData) {
             return KdbContext.Group
-        } else if (ctx == KdbContext.GroupCustomDataItem && name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.GroupCustomDataItem && element == KdbElement.StringDictExItem) {
             groupCustomDataKey?.let { customDataKey ->
                 groupCustomDataValue?.let { customDataValue ->
                     ctxGroup?.customData?.put(CustomDataItem(customDataKey, customDataValue))
@@ -760,7 +849,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             groupCustomDataValue = null
             return KdbContext.GroupCustomData
 
-        } else if (ctx == KdbContext.Entry && name.equals(DatabaseKDBXXML.ElemEntry, ignoreCase = true)) {
+        } else if (ctx == KdbContext.Entry && element == KdbElement.Entry) {
 
             if (ctxEntry?.id == DatabaseVersioned.UUID_ZERO)
                 ctxEntry?.nodeId = mDatabase.newEntryId()
@@ -774,16 +863,16 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             }
 
             return KdbContext.Group
-        } else if (ctx == KdbContext.EntryTimes && name.equals(DatabaseKDBXXML.ElemTimes, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryTimes && element == KdbElement.Times) {
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryString && name.equals(DatabaseKDBXXML.ElemString, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryString && element == KdbElement.Field) {
             if (ctxStringName != null && ctxStringValue != null)
                 ctxEntry?.putField(ctxStringName!!, ctxStringValue!!)
             ctxStringName = null
             ctxStringValue = null
 
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryBinary && name.equals(DatabaseKDBXXML.ElemBinary, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryBinary && element == KdbElement.Binary) {
             if (ctxBinaryName != null && ctxBinaryValue != null) {
                 ctxEntry?.putAttachment(Attachment(ctxBinaryName!!, ctxBinaryValue!!), mDatabase.attachmentPool)
             }
@@ -791,18 +880,18 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             ctxBinaryValue = null
 
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryAutoType && name.equals(DatabaseKDBXXML.ElemAutoType, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryAutoType && element == KdbElement.AutoType) {
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryAutoTypeItem && name.equals(DatabaseKDBXXML.ElemAutoTypeItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryAutoTypeItem && element == KdbElement.AutoTypeItem) {
             if (ctxATName != null && ctxATSeq != null)
                 ctxEntry?.autoType?.add(ctxATName!!, ctxATSeq!!)
             ctxATName = null
             ctxATSeq = null
 
             return KdbContext.EntryAutoType
-        } else if (ctx == KdbContext.EntryCustomData && name.equals(DatabaseKDBXXML.ElemCustomData, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryCustomData && element == KdbElement.CustomData) {
             return KdbContext.Entry
-        } else if (ctx == KdbContext.EntryCustomDataItem && name.equals(DatabaseKDBXXML.ElemStringDictExItem, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryCustomDataItem && element == KdbElement.StringDictExItem) {
             entryCustomDataKey?.let { customDataKey ->
                 entryCustomDataValue?.let { customDataValue ->
                     ctxEntry?.customData?.put(CustomDataItem(customDataKey, customDataValue))
@@ -811,12 +900,12 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             entryCustomDataKey = null
             entryCustomDataValue = null
             return KdbContext.EntryCustomData
-        } else if (ctx == KdbContext.EntryHistory && name.equals(DatabaseKDBXXML.ElemHistory, ignoreCase = true)) {
+        } else if (ctx == KdbContext.EntryHistory && element == KdbElement.History) {
             entryInHistory = false
             return KdbContext.Entry
-        } else if (ctx == KdbContext.RootDeletedObjects && name.equals(DatabaseKDBXXML.ElemDeletedObjects, ignoreCase = true)) {
+        } else if (ctx == KdbContext.RootDeletedObjects && element == KdbElement.DeletedObjects) {
             return KdbContext.Root
-        } else if (ctx == KdbContext.DeletedObject && name.equals(DatabaseKDBXXML.ElemDeletedObject, ignoreCase = true)) {
+        } else if (ctx == KdbContext.DeletedObject && element == KdbElement.DeletedObject) {
             ctxDeletedObject = null
             return KdbContext.RootDeletedObjects
         } else {
@@ -1083,6 +1172,12 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
 
         private val TAG = DatabaseInputKDBX::class.java.name
 
+        private const val STAGE_HMAC = "KDBX HMAC stage"
+        private const val STAGE_DECRYPT = "KDBX decrypt stage"
+        private const val STAGE_INFLATE = "KDBX inflate stage"
+        private const val HMAC_READ_AHEAD_BLOCKS = 4
+        private const val BINARY_BUFFER_SIZE = 64 * 1024
+
         private val DEFAULT_HISTORY_DAYS = UnsignedInt(365)
     }
 
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file.output
+
+import java.io.IOException
+import java.io.OutputStream
+import java.util.*
+
+/**
+ * Streaming XML writer dedicated to the KDBX document,
+ * element names are encoded once, and texts, Base64 values, UUIDs and dates
+ * are encoded in UTF-8 directly in a reusable buffer, without intermediate String
+ */
+class DatabaseKDBXXMLWriter(private val outputStream: OutputStream) {
+
+    private val buffer = ByteArray(BUFFER_SIZE)
+    private var position = 0
+
+    private val elementNames = HashMap<String, ByteArray>()
+    // Start tag not closed yet, to add attributes or write an empty element
+    private var startTagOpen = false
+
+    private val scratch = ByteArray(16)
+    private val base64Remaining = ByteArray(3)
+    private var base64RemainingLength = 0
+    private val utcCalendar = GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.ROOT)
+
+    @Throws(IOException::class)
+    fun startDocument() {
+        writeBytes(XML_DECLARATION)
+    }
+
+    @Throws(IOException::class)
+    fun endDocument() {
+        closeStartTag()
+        flushBuffer()
+        outputStream.flush()
+    }
+
+    @Throws(IOException::class)
+    fun startTag(name: String) {
+        closeStartTag()
+        writeByte('<'.code)
+        writeBytes(elementName(name))
+        startTagOpen = true
+    }
+
+    @Throws(IllegalStateException::class, IOException::class)
+    fun attribute(name: String, value: String) {
+        if (!startTagOpen)
+            throw IllegalStateException("Attribute $name outside of a start tag")
+        writeByte(' '.code)
+        writeBytes(elementName(name))
+        writeByte('='.code)
+        writeByte('"'.code)
+        writeEscaped(value, filter = false, attribute = true)
+        writeByte('"'.code)
+    }
+
+    @Throws(IOException::class)
+    fun endTag(name: String) {
+        if (startTagOpen) {
+            writeBytes(EMPTY_ELEMENT_END)
+            startTagOpen = false
+        } else {
+            writeByte('<'.code)
+            writeByte('/'.code)
+            writeBytes(elementName(name))
+            writeByte('>'.code)
+        }
+    }
+
+    /**
+     * Write [text], a character not allowed in XML throws an IllegalArgumentException
+     */
+    @Throws(IllegalArgumentException::class, IOException::class)
+    fun text(text: String) {
+        closeStartTag()
+        writeEscaped(text, filter = false, attribute = false)
+    }
+
+    /**
+     * Write [text] without the characters not allowed in XML
+     */
+    @Throws(IOException::class)
+    fun safeText(text: String) {
+        closeStartTag()
+        writeEscaped(text, filter = true, attribute = false)
+    }
+
+    @Throws(IOException::class)
+    fun textLong(value: Long) {
+        closeStartTag()
+        if (value == Long.MIN_VALUE) {
+            writeBytes(value.toString().toByteArray())
+            return
+        }
+        var number = value
+        if (number < 0) {
+            writeByte('-'.code)
+            number = -number
+        }
+        ensureCapacity(MAX_LONG_DIGITS)
+        var digits = 1
+        var rest = number / 10
+        while (rest > 0) {
+            digits++
+            rest /= 10
+        }
+        var index = position + digits - 1
+        do {
+            buffer[index--] = ('0'.code + (number % 10).toInt()).toByte()
+            number /= 10
+        } while (number > 0)
+        position += digits
+    }
+
+    @Throws(IOException::class)
+    fun textBase64(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        textBase64Update(data, offset, length)
+        textBase64End()
+    }
+
+    /**
+     * Append [length] bytes to the Base64 text, the text is ended with [textBase64End]
+     */
+    @Throws(IOException::class)
+    fun textBase64Update(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        closeStartTag()
+        var index = offset
+        val end = offset + length
+        // Complete the previous group
+        while (base64RemainingLength in 1..2 && index < end) {
+            base64Remaining[base64RemainingLength++] = data[index++]
+            if (base64RemainingLength == 3) {
+                writeBase64Group(base64Remaining, 0)
+                base64RemainingLength = 0
+            }
+        }
+        while (end - index >= 3) {
+            writeBase64Group(data, index)
+            index += 3
+        }
+        while (index < end) {
+            base64Remaining[base64RemainingLength++] = data[index++]
+        }
+    }
+
+    @Throws(IOException::class)
+    fun textBase64End() {
+        closeStartTag()
+        if (base64RemainingLength == 0)
+            return
+        ensureCapacity(4)
+        val b0 = base64Remaining[0].toInt() and 0xFF
+        buffer[position++] = BASE64_ALPHABET[b0 ushr 2]
+        if (base64RemainingLength == 1) {
+            buffer[position++] = BASE64_ALPHABET[(b0 and 0x03) shl 4]
+            buffer[position++] = BASE64_PADDING
+        } else {
+            val b1 = base64Remaining[1].toInt() and 0xFF
+            buffer[position++] = BASE64_ALPHABET[((b0 and 0x03) shl 4) or (b1 ushr 4)]
+            buffer[position++] = BASE64_ALPHABET[(b1 and 0x0F) shl 2]
+        }
+        buffer[position++] = BASE64_PADDING
+        base64RemainingLength = 0
+    }
+
+    /**
+     * Write the Base64 of the 16 bytes KDBX representation of [uuid]
+     */
+    @Throws(IOException::class)
+    fun textUuid(uuid: UUID) {
+        val mostSignificantBits = uuid.mostSignificantBits
+        val leastSignificantBits = uuid.leastSignificantBits
+        for (i in 0 until 8) {
+            scratch[i] = (mostSignificantBits.ushr(8 * i) and 0xFF).toByte()
+            scratch[i + 8] = (leastSignificantBits.ushr(8 * i) and 0xFF).toByte()
+        }
+        textBase64(scratch, 0, 16)
+    }
+
+    /**
+     * Write the Base64 of the 8 bytes little endian [value]
+     */
+    @Throws(IOException::class)
+    fun textBase64Long(value: Long) {
+        for (i in 0 until 8) {
+            scratch[i] = (value.ushr(8 * i) and 0xFF).toByte()
+        }
+        textBase64(scratch, 0, 8)
+    }
+
+    /**
+     * Write [date] in UTC with the "yyyy-MM-dd'T'HH:mm:ss'Z'" format
+     */
+    @Throws(IOException::class)
+    fun textDate(date: Date) {
+        closeStartTag()
+        utcCalendar.time = date
+        val year = utcCalendar.get(Calendar.YEAR)
+        if (year > 9999) {
+            writeBytes(year.toString().toByteArray())
+        } else {
+            writeDigits(year, 4)
+        }
+        writeByte('-'.code)
+        writeDigits(utcCalendar.get(Calendar.MONTH) + 1, 2)
+        writeByte('-'.code)
+        writeDigits(utcCalendar.get(Calendar.DAY_OF_MONTH), 2)
+        writeByte('T'.code)
+        writeDigits(utcCalendar.get(Calendar.HOUR_OF_DAY), 2)
+        writeByte(':'.code)
+        writeDigits(utcCalendar.get(Calendar.MINUTE), 2)
+        writeByte(':'.code)
+        writeDigits(utcCalendar.get(Calendar.SECOND), 2)
+        writeByte('Z'.code)
+    }
+
+    private fun elementName(name: String): ByteArray {
+        return elementNames.getOrPut(name) {
+            name.toByteArray(Charsets.UTF_8)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun closeStartTag() {
+        if (startTagOpen) {
+            writeByte('>'.code)
+            startTagOpen = false
+        }
+    }
+
+    @Throws(IllegalArgumentException::class, IOException::class)
+    private fun writeEscaped(text: String, filter: Boolean, attribute: Boolean) {
+        var index = 0
+        val length = text.length
+        while (index < length) {
+            val character = text[index]
+            val code = character.code
+            ensureCapacity(MAX_ESCAPED_CHAR_SIZE)
+            when {
+                character == '&' -> writeAscii(ESCAPED_AMP)
+                character == '<' -> writeAscii(ESCAPED_LT)
+                character == '>' -> writeAscii(ESCAPED_GT)
+                character == '"' && attribute -> writeAscii(ESCAPED_QUOT)
+                code == 0x9 || code == 0xA || code == 0xD -> {
+                    if (attribute) {
+                        writeAscii("&#$code;")
+                    } else {
+                        buffer[position++] = code.toByte()
+                    }
+                }
+                code in 0x20..0x7F -> buffer[position++] = code.toByte()
+                code < 0x20 -> {
+                    if (!filter)
+                        throw IllegalArgumentException("Illegal character (U+%04x)".format(code))
+                }
+                code < 0x800 -> {
+                    buffer[position++] = (0xC0 or (code shr 6)).toByte()
+                    buffer[position++] = (0x80 or (code and 0x3F)).toByte()
+                }
+                code in 0xD800..0xDFFF -> {
+                    if (!filter) {
+                        val low = if (index + 1 < length) text[index + 1] else '\u0000'
+                        if (!Character.isHighSurrogate(character) || !Character.isLowSurrogate(low))
+                            throw IllegalArgumentException("Illegal character (U+%04x)".format(code))
+                        val codePoint = Character.toCodePoint(character, low)
+                        buffer[position++] = (0xF0 or (codePoint shr 18)).toByte()
+                        buffer[position++] = (0x80 or ((codePoint shr 12) and 0x3F)).toByte()
+                        buffer[position++] = (0x80 or ((codePoint shr 6) and 0x3F)).toByte()
+                        buffer[position++] = (0x80 or (codePoint and 0x3F)).toByte()
+                        index++
+                    }
+                }
+                code == 0xFFFE || code == 0xFFFF -> {
+                    if (!filter)
+                        throw IllegalArgumentException("Illegal character (U+%04x)".format(code))
+                }
+                else -> {
+                    buffer[position++] = (0xE0 or (code shr 12)).toByte()
+                    buffer[position++] = (0x80 or ((code shr 6) and 0x3F)).toByte()
+                    buffer[position++] = (0x80 or (code and 0x3F)).toByte()
+                }
+            }
+            index++
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeBase64Group(data: ByteArray, offset: Int) {
+        ensureCapacity(4)
+        val b0 = data[offset].toInt() and 0xFF
+        val b1 = data[offset + 1].toInt() and 0xFF
+        val b2 = data[offset + 2].toInt() and 0xFF
+        buffer[position++] = BASE64_ALPHABET[b0 ushr 2]
+        buffer[position++] = BASE64_ALPHABET[((b0 and 0x03) shl 4) or (b1 ushr 4)]
+        buffer[position++] = BASE64_ALPHABET[((b1 and 0x0F) shl 2) or (b2 ushr 6)]
+        buffer[position++] = BASE64_ALPHABET[b2 and 0x3F]
+    }
+
+    @Throws(IOException::class)
+    private fun writeDigits(value: Int, digits: Int) {
+        ensureCapacity(digits)
+        var number = value
+        for (i in digits - 1 downTo 0) {
+            buffer[position + i] = ('0'.code + number % 10).toByte()
+            number /= 10
+        }
+        position += digits
+    }
+
+    // Only for ASCII constants, the capacity is checked by the caller
+    private fun writeAscii(text: String) {
+        for (character in text) {
+            buffer[position++] = character.code.toByte()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeByte(value: Int) {
+        ensureCapacity(1)
+        buffer[position++] = value.toByte()
+    }
+
+    @Throws(IOException::class)
+    private fun writeBytes(bytes: ByteArray) {
+        if (bytes.size > buffer.size) {
+            flushBuffer()
+            outputStream.write(bytes)
+        } else {
+            ensureCapacity(bytes.size)
+            System.arraycopy(bytes, 0, buffer, position, bytes.size)
+            position += bytes.size
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun ensureCapacity(length: Int) {
+        if (position + length > buffer.size)
+            flushBuffer()
+    }
+
+    @Throws(IOException::class)
+    private fun flushBuffer() {
+        if (position > 0) {
+            outputStream.write(buffer, 0, position)
+            position = 0
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 16 * 1024
+        private const val MAX_ESCAPED_CHAR_SIZE = 6
+        private const val MAX_LONG_DIGITS = 19
+
+        private val XML_DECLARATION =
+                "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>".toByteArray()
+        private val EMPTY_ELEMENT_END = " />".toByteArray()
+
+        private const val ESCAPED_AMP = "&amp;"
+        private const val ESCAPED_LT = "&lt;"
+        private const val ESCAPED_GT = "&gt;"
+        private const val ESCAPED_QUOT = "&quot;"
+
+        private val BASE64_ALPHABET =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toByteArray()
+        private const val BASE64_PADDING = '='.code.toByte()
+    }
+}
@@ -19,9 +19,8 @@
  */
 package com.kunzisoft.keepass.database.file.output
 
-import android.util.Base64
+import android.os.Build
 import android.util.Log
-import android.util.Xml
 import com.kunzisoft.encrypt.StreamCipher
 import com.kunzisoft.keepass.database.action.node.NodeHandler
 import com.kunzisoft.keepass.database.crypto.CrsAlgorithm
@@ -29,7 +28,6 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
 import com.kunzisoft.keepass.database.element.*
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
-import com.kunzisoft.keepass.database.element.database.DatabaseKDBX.Companion.BASE_64_FLAG
 import com.kunzisoft.keepass.database.element.database.DatabaseVersioned
 import com.kunzisoft.keepass.database.element.entry.AutoType
 import com.kunzisoft.keepass.database.element.entry.EntryKDBX
@@ -42,15 +40,16 @@ import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VER
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_41
 import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
+import com.kunzisoft.keepass.stream.AdaptiveGZIPOutputStream
+import com.kunzisoft.keepass.stream.DeflateLevelOutputStream
 import com.kunzisoft.keepass.stream.HashedBlockOutputStream
 import com.kunzisoft.keepass.stream.HmacBlockOutputStream
+import com.kunzisoft.keepass.stream.ParallelGZIPOutputStream
 import com.kunzisoft.keepass.utils.*
-import org.xmlpull.v1.XmlSerializer
 import java.io.IOException
 import java.io.OutputStream
 import java.security.SecureRandom
 import java.util.*
-import java.util.zip.GZIPOutputStream
 import javax.crypto.Cipher
 import javax.crypto.CipherOutputStream
 import kotlin.experimental.or
@@ -61,7 +60,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     : DatabaseOutput<DatabaseHeaderKDBX>(outputStream) {
 
     private var randomStream: StreamCipher? = null
-    private lateinit var xml: XmlSerializer
+    private lateinit var xml: DatabaseKDBXXMLWriter
     private var header: DatabaseHeaderKDBX? = null
     private var hashOfHeader: ByteArray? = null
     private var headerHmac: ByteArray? = null
@@ -84,10 +83,10 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 attachStreamEncryptor(header!!, HmacBlockOutputStream(mOutputStream, mDatabaseKDBX.hmacKey!!))
             }
 
-            val xmlOutputStream: OutputStream
+            var xmlOutputStream: OutputStream? = null
             try {
                 xmlOutputStream = when(mDatabaseKDBX.compressionAlgorithm) {
-                    CompressionAlgorithm.GZip -> GZIPOutputStream(osPlain)
+                    CompressionAlgorithm.GZip -> gzipOutputStream(osPlain)
                     else -> osPlain
                 }
 
@@ -101,6 +100,11 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 throw DatabaseOutputException(e)
             } catch (e: IllegalStateException) {
                 throw DatabaseOutputException(e)
+            } finally {
+                // Deflate threads of a failed output, nothing to do if the stream is closed
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    (xmlOutputStream as? ParallelGZIPOutputStream)?.abort()
+                }
             }
 
         } catch (e: IOException) {
@@ -108,6 +112,20 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         }
     }
 
+    /**
+     * Blocks are deflated on all cores when sync flush is available,
+     * the result is a standard GZIP stream in both cases
+     */
+    @Throws(IOException::class)
+    private fun gzipOutputStream(outputStream: OutputStream): OutputStream {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && Runtime.getRuntime().availableProcessors() > 1) {
+            ParallelGZIPOutputStream(outputStream)
+        } else {
+            AdaptiveGZIPOutputStream(outputStream)
+        }
+    }
+
     @Throws(IOException::class)
     private fun outputInnerHeader(database: DatabaseKDBX,
                                   header: DatabaseHeaderKDBX,
@@ -124,9 +142,13 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         dataOutputStream.write(header.innerRandomStreamKey)
 
         val binaryCache = database.binaryCache
+        val binaryBuffer = ByteArray(BINARY_BUFFER_SIZE)
         database.attachmentPool.doForEachOrderedBinaryWithoutDuplication { _, binary ->
             // Force decompression to add binary in header
             binary.decompress(binaryCache)
+            // Already compressed content is stored, it would only be deflated again for nothing
+            val storeBinary = dataOutputStream is DeflateLevelOutputStream
+                    && binary.isIncompressible(binaryCache)
             // Write type binary
             dataOutputStream.writeByte(DatabaseHeaderKDBX.PwDbInnerHeaderV4Fields.Binary)
             // Write size
@@ -138,13 +160,22 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
             }
             dataOutputStream.writeByte(flag)
 
+            if (storeBinary) {
+                (dataOutputStream as DeflateLevelOutputStream)
+                        .setDeflateLevel(DeflateLevelOutputStream.LEVEL_STORE)
+            }
             binary.getInputDataStream(binaryCache).use { inputStream ->
-                inputStream.readAllBytes { buffer ->
-                    dataOutputStream.write(buffer)
-                }
+                inputStream.copyBytesTo(dataOutputStream, binary.getSize(), binaryBuffer)
+            }
+            if (storeBinary) {
+                (dataOutputStream as DeflateLevelOutputStream)
+                        .setDeflateLevel(DeflateLevelOutputStream.LEVEL_DEFAULT)
             }
         }
 
+        // Sizes of the decompressed attachments have changed
+        database.attachmentPool.notifyBinariesChanged()
+
         dataOutputStream.writeByte(DatabaseHeaderKDBX.PwDbInnerHeaderV4Fields.EndOfHeader)
         dataOutputStream.write4BytesUInt(UnsignedInt(0))
     }
@@ -152,17 +183,15 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun outputDatabase(outputStream: OutputStream) {
 
-        xml = Xml.newSerializer()
+        xml = DatabaseKDBXXMLWriter(outputStream)
+        xml.startDocument()
 
-        xml.setOutput(outputStream, "UTF-8")
-        xml.startDocument("UTF-8", true)
-
-        xml.startTag(null, DatabaseKDBXXML.ElemDocNode)
+        xml.startTag(DatabaseKDBXXML.ElemDocNode)
 
         writeMeta()
 
         mDatabaseKDBX.rootGroup?.let { root ->
-            xml.startTag(null, DatabaseKDBXXML.ElemRoot)
+            xml.startTag(DatabaseKDBXXML.ElemRoot)
             startGroup(root)
             val groupStack = Stack<GroupKDBX>()
             groupStack.push(root)
@@ -204,7 +233,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 throw RuntimeException("Writing groups failed")
 
             while (groupStack.size > 1) {
-                xml.endTag(null, DatabaseKDBXXML.ElemGroup)
+                xml.endTag(DatabaseKDBXXML.ElemGroup)
                 groupStack.pop()
             }
         }
@@ -213,20 +242,20 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
         writeDeletedObjects(mDatabaseKDBX.deletedObjects)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemRoot)
+        xml.endTag(DatabaseKDBXXML.ElemRoot)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemDocNode)
+        xml.endTag(DatabaseKDBXXML.ElemDocNode)
         xml.endDocument()
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeMeta() {
-        xml.startTag(null, DatabaseKDBXXML.ElemMeta)
+        xml.startTag(DatabaseKDBXXML.ElemMeta)
 
         writeString(DatabaseKDBXXML.ElemGenerator, mDatabaseKDBX.localizedAppName)
 
         if (hashOfHeader != null) {
-            writeString(DatabaseKDBXXML.ElemHeaderHash, String(Base64.encode(hashOfHeader!!, BASE_64_FLAG)))
+            writeBase64(DatabaseKDBXXML.ElemHeaderHash, hashOfHeader!!)
         }
 
         if (!header!!.version.isBefore(FILE_VERSION_40)) {
@@ -264,7 +293,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
         writeCustomData(mDatabaseKDBX.customData)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemMeta)
+        xml.endTag(DatabaseKDBXXML.ElemMeta)
     }
 
     @Throws(DatabaseOutputException::class)
@@ -341,7 +370,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun startGroup(group: GroupKDBX) {
-        xml.startTag(null, DatabaseKDBXXML.ElemGroup)
+        xml.startTag(DatabaseKDBXXML.ElemGroup)
         writeUuid(DatabaseKDBXXML.ElemUuid, group.id)
         writeString(DatabaseKDBXXML.ElemName, group.title)
         writeString(DatabaseKDBXXML.ElemNotes, group.notes)
@@ -364,13 +393,13 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun endGroup() {
-        xml.endTag(null, DatabaseKDBXXML.ElemGroup)
+        xml.endTag(DatabaseKDBXXML.ElemGroup)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeEntry(entry: EntryKDBX, isHistory: Boolean) {
 
-        xml.startTag(null, DatabaseKDBXXML.ElemEntry)
+        xml.startTag(DatabaseKDBXXML.ElemEntry)
 
         writeUuid(DatabaseKDBXXML.ElemUuid, entry.id)
         writeLong(DatabaseKDBXXML.ElemIcon, entry.icon.standard.id.toLong())
@@ -399,38 +428,44 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
             writeEntryHistory(entry.history)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemEntry)
+        xml.endTag(DatabaseKDBXXML.ElemEntry)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeString(name: String, value: String, filterXmlChars: Boolean = false) {
-        var xmlString = value
-
-        xml.startTag(null, name)
-
+        xml.startTag(name)
         if (filterXmlChars) {
-            xmlString = safeXmlString(xmlString)
+            xml.safeText(value)
+        } else {
+            xml.text(value)
         }
+        xml.endTag(name)
+    }
 
-        xml.text(xmlString)
-        xml.endTag(null, name)
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeBase64(name: String, value: ByteArray) {
+        xml.startTag(name)
+        xml.textBase64(value)
+        xml.endTag(name)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeDateInstant(name: String, value: DateInstant) {
         val date = value.date
+        xml.startTag(name)
         if (header!!.version.isBefore(FILE_VERSION_40)) {
-            writeString(name, DatabaseKDBXXML.DateFormatter.format(date))
+            xml.textDate(date)
         } else {
-            val buf = longTo8Bytes(DateKDBXUtil.convertDateToKDBX4Time(date))
-            val b64 = String(Base64.encode(buf, BASE_64_FLAG))
-            writeString(name, b64)
+            xml.textBase64Long(DateKDBXUtil.convertDateToKDBX4Time(date))
         }
+        xml.endTag(name)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeLong(name: String, value: Long) {
-        writeString(name, value.toString())
+        xml.startTag(name)
+        xml.textLong(value)
+        xml.endTag(name)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -446,8 +481,9 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeUuid(name: String, uuid: UUID) {
-        val data = uuidTo16Bytes(uuid)
-        writeString(name, String(Base64.encode(data, BASE_64_FLAG)))
+        xml.startTag(name)
+        xml.textUuid(uuid)
+        xml.endTag(name)
     }
 
     /*
@@ -458,21 +494,23 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     private fun writeEntryBinary(binary : BinaryAttachment) {
         if (binary.length() > 0) {
             if (binary.isProtected) {
-                xml.attribute(null, DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
+                xml.attribute(DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
                 binary.getInputDataStream().use { inputStream ->
                     inputStream.readBytes { buffer ->
                         val encoded = ByteArray(buffer.size)
                         randomStream!!.processBytes(buffer, 0, encoded.size, encoded, 0)
-                        xml.text(String(Base64.encode(encoded, BASE_64_FLAG)))
+                        xml.textBase64Update(encoded)
                     }
                 }
+                xml.textBase64End()
             } else {
-                // Write the XML
+                // Write the XML, chunks are encoded in a single Base64 text
                 binary.getInputDataStream().use { inputStream ->
                     inputStream.readBytes { buffer ->
-                        xml.text(String(Base64.encode(buffer, BASE_64_FLAG)))
+                        xml.textBase64Update(buffer)
                     }
                 }
+                xml.textBase64End()
             }
         }
     }
@@ -482,35 +520,37 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     // With kdbx4, don't use this method because binaries are in header file
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeMetaBinaries() {
-        xml.startTag(null, DatabaseKDBXXML.ElemBinaries)
+        xml.startTag(DatabaseKDBXXML.ElemBinaries)
         // Use indexes because necessarily (binary header ref is the order)
         val binaryCache = mDatabaseKDBX.binaryCache
         mDatabaseKDBX.attachmentPool.doForEachOrderedBinaryWithoutDuplication { index, binary ->
-            xml.startTag(null, DatabaseKDBXXML.ElemBinary)
-            xml.attribute(null, DatabaseKDBXXML.AttrId, index.toString())
+            xml.startTag(DatabaseKDBXXML.ElemBinary)
+            xml.attribute(DatabaseKDBXXML.AttrId, index.toString())
             if (binary.getSize() > 0) {
                 if (binary.isCompressed) {
-                    xml.attribute(null, DatabaseKDBXXML.AttrCompressed, DatabaseKDBXXML.ValTrue)
+                    xml.attribute(DatabaseKDBXXML.AttrCompressed, DatabaseKDBXXML.ValTrue)
                 }
                 try {
                     // Write the XML
                     binary.getInputDataStream(binaryCache).use { inputStream ->
                         inputStream.readAllBytes { buffer ->
-                            xml.text(String(Base64.encode(buffer, BASE_64_FLAG)))
+                            xml.textBase64Update(buffer)
                         }
                     }
                 } catch (e: Exception) {
                     Log.e(TAG, "Unable to write binary", e)
+                } finally {
+                    xml.textBase64End()
                 }
             }
-            xml.endTag(null, DatabaseKDBXXML.ElemBinary)
+            xml.endTag(DatabaseKDBXXML.ElemBinary)
         }
-        xml.endTag(null, DatabaseKDBXXML.ElemBinaries)
+        xml.endTag(DatabaseKDBXXML.ElemBinaries)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeAutoType(autoType: AutoType) {
-        xml.startTag(null, DatabaseKDBXXML.ElemAutoType)
+        xml.startTag(DatabaseKDBXXML.ElemAutoType)
 
         writeBoolean(DatabaseKDBXXML.ElemAutoTypeEnabled, autoType.enabled)
         writeLong(DatabaseKDBXXML.ElemAutoTypeObfuscation, autoType.obfuscationOptions.toKotlinLong())
@@ -520,20 +560,20 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         }
 
         autoType.doForEachAutoTypeItem { key, value ->
-            xml.startTag(null, DatabaseKDBXXML.ElemAutoTypeItem)
+            xml.startTag(DatabaseKDBXXML.ElemAutoTypeItem)
 
-            xml.startTag(null, DatabaseKDBXXML.ElemWindow)
-            xml.text(safeXmlString(key))
-            xml.endTag(null, DatabaseKDBXXML.ElemWindow)
+            xml.startTag(DatabaseKDBXXML.ElemWindow)
+            xml.safeText(key)
+            xml.endTag(DatabaseKDBXXML.ElemWindow)
 
-            xml.startTag(null, DatabaseKDBXXML.ElemKeystrokeSequence)
-            xml.text(safeXmlString(value))
-            xml.endTag(null, DatabaseKDBXXML.ElemKeystrokeSequence)
+            xml.startTag(DatabaseKDBXXML.ElemKeystrokeSequence)
+            xml.safeText(value)
+            xml.endTag(DatabaseKDBXXML.ElemKeystrokeSequence)
 
-            xml.endTag(null, DatabaseKDBXXML.ElemAutoTypeItem)
+            xml.endTag(DatabaseKDBXXML.ElemAutoTypeItem)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemAutoType)
+        xml.endTag(DatabaseKDBXXML.ElemAutoType)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -548,12 +588,12 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         val label = field.name
         val value = field.protectedValue
 
-        xml.startTag(null, DatabaseKDBXXML.ElemString)
-        xml.startTag(null, DatabaseKDBXXML.ElemKey)
-        xml.text(safeXmlString(label))
-        xml.endTag(null, DatabaseKDBXXML.ElemKey)
+        xml.startTag(DatabaseKDBXXML.ElemString)
+        xml.startTag(DatabaseKDBXXML.ElemKey)
+        xml.safeText(label)
+        xml.endTag(DatabaseKDBXXML.ElemKey)
 
-        xml.startTag(null, DatabaseKDBXXML.ElemValue)
+        xml.startTag(DatabaseKDBXXML.ElemValue)
         var protect = value.isProtected
 
         when (label) {
@@ -565,26 +605,26 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         }
 
         if (protect) {
-            xml.attribute(null, DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
+            xml.attribute(DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
             val data = value.toString().toByteArray()
             val encoded = randomStream?.processBytes(data) ?: ByteArray(0)
-            xml.text(String(Base64.encode(encoded, BASE_64_FLAG)))
+            xml.textBase64(encoded)
         } else {
             xml.text(value.toString())
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemValue)
-        xml.endTag(null, DatabaseKDBXXML.ElemString)
+        xml.endTag(DatabaseKDBXXML.ElemValue)
+        xml.endTag(DatabaseKDBXXML.ElemString)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeDeletedObject(value: DeletedObject) {
-        xml.startTag(null, DatabaseKDBXXML.ElemDeletedObject)
+        xml.startTag(DatabaseKDBXXML.ElemDeletedObject)
 
         writeUuid(DatabaseKDBXXML.ElemUuid, value.uuid)
         writeDateInstant(DatabaseKDBXXML.ElemDeletionTime, value.deletionTime)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemDeletedObject)
+        xml.endTag(DatabaseKDBXXML.ElemDeletedObject)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -592,35 +632,35 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         for ((label, poolId) in binaries) {
             // Retrieve the right index with the poolId, don't use ref because of header in DatabaseV4
             mDatabaseKDBX.attachmentPool.getBinaryIndexFromKey(poolId)?.toString()?.let { indexString ->
-                xml.startTag(null, DatabaseKDBXXML.ElemBinary)
-                xml.startTag(null, DatabaseKDBXXML.ElemKey)
-                xml.text(safeXmlString(label))
-                xml.endTag(null, DatabaseKDBXXML.ElemKey)
+                xml.startTag(DatabaseKDBXXML.ElemBinary)
+                xml.startTag(DatabaseKDBXXML.ElemKey)
+                xml.safeText(label)
+                xml.endTag(DatabaseKDBXXML.ElemKey)
 
-                xml.startTag(null, DatabaseKDBXXML.ElemValue)
+                xml.startTag(DatabaseKDBXXML.ElemValue)
                 // Use only pool data in Meta to save binaries
-                xml.attribute(null, DatabaseKDBXXML.AttrRef, indexString)
-                xml.endTag(null, DatabaseKDBXXML.ElemValue)
+                xml.attribute(DatabaseKDBXXML.AttrRef, indexString)
+                xml.endTag(DatabaseKDBXXML.ElemValue)
 
-                xml.endTag(null, DatabaseKDBXXML.ElemBinary)
+                xml.endTag(DatabaseKDBXXML.ElemBinary)
             }
         }
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeDeletedObjects(value: Collection<DeletedObject>) {
-        xml.startTag(null, DatabaseKDBXXML.ElemDeletedObjects)
+        xml.startTag(DatabaseKDBXXML.ElemDeletedObjects)
 
         for (pdo in value) {
             writeDeletedObject(pdo)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemDeletedObjects)
+        xml.endTag(DatabaseKDBXXML.ElemDeletedObjects)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeMemoryProtection(value: MemoryProtectionConfig) {
-        xml.startTag(null, DatabaseKDBXXML.ElemMemoryProt)
+        xml.startTag(DatabaseKDBXXML.ElemMemoryProt)
 
         writeBoolean(DatabaseKDBXXML.ElemProtTitle, value.protectTitle)
         writeBoolean(DatabaseKDBXXML.ElemProtUserName, value.protectUserName)
@@ -628,38 +668,38 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         writeBoolean(DatabaseKDBXXML.ElemProtURL, value.protectUrl)
         writeBoolean(DatabaseKDBXXML.ElemProtNotes, value.protectNotes)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemMemoryProt)
+        xml.endTag(DatabaseKDBXXML.ElemMemoryProt)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeCustomData(customData: CustomData) {
         if (customData.isNotEmpty()) {
-            xml.startTag(null, DatabaseKDBXXML.ElemCustomData)
+            xml.startTag(DatabaseKDBXXML.ElemCustomData)
 
             customData.doForEachItems { customDataItem ->
                 writeCustomDataItem(customDataItem)
             }
 
-            xml.endTag(null, DatabaseKDBXXML.ElemCustomData)
+            xml.endTag(DatabaseKDBXXML.ElemCustomData)
         }
     }
 
     private fun writeCustomDataItem(customDataItem: CustomDataItem) {
-        xml.startTag(null, DatabaseKDBXXML.ElemStringDictExItem)
+        xml.startTag(DatabaseKDBXXML.ElemStringDictExItem)
 
-        xml.startTag(null, DatabaseKDBXXML.ElemKey)
-        xml.text(safeXmlString(customDataItem.key))
-        xml.endTag(null, DatabaseKDBXXML.ElemKey)
+        xml.startTag(DatabaseKDBXXML.ElemKey)
+        xml.safeText(customDataItem.key)
+        xml.endTag(DatabaseKDBXXML.ElemKey)
 
-        xml.startTag(null, DatabaseKDBXXML.ElemValue)
-        xml.text(safeXmlString(customDataItem.value))
-        xml.endTag(null, DatabaseKDBXXML.ElemValue)
+        xml.startTag(DatabaseKDBXXML.ElemValue)
+        xml.safeText(customDataItem.value)
+        xml.endTag(DatabaseKDBXXML.ElemValue)
 
         customDataItem.lastModificationTime?.let { lastModificationTime ->
             writeDateInstant(DatabaseKDBXXML.ElemLastModTime, lastModificationTime)
         }
 
-        xml.endTag(null, DatabaseKDBXXML.ElemStringDictExItem)
+        xml.endTag(DatabaseKDBXXML.ElemStringDictExItem)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -679,7 +719,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeTimes(node: NodeKDBXInterface) {
-        xml.startTag(null, DatabaseKDBXXML.ElemTimes)
+        xml.startTag(DatabaseKDBXXML.ElemTimes)
 
         writeDateInstant(DatabaseKDBXXML.ElemLastModTime, node.lastModificationTime)
         writeDateInstant(DatabaseKDBXXML.ElemCreationTime, node.creationTime)
@@ -689,20 +729,20 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         writeLong(DatabaseKDBXXML.ElemUsageCount, node.usageCount.toKotlinLong())
         writeDateInstant(DatabaseKDBXXML.ElemLocationChanged, node.locationChanged)
 
-        xml.endTag(null, DatabaseKDBXXML.ElemTimes)
+        xml.endTag(DatabaseKDBXXML.ElemTimes)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeEntryHistory(value: List<EntryKDBX>) {
         val element = DatabaseKDBXXML.ElemHistory
 
-        xml.startTag(null, element)
+        xml.startTag(element)
 
         for (entry in value) {
             writeEntry(entry, true)
         }
 
-        xml.endTag(null, element)
+        xml.endTag(element)
     }
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
@@ -713,11 +753,11 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
             if (binary.dataExists()) {
                 // Write the parent tag
                 if (firstElement) {
-                    xml.startTag(null, DatabaseKDBXXML.ElemCustomIcons)
+                    xml.startTag(DatabaseKDBXXML.ElemCustomIcons)
                     firstElement = false
                 }
 
-                xml.startTag(null, DatabaseKDBXXML.ElemCustomIconItem)
+                xml.startTag(DatabaseKDBXXML.ElemCustomIconItem)
 
                 writeUuid(DatabaseKDBXXML.ElemCustomIconItemID, iconCustom.uuid)
                 var customImageData = ByteArray(0)
@@ -728,8 +768,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 } catch (e: Exception) {
                     Log.e(TAG, "Unable to write custom icon", e)
                 } finally {
-                    writeString(DatabaseKDBXXML.ElemCustomIconItemData,
-                            String(Base64.encode(customImageData, BASE_64_FLAG)))
+                    writeBase64(DatabaseKDBXXML.ElemCustomIconItemData, customImageData)
                 }
                 if (iconCustom.name.isNotEmpty()) {
                     writeString(DatabaseKDBXXML.ElemName, iconCustom.name)
@@ -738,38 +777,18 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                     writeDateInstant(DatabaseKDBXXML.ElemLastModTime, lastModificationTime)
                 }
 
-                xml.endTag(null, DatabaseKDBXXML.ElemCustomIconItem)
+                xml.endTag(DatabaseKDBXXML.ElemCustomIconItem)
             }
         }
         // Close the parent tag
         if (!firstElement) {
-            xml.endTag(null, DatabaseKDBXXML.ElemCustomIcons)
-        }
-    }
-
-    private fun safeXmlString(text: String): String {
-        if (text.isEmpty()) {
-            return text
-        }
-        val stringBuilder = StringBuilder()
-        var character: Char
-        for (element in text) {
-            character = element
-            val hexChar = character.code
-            if (
-                    hexChar in 0x20..0xD7FF ||
-                    hexChar == 0x9 ||
-                    hexChar == 0xA ||
-                    hexChar == 0xD ||
-                    hexChar in 0xE000..0xFFFD
-            ) {
-                stringBuilder.append(character)
-            }
+            xml.endTag(DatabaseKDBXXML.ElemCustomIcons)
         }
-        return stringBuilder.toString()
     }
 
     companion object {
         private val TAG = DatabaseOutputKDBX::class.java.name
+
+        private const val BINARY_BUFFER_SIZE = 64 * 1024
     }
 }
@@ -31,11 +31,21 @@ import com.kunzisoft.keepass.otp.OtpEntryFields.OTP_FIELD
 import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.timeout.TimeoutHelper
 import com.kunzisoft.keepass.utils.UuidUtil
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 class SearchHelper {
 
-    private var incrementEntry = 0
+    private var mSearchPlan: SearchPlan? = null
 
+    /**
+     * Search the entries matching [searchParameters], without state between two calls.
+     * The entries in scope are listed in tree order, then checked in parallel by ranges,
+     * and the results are merged in tree order until [max] entries are found.
+     * Returns null if the search is interrupted, never a part of the results.
+     */
     fun createVirtualGroupWithSearchResult(database: Database,
                                            searchParameters: SearchParameters,
                                            fromGroup: NodeId<*>? = null,
@@ -44,8 +54,7 @@ class SearchHelper {
         val searchGroup = database.createGroup(virtual = true)
         searchGroup?.title = "\"" + searchParameters.searchQuery + "\""
 
-        // Search all entries
-        incrementEntry = 0
+        val searchPlan = retrieveSearchPlan(searchParameters)
 
         val allowCustomSearchable = database.allowCustomSearchableGroup()
         val startGroup = if (searchParameters.searchInCurrentGroup && fromGroup != null) {
@@ -53,20 +62,27 @@ class SearchHelper {
         } else {
             database.rootGroup
         }
-        if (groupConditions(database, startGroup, searchParameters, allowCustomSearchable, max)) {
+
+        val entriesInScope = ArrayList<Entry>()
+        val searchCandidates = database.getSearchCandidates(searchParameters)
+        if (searchCandidates != null) {
+            // Only check the entries given by the search index
+            for (entryId in searchCandidates) {
+                val entry = database.getEntryById(entryId) ?: continue
+                if (database.entryIsTemplate(entry) && !searchParameters.searchInTemplates)
+                    continue
+                if (entryInSearchScope(database, entry, startGroup, searchParameters, allowCustomSearchable))
+                    entriesInScope.add(entry)
+            }
+            // The results under max must be the first ones of the tree, like without index
+            sortInTreeOrder(entriesInScope)
+        } else if (groupConditions(database, startGroup, searchParameters, allowCustomSearchable)) {
             startGroup?.doForEachChild(
                 object : NodeHandler<Entry>() {
                     override fun operate(node: Entry): Boolean {
-                        if (incrementEntry >= max)
-                            return false
-                        if (database.entryIsTemplate(node) && !searchParameters.searchInTemplates)
-                            return false
-                        if (entryContainsString(database, node, searchParameters)) {
-                            searchGroup?.addChildEntry(node)
-                            incrementEntry++
-                        }
-                        // Stop searching when we have max entries
-                        return incrementEntry < max
+                        if (!database.entryIsTemplate(node) || searchParameters.searchInTemplates)
+                            entriesInScope.add(node)
+                        return true
                     }
                 },
                 object : NodeHandler<Group>() {
@@ -74,8 +90,7 @@ class SearchHelper {
                         return groupConditions(database,
                             node,
                             searchParameters,
-                            allowCustomSearchable,
-                            max
+                            allowCustomSearchable
                         )
                     }
                 },
@@ -83,19 +98,185 @@ class SearchHelper {
             )
         }
 
-        searchGroup?.refreshNumberOfChildEntries()
+        val entriesFound = try {
+            searchInEntries(database, entriesInScope, searchParameters, searchPlan, max)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            return null
+        }
+        entriesFound.forEach {
+            searchGroup?.addChildEntry(it)
+        }
+
         return searchGroup
     }
 
+    private fun searchInEntries(database: Database,
+                                entries: List<Entry>,
+                                searchParameters: SearchParameters,
+                                searchPlan: SearchPlan,
+                                max: Int): List<Entry> {
+        if (entries.size < PARALLEL_SEARCH_THRESHOLD || NUMBER_OF_SEARCH_THREADS < 2) {
+            return searchInRange(database, entries, searchParameters, searchPlan, max)
+        }
+        // Decoding a field reference changes the state of the entries,
+        // so the entries with references are only checked by the calling thread
+        val withReferences = BooleanArray(entries.size) { entries[it].containsFieldReference() }
+        // Several ranges per thread so a slow range (long notes, regex) doesn't hold the others
+        val rangeSize = (entries.size / (NUMBER_OF_SEARCH_THREADS * 4))
+            .coerceAtLeast(PARALLEL_SEARCH_RANGE_MIN)
+        val rangeSearches = ArrayList<Future<List<Entry>>>()
+        var rangeStart = 0
+        while (rangeStart < entries.size) {
+            val start = rangeStart
+            val end = (start + rangeSize).coerceAtMost(entries.size)
+            rangeSearches.add(searchExecutor.submit<List<Entry>> {
+                searchInRangeWithoutReference(entries, start, end, withReferences,
+                    searchParameters, searchPlan, max)
+            })
+            rangeStart = end
+        }
+        val entriesFound = ArrayList<Entry>()
+        try {
+            // Merge in tree order, the next ranges are cancelled as soon as max is reached
+            rangeStart = 0
+            for (rangeSearch in rangeSearches) {
+                val rangeEnd = (rangeStart + rangeSize).coerceAtMost(entries.size)
+                val rangeFound = rangeSearch.get()
+                var nextFound = 0
+                for (i in rangeStart until rangeEnd) {
+                    if (entriesFound.size >= max)
+                        return entriesFound
+                    val entry = entries[i]
+                    if (withReferences[i]) {
+                        if (entryContainsString(database, entry, searchParameters, searchPlan))
+                            entriesFound.add(entry)
+                    } else if (nextFound < rangeFound.size && rangeFound[nextFound] === entry) {
+                        entriesFound.add(entry)
+                        nextFound++
+                    }
+                }
+                rangeStart = rangeEnd
+            }
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        } finally {
+            rangeSearches.forEach { it.cancel(true) }
+        }
+        return entriesFound
+    }
+
+    private fun searchInRange(database: Database,
+                              entries: List<Entry>,
+                              searchParameters: SearchParameters,
+                              searchPlan: SearchPlan,
+                              max: Int): List<Entry> {
+        val entriesFound = ArrayList<Entry>()
+        for (entry in entries) {
+            // Stop searching when we have max entries
+            if (entriesFound.size >= max)
+                break
+            if (entryContainsString(database, entry, searchParameters, searchPlan))
+                entriesFound.add(entry)
+        }
+        return entriesFound
+    }
+
+    /**
+     * Search in a range of [entries] from a worker thread, the entries with references are skipped,
+     * their fields are read without decoding so no entry state is changed
+     */
+    private fun searchInRangeWithoutReference(entries: List<Entry>,
+                                              start: Int,
+                                              end: Int,
+                                              withReferences: BooleanArray,
+                                              searchParameters: SearchParameters,
+                                              searchPlan: SearchPlan,
+                                              max: Int): List<Entry> {
+        val entriesFound = ArrayList<Entry>()
+        for (i in start until end) {
+            // Stop searching when we have max entries or when the range is no longer needed
+            if (entriesFound.size >= max || Thread.currentThread().isInterrupted)
+                break
+            if (!withReferences[i] && searchInEntry(entries[i], searchParameters, searchPlan))
+                entriesFound.add(entries[i])
+        }
+        return entriesFound
+    }
+
+    /**
+     * Sort [entries] like a walk of the tree, the entries of a group before its subgroups,
+     * only the children of the groups containing the entries are read
+     */
+    private fun sortInTreeOrder(entries: MutableList<Entry>) {
+        if (entries.size < 2)
+            return
+        val entryPositions = HashMap<NodeId<*>, HashMap<NodeId<*>, Int>>()
+        val groupPositions = HashMap<NodeId<*>, HashMap<NodeId<*>, Int>>()
+        fun positionInParent(parent: Group, child: NodeId<*>, entry: Boolean): Long {
+            val positions = (if (entry) entryPositions else groupPositions).getOrPut(parent.nodeId) {
+                val children = if (entry) parent.getChildEntries() else parent.getChildGroups()
+                HashMap<NodeId<*>, Int>(children.size).apply {
+                    children.forEachIndexed { index, node -> put(node.nodeId, index) }
+                }
+            }
+            return (positions[child] ?: 0).toLong()
+        }
+        // Path from the root, the subgroups are after the entries of each level
+        val treePositions = entries.map { entry ->
+            val path = ArrayList<Long>()
+            var child: Group? = entry.parent
+            child?.let { path.add(positionInParent(it, entry.nodeId, true)) }
+            var parent = child?.parent
+            while (child != null && parent != null) {
+                path.add(SUBGROUP_POSITION or positionInParent(parent, child.nodeId, false))
+                child = parent
+                parent = parent.parent
+            }
+            path.reverse()
+            Pair(entry, path)
+        }.sortedWith { positionA, positionB ->
+            val pathA = positionA.second
+            val pathB = positionB.second
+            var comparison = 0
+            for (i in 0 until pathA.size.coerceAtMost(pathB.size)) {
+                comparison = pathA[i].compareTo(pathB[i])
+                if (comparison != 0)
+                    break
+            }
+            if (comparison != 0) comparison else pathA.size.compareTo(pathB.size)
+        }
+        entries.clear()
+        treePositions.forEach { entries.add(it.first) }
+    }
+
+    /**
+     * Same conditions as the tree walk, for each group between the entry and [startGroup]
+     */
+    private fun entryInSearchScope(database: Database,
+                                   entry: Entry,
+                                   startGroup: Group?,
+                                   searchParameters: SearchParameters,
+                                   allowCustomSearchable: Boolean): Boolean {
+        if (startGroup == null)
+            return false
+        var group = entry.parent
+        while (group != null) {
+            if (!groupConditions(database, group, searchParameters, allowCustomSearchable))
+                return false
+            if (group == startGroup)
+                return true
+            group = group.parent
+        }
+        return false
+    }
+
     private fun groupConditions(database: Database,
                                 group: Group?,
                                 searchParameters: SearchParameters,
-                                allowCustomSearchable: Boolean,
-                                max: Int): Boolean {
+                                allowCustomSearchable: Boolean): Boolean {
         return if (group == null)
             false
-        else if (incrementEntry >= max)
-            false
         else if (database.groupIsInRecycleBin(group))
             searchParameters.searchInRecycleBin
         else if (database.groupIsInTemplates(group))
@@ -108,13 +289,28 @@ class SearchHelper {
             true
     }
 
+    /**
+     * Compile the query only when it changes, the same plan is reused to refresh the results
+     */
+    @Synchronized
+    private fun retrieveSearchPlan(searchParameters: SearchParameters): SearchPlan {
+        mSearchPlan?.let { searchPlan ->
+            if (searchPlan.isPlanOf(searchParameters))
+                return searchPlan
+        }
+        return SearchPlan(searchParameters).also {
+            mSearchPlan = it
+        }
+    }
+
     private fun entryContainsString(database: Database,
                                     entry: Entry,
-                                    searchParameters: SearchParameters): Boolean {
+                                    searchParameters: SearchParameters,
+                                    searchPlan: SearchPlan): Boolean {
         // To search in field references
         database.startManageEntry(entry)
         // Search all strings in the entry
-        val searchFound = searchInEntry(entry, searchParameters)
+        val searchFound = searchInEntry(entry, searchParameters, searchPlan)
         database.stopManageEntry(entry)
 
         return searchFound
@@ -123,6 +319,18 @@ class SearchHelper {
     companion object {
         const val MAX_SEARCH_ENTRY = 1000
 
+        private const val PARALLEL_SEARCH_THRESHOLD = 512
+        private const val PARALLEL_SEARCH_RANGE_MIN = 128
+        // Added to the position of a subgroup, to sort it after the entries of its parent
+        private const val SUBGROUP_POSITION = 1L shl 32
+        private val NUMBER_OF_SEARCH_THREADS = Runtime.getRuntime().availableProcessors()
+
+        private val searchExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(NUMBER_OF_SEARCH_THREADS) { runnable ->
+                Thread(runnable, SearchHelper::class.java.name).apply { isDaemon = true }
+            }
+        }
+
         /**
          * Method to show the number of search results with max results
          */
@@ -173,7 +381,8 @@ class SearchHelper {
          * Return true if the search query in search parameters is found in available parameters
          */
         fun searchInEntry(entry: Entry,
-                          searchParameters: SearchParameters): Boolean {
+                          searchParameters: SearchParameters,
+                          searchPlan: SearchPlan = SearchPlan(searchParameters)): Boolean {
             val searchQuery = searchParameters.searchQuery
 
             // Not found if the search string is empty
@@ -188,70 +397,52 @@ class SearchHelper {
 
             // Search all strings in the KDBX entry
             if (searchParameters.searchInTitles) {
-                if (checkSearchQuery(entry.title, searchParameters))
+                if (checkSearchQuery(entry.title, searchPlan))
                     return true
             }
             if (searchParameters.searchInUsernames) {
-                if (checkSearchQuery(entry.username, searchParameters))
+                if (checkSearchQuery(entry.username, searchPlan))
                     return true
             }
             if (searchParameters.searchInPasswords) {
-                if (checkSearchQuery(entry.password, searchParameters))
+                if (checkSearchQuery(entry.password, searchPlan))
                     return true
             }
             if (searchParameters.searchInUrls) {
-                if (checkSearchQuery(entry.url, searchParameters))
+                if (checkSearchQuery(entry.url, searchPlan))
                     return true
             }
             if (searchParameters.searchInNotes) {
-                if (checkSearchQuery(entry.notes, searchParameters))
+                if (checkSearchQuery(entry.notes, searchPlan))
                     return true
             }
             if (searchParameters.searchInUUIDs) {
                 val hexString = UuidUtil.toHexString(entry.nodeId.id) ?: ""
-                if (checkSearchQuery(hexString, searchParameters))
+                if (checkSearchQuery(hexString, searchPlan))
                     return true
             }
             if (searchParameters.searchInOther) {
                 entry.getExtraFields().forEach { field ->
                     if (field.name != OTP_FIELD
                             || (field.name == OTP_FIELD && searchParameters.searchInOTP)) {
-                        if (checkSearchQuery(field.protectedValue.toString(), searchParameters))
+                        if (checkSearchQuery(field.protectedValue.toString(), searchPlan))
                             return true
                     }
                 }
             }
             if (searchParameters.searchInTags) {
-                if (checkSearchQuery(entry.tags.toString(), searchParameters))
+                if (checkSearchQuery(entry.tags.toString(), searchPlan))
                     return true
             }
             return false
         }
 
-        private fun checkSearchQuery(stringToCheck: String, searchParameters: SearchParameters): Boolean {
+        private fun checkSearchQuery(stringToCheck: String, searchPlan: SearchPlan): Boolean {
             /*
             // TODO Search settings
             var removeAccents = true <- Too much time, to study
             */
-            if (stringToCheck.isEmpty())
-                return false
-            return if (searchParameters.isRegex) {
-                val regex = if (searchParameters.caseSensitive) {
-                    searchParameters.searchQuery
-                        .toRegex(RegexOption.DOT_MATCHES_ALL)
-                } else {
-                    searchParameters.searchQuery
-                        .toRegex(setOf(RegexOption.DOT_MATCHES_ALL, RegexOption.IGNORE_CASE))
-                }
-                regex.matches(stringToCheck)
-            } else {
-                var searchFound = true
-                searchParameters.searchQuery.split(" ").forEach { word ->
-                    searchFound = searchFound
-                            && stringToCheck.contains(word, !searchParameters.caseSensitive)
-                }
-                searchFound
-            }
+            return searchPlan.matches(stringToCheck)
         }
     }
 }
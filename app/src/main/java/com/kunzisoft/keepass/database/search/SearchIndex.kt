@@ -0,0 +1,232 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.node.NodeId
+import com.kunzisoft.keepass.otp.OtpEntryFields.OTP_FIELD
+import java.util.*
+
+/**
+ * In-memory inverted index of the searchable fields of the entries
+ * (title, username, URL, notes, tags and custom fields, never the password, the OTP or a protected field),
+ * each case folded trigram is mapped to the entries containing it.
+ * The index only returns candidates, each candidate is still verified with the search plan,
+ * entries with field references are always candidates because their values are resolved at search time,
+ * entries with protected custom fields are always candidates of a search in the custom fields.
+ */
+class SearchIndex {
+
+    // Sorted numbers of the entries by trigram, a number is given once to each indexed entry
+    private val postings = HashMap<Long, Postings>()
+    private val trigramsOfEntries = HashMap<NodeId<UUID>, LongArray>()
+    private val entryNumbers = HashMap<NodeId<UUID>, Int>()
+    private val entryIds = ArrayList<NodeId<UUID>?>()
+    private val freeEntryNumbers = ArrayList<Int>()
+    private val entriesWithReferences = LinkedHashSet<NodeId<UUID>>()
+    private val entriesWithProtectedFields = LinkedHashSet<NodeId<UUID>>()
+
+    @Synchronized
+    fun clear() {
+        postings.clear()
+        trigramsOfEntries.clear()
+        entryNumbers.clear()
+        entryIds.clear()
+        freeEntryNumbers.clear()
+        entriesWithReferences.clear()
+        entriesWithProtectedFields.clear()
+    }
+
+    /**
+     * Add or replace the indexed values of [entry]
+     */
+    @Synchronized
+    fun putEntry(entry: Entry) {
+        val entryId = entry.nodeId
+        removeEntryId(entryId)
+
+        val trigrams = HashSet<Long>()
+        var containsReference = false
+        var containsProtectedField = false
+        fun addValue(value: String) {
+            if (value.contains(REFERENCE_START, true))
+                containsReference = true
+            addTrigrams(value, trigrams)
+        }
+        addValue(entry.title)
+        addValue(entry.username)
+        addValue(entry.url)
+        addValue(entry.notes)
+        addValue(entry.tags.toString())
+        entry.getExtraFields().forEach { field ->
+            // No trigram of a protected value is kept in memory
+            if (field.protectedValue.isProtected)
+                containsProtectedField = true
+            else if (field.name != OTP_FIELD)
+                addValue(field.protectedValue.toString())
+        }
+
+        if (containsReference)
+            entriesWithReferences.add(entryId)
+        if (containsProtectedField)
+            entriesWithProtectedFields.add(entryId)
+        val entryNumber = if (freeEntryNumbers.isEmpty()) {
+            entryIds.add(entryId)
+            entryIds.size - 1
+        } else {
+            freeEntryNumbers.removeAt(freeEntryNumbers.lastIndex).also {
+                entryIds[it] = entryId
+            }
+        }
+        entryNumbers[entryId] = entryNumber
+        val trigramArray = LongArray(trigrams.size)
+        var index = 0
+        trigrams.forEach { trigram ->
+            trigramArray[index++] = trigram
+            postings.getOrPut(trigram) { Postings() }.add(entryNumber)
+        }
+        trigramsOfEntries[entryId] = trigramArray
+    }
+
+    @Synchronized
+    fun removeEntry(entry: Entry) {
+        removeEntryId(entry.nodeId)
+    }
+
+    private fun removeEntryId(entryId: NodeId<UUID>) {
+        entriesWithReferences.remove(entryId)
+        entriesWithProtectedFields.remove(entryId)
+        val entryNumber = entryNumbers.remove(entryId) ?: return
+        entryIds[entryNumber] = null
+        freeEntryNumbers.add(entryNumber)
+        trigramsOfEntries.remove(entryId)?.forEach { trigram ->
+            postings[trigram]?.let { entries ->
+                entries.remove(entryNumber)
+                if (entries.size == 0)
+                    postings.remove(trigram)
+            }
+        }
+    }
+
+    /**
+     * Ids of the entries which can match [searchParameters], not in tree order,
+     * or null if the index can't answer (regex, not indexed field or words too short)
+     */
+    @Synchronized
+    fun candidates(searchParameters: SearchParameters): List<NodeId<UUID>>? {
+        if (searchParameters.isRegex
+                || searchParameters.searchInPasswords
+                || searchParameters.searchInUUIDs
+                || searchParameters.searchInOTP)
+            return null
+        val trigrams = HashSet<Long>()
+        searchParameters.searchQuery.split(" ").forEach { word ->
+            addTrigrams(word, trigrams)
+        }
+        if (trigrams.isEmpty())
+            return null
+
+        val candidates = LinkedHashSet<NodeId<UUID>>()
+        val entryLists = ArrayList<Postings>(trigrams.size)
+        var containsAllTrigrams = true
+        for (trigram in trigrams) {
+            val entries = postings[trigram]
+            if (entries == null) {
+                containsAllTrigrams = false
+                break
+            }
+            entryLists.add(entries)
+        }
+        if (containsAllTrigrams) {
+            entryLists.sortBy { it.size }
+            val smallestList = entryLists[0]
+            for (i in 0 until smallestList.size) {
+                val entryNumber = smallestList.values[i]
+                var inAllLists = true
+                for (j in 1 until entryLists.size) {
+                    if (!entryLists[j].contains(entryNumber)) {
+                        inAllLists = false
+                        break
+                    }
+                }
+                if (inAllLists)
+                    entryIds[entryNumber]?.let { candidates.add(it) }
+            }
+        }
+        candidates.addAll(entriesWithReferences)
+        if (searchParameters.searchInOther)
+            candidates.addAll(entriesWithProtectedFields)
+        return ArrayList(candidates)
+    }
+
+    /**
+     * Sorted entry numbers without boxing
+     */
+    private class Postings {
+        var values = IntArray(INITIAL_POSTINGS_SIZE)
+        var size = 0
+
+        fun add(entryNumber: Int) {
+            var position = Arrays.binarySearch(values, 0, size, entryNumber)
+            if (position >= 0)
+                return
+            position = -position - 1
+            if (size == values.size)
+                values = values.copyOf(size * 2)
+            System.arraycopy(values, position, values, position + 1, size - position)
+            values[position] = entryNumber
+            size++
+        }
+
+        fun remove(entryNumber: Int) {
+            val position = Arrays.binarySearch(values, 0, size, entryNumber)
+            if (position < 0)
+                return
+            System.arraycopy(values, position + 1, values, position, size - position - 1)
+            size--
+        }
+
+        fun contains(entryNumber: Int): Boolean {
+            return Arrays.binarySearch(values, 0, size, entryNumber) >= 0
+        }
+    }
+
+    companion object {
+        private const val REFERENCE_START = "{REF:"
+        private const val INITIAL_POSTINGS_SIZE = 4
+
+        private fun fold(character: Char): Long {
+            return Character.toLowerCase(Character.toUpperCase(character)).code.toLong()
+        }
+
+        private fun addTrigrams(value: String, trigrams: MutableSet<Long>) {
+            if (value.length < 3)
+                return
+            var first = fold(value[0])
+            var second = fold(value[1])
+            for (i in 2 until value.length) {
+                val third = fold(value[i])
+                trigrams.add((first shl 32) or (second shl 16) or third)
+                first = second
+                second = third
+            }
+        }
+    }
+}
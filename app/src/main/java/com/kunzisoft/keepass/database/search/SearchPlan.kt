@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import java.util.*
+import java.util.regex.Pattern
+
+/**
+ * Search query compiled once and evaluated against each field:
+ * the regex is precompiled, and the words of a plain query are folded once
+ * and searched together in a single pass with an Aho-Corasick automaton.
+ * A plan is immutable and can be shared between threads.
+ */
+class SearchPlan(val searchQuery: String,
+                 val caseSensitive: Boolean,
+                 val isRegex: Boolean) {
+
+    constructor(searchParameters: SearchParameters)
+            : this(searchParameters.searchQuery,
+                   searchParameters.caseSensitive,
+                   searchParameters.isRegex)
+
+    private val pattern: Pattern? = if (isRegex) {
+        if (caseSensitive)
+            Pattern.compile(searchQuery, Pattern.DOTALL)
+        else
+            Pattern.compile(searchQuery,
+                    Pattern.DOTALL or Pattern.CASE_INSENSITIVE or Pattern.UNICODE_CASE)
+    } else null
+
+    private val wordMatcher: WordMatcher? = if (!isRegex) {
+        // Empty words are contained in every string
+        WordMatcher(searchQuery.split(" ").filter { it.isNotEmpty() }, caseSensitive)
+    } else null
+
+    fun isPlanOf(searchParameters: SearchParameters): Boolean {
+        return searchQuery == searchParameters.searchQuery
+                && caseSensitive == searchParameters.caseSensitive
+                && isRegex == searchParameters.isRegex
+    }
+
+    /**
+     * Return true if [stringToCheck] matches the regex, or contains all the words of the query
+     */
+    fun matches(stringToCheck: String): Boolean {
+        if (stringToCheck.isEmpty())
+            return false
+        pattern?.let {
+            return it.matcher(stringToCheck).matches()
+        }
+        return wordMatcher?.containsAll(stringToCheck) ?: false
+    }
+
+    private class Node {
+        var keys = CharArray(2)
+        var children = arrayOfNulls<Node>(2)
+        var size = 0
+        var fail: Node? = null
+        // Indexes of the words ending at this node, including the ones of the fail links
+        var outputs = IntArray(0)
+
+        fun child(character: Char): Node? {
+            for (i in 0 until size) {
+                if (keys[i] == character)
+                    return children[i]
+            }
+            return null
+        }
+
+        fun addChild(character: Char): Node {
+            child(character)?.let { return it }
+            if (size == keys.size) {
+                keys = keys.copyOf(size * 2)
+                children = children.copyOf(size * 2)
+            }
+            val node = Node()
+            keys[size] = character
+            children[size] = node
+            size++
+            return node
+        }
+    }
+
+    private class WordMatcher(words: List<String>, private val caseSensitive: Boolean) {
+
+        private val root = Node()
+        private val numberOfWords: Int
+
+        init {
+            val foldedWords = words.map { fold(it) }.distinct()
+            numberOfWords = foldedWords.size
+            foldedWords.forEachIndexed { index, word ->
+                var node = root
+                for (character in word) {
+                    node = node.addChild(character)
+                }
+                node.outputs = node.outputs + index
+            }
+            // Breadth first to link each node to its longest proper suffix
+            val queue = LinkedList<Node>()
+            for (i in 0 until root.size) {
+                val child = root.children[i]!!
+                child.fail = root
+                queue.add(child)
+            }
+            while (queue.isNotEmpty()) {
+                val node = queue.removeFirst()
+                for (i in 0 until node.size) {
+                    val character = node.keys[i]
+                    val child = node.children[i]!!
+                    var fail = node.fail
+                    while (fail != null && fail.child(character) == null) {
+                        fail = fail.fail
+                    }
+                    val failNode = fail?.child(character) ?: root
+                    child.fail = failNode
+                    if (failNode.outputs.isNotEmpty())
+                        child.outputs = child.outputs + failNode.outputs
+                    queue.add(child)
+                }
+            }
+        }
+
+        private fun fold(character: Char): Char {
+            return if (caseSensitive)
+                character
+            else
+                Character.toLowerCase(Character.toUpperCase(character))
+        }
+
+        private fun fold(word: String): String {
+            if (caseSensitive)
+                return word
+            val folded = CharArray(word.length)
+            for (i in word.indices) {
+                folded[i] = fold(word[i])
+            }
+            return String(folded)
+        }
+
+        fun containsAll(text: String): Boolean {
+            if (numberOfWords == 0)
+                return true
+            var remaining = numberOfWords
+            // Bit mask of the words found, or array if there is too many words
+            var foundMask = 0L
+            val foundArray = if (numberOfWords > Long.SIZE_BITS) BooleanArray(numberOfWords) else null
+            var state = root
+            for (textCharacter in text) {
+                val character = fold(textCharacter)
+                var next = state.child(character)
+                while (next == null && state !== root) {
+                    state = state.fail!!
+                    next = state.child(character)
+                }
+                state = next ?: root
+                for (word in state.outputs) {
+                    val newWord = if (foundArray == null) {
+                        val bit = 1L shl word
+                        ((foundMask and bit) == 0L).also { foundMask = foundMask or bit }
+                    } else {
+                        (!foundArray[word]).also { foundArray[word] = true }
+                    }
+                    if (newWord && --remaining == 0)
+                        return true
+                }
+            }
+            return false
+        }
+    }
+}
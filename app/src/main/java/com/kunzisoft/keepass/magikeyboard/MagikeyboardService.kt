@@ -54,6 +54,7 @@ import com.kunzisoft.keepass.otp.OtpEntryFields.OTP_TOKEN_FIELD
 import com.kunzisoft.keepass.services.KeyboardEntryNotificationService
 import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.utils.*
+import mozilla.components.lib.publicsuffixlist.PublicSuffixList
 import java.util.*
 
 class MagikeyboardService : InputMethodService(), KeyboardView.OnKeyboardActionListener {
@@ -86,6 +87,8 @@ class MagikeyboardService : InputMethodService(), KeyboardView.OnKeyboardActionL
             this.mDatabase = database
             assignKeyboardView()
         }
+        // Load the public suffixes in background before the first web domain request
+        PublicSuffixList.getInstance(this).prefetch()
         // Remove the entry and lock the keyboard when the lock signal is receive
         lockReceiver = LockReceiver {
                         removeEntryInfo()
@@ -145,8 +145,7 @@ class SearchInfo : ObjectNameResource, Parcelable {
                             || Regex(WEB_IP_REGEX).matches(webDomain)) {
                         concreteWebDomain.invoke(webDomain)
                     } else {
-                        val publicSuffixList = PublicSuffixList(context)
-                        concreteWebDomain.invoke(publicSuffixList
+                        concreteWebDomain.invoke(PublicSuffixList.getInstance(context)
                                 .getPublicSuffixPlusOne(webDomain).await())
                     }
                 } else {
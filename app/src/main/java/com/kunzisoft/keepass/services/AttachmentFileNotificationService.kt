@@ -118,6 +118,11 @@ class AttachmentFileNotificationService: LockNotificationService() {
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         super.onStartCommand(intent, flags, startId)
 
+        // The service was killed during the action, a download can continue from the bytes written
+        if (flags and START_FLAG_REDELIVERY != 0) {
+            intent?.putExtra(RESUME_DOWNLOAD_KEY, true)
+        }
+
         // Wait for database to execute action request
         if (mDatabase != null) {
             actionRequested(intent)
@@ -335,11 +340,13 @@ class AttachmentFileNotificationService: LockNotificationService() {
                     // Add action to the list on start
                     attachmentNotificationList.add(attachmentNotification)
 
+                    val resumeDownload = intent.getBooleanExtra(RESUME_DOWNLOAD_KEY, false)
                     mDatabase?.let { database ->
                         mainScope.launch {
                             AttachmentFileAction(attachmentNotification,
                                     database,
-                                    contentResolver).apply {
+                                    contentResolver,
+                                    resumeDownload).apply {
                                 listener = attachmentFileActionListener
                             }.executeAction()
                         }
@@ -367,7 +374,8 @@ class AttachmentFileNotificationService: LockNotificationService() {
     private class AttachmentFileAction(
             private val attachmentNotification: AttachmentNotification,
             private val database: Database,
-            private val contentResolver: ContentResolver) {
+            private val contentResolver: ContentResolver,
+            private val resumeDownload: Boolean) {
 
         private val updateMinFrequency = 1000
         private var previousSaveTime = System.currentTimeMillis()
@@ -412,15 +420,25 @@ class AttachmentFileNotificationService: LockNotificationService() {
                                         )
                                     }
                                     StreamDirection.DOWNLOAD -> {
-                                        BinaryDatabaseManager.downloadFromDatabase(
-                                                database,
-                                                attachmentNotification.uri,
-                                                attachment.binaryData,
-                                                contentResolver,
-                                                { percent ->
-                                                    publishProgress(percent)
-                                                }
-                                        )
+                                        if (!resumeDownload
+                                                || !BinaryDatabaseManager.resumeDownloadFromDatabase(
+                                                        database,
+                                                        attachmentNotification.uri,
+                                                        attachment.binaryData,
+                                                        contentResolver,
+                                                        { percent ->
+                                                            publishProgress(percent)
+                                                        })) {
+                                            BinaryDatabaseManager.downloadFromDatabase(
+                                                    database,
+                                                    attachmentNotification.uri,
+                                                    attachment.binaryData,
+                                                    contentResolver,
+                                                    { percent ->
+                                                        publishProgress(percent)
+                                                    }
+                                            )
+                                        }
                                     }
                                 }
                         } catch (e: Exception) {
@@ -487,6 +505,7 @@ class AttachmentFileNotificationService: LockNotificationService() {
 
         const val FILE_URI_KEY = "FILE_URI_KEY"
         const val ATTACHMENT_KEY = "ATTACHMENT_KEY"
+        private const val RESUME_DOWNLOAD_KEY = "RESUME_DOWNLOAD_KEY"
     }
 
 }
\ No newline at end of file
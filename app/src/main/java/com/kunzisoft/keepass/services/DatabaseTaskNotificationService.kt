@@ -128,6 +128,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     interface ActionTaskListener {
         fun onStartAction(database: Database, titleId: Int?, messageId: Int?, warningId: Int?)
         fun onUpdateAction(database: Database, titleId: Int?, messageId: Int?, warningId: Int?)
+        fun onUpdateProgress(database: Database, progress: Int, max: Int)
         fun onStopAction(database: Database, actionTask: String, result: ActionRunnable.Result)
     }
 
@@ -522,6 +523,14 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
     }
 
+    override fun updateProgress(progress: Int, max: Int) {
+        mDatabase?.let { database ->
+            mActionTaskListeners.forEach { actionTaskListener ->
+                actionTaskListener.onUpdateProgress(database, progress, max)
+            }
+        }
+    }
+
     override fun actionOnLock() {
         if (!TimeoutHelper.temporarilyDisableLock) {
             closeDatabase(mDatabase)
@@ -22,6 +22,7 @@ package com.kunzisoft.keepass.settings.preferencedialogfragment
 import android.os.Bundle
 import android.view.View
 import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.utils.DataByte
 
@@ -42,6 +43,21 @@ class DatabaseMemoryUsagePreferenceDialogFragmentCompat : DatabaseSavePreference
                 .toBetterByteFormat()
             inputText = dataByte.number.toString()
             setUnitText(dataByte.format.stringId)
+            val kdfEngine = database.kdfEngine
+            // Memory for the current rounds
+            setKdfCalibrationButton(kdfEngine, memoryBytes) { calibration ->
+                kdfEngine?.let {
+                    val calibratedMemory = calibration.memoryUsageForUnlockTime(kdfEngine,
+                            database.numberKeyEncryptionRounds,
+                            KdfEngine.DEFAULT_TARGET_UNLOCK_TIME)
+                    if (calibratedMemory != KdfEngine.UNKNOWN_VALUE) {
+                        dataByte = DataByte(calibratedMemory, DataByte.ByteFormat.BYTE)
+                            .toBetterByteFormat()
+                        inputText = dataByte.number.toString()
+                        setUnitText(dataByte.format.stringId)
+                    }
+                }
+            }
         }
     }
 
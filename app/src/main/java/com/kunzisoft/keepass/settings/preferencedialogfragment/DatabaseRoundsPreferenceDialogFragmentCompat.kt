@@ -23,6 +23,7 @@ import android.os.Bundle
 import android.view.View
 import android.widget.Toast
 import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.element.Database
 
 class DatabaseRoundsPreferenceDialogFragmentCompat : DatabaseSavePreferenceDialogFragmentCompat() {
@@ -35,6 +36,14 @@ class DatabaseRoundsPreferenceDialogFragmentCompat : DatabaseSavePreferenceDialo
     override fun onDatabaseRetrieved(database: Database?) {
         super.onDatabaseRetrieved(database)
         inputText = database?.numberKeyEncryptionRounds?.toString() ?: MIN_ITERATIONS.toString()
+        val kdfEngine = database?.kdfEngine
+        // Rounds for the current memory usage
+        val memoryUsage = database?.memoryUsage ?: KdfEngine.UNKNOWN_VALUE
+        setKdfCalibrationButton(kdfEngine,
+                if (memoryUsage != KdfEngine.UNKNOWN_VALUE) memoryUsage
+                else kdfEngine?.defaultMemoryUsage ?: KdfEngine.UNKNOWN_VALUE) { calibration ->
+            inputText = calibration.keyRounds.toString()
+        }
     }
 
     override fun onDialogClosed(database: Database?, positiveResult: Boolean) {
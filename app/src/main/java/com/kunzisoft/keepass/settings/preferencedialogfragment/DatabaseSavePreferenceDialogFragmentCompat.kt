@@ -21,10 +21,14 @@ package com.kunzisoft.keepass.settings.preferencedialogfragment
 
 import android.content.Context
 import android.os.Bundle
+import android.util.Log
 import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
 import com.kunzisoft.androidclearchroma.ChromaUtil
+import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.activities.legacy.DatabaseRetrieval
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
+import com.kunzisoft.keepass.database.crypto.kdf.KdfCalibration
 import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.Group
@@ -32,6 +36,9 @@ import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
 import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.viewmodels.DatabaseViewModel
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 abstract class DatabaseSavePreferenceDialogFragmentCompat
     : InputPreferenceDialogFragmentCompat(), DatabaseRetrieval {
@@ -159,6 +166,34 @@ abstract class DatabaseSavePreferenceDialogFragmentCompat
         mDatabaseViewModel.saveIterations(oldNumber, newNumber, mDatabaseAutoSaveEnable)
     }
 
+    /**
+     * Show a button to calibrate [kdfEngine] on this device for the default unlock time,
+     * the measures are done in background and [result] is called in the UI thread
+     */
+    protected fun setKdfCalibrationButton(kdfEngine: KdfEngine?,
+                                          memoryBudget: Long,
+                                          result: (KdfCalibration) -> Unit) {
+        if (kdfEngine == null) {
+            setExplanationButton("") {}
+            return
+        }
+        setExplanationButton(R.string.kdf_calibrate_unlock_time) { button ->
+            button.isEnabled = false
+            lifecycleScope.launch {
+                try {
+                    val calibration = withContext(Dispatchers.Default) {
+                        kdfEngine.calibrate(KdfEngine.DEFAULT_TARGET_UNLOCK_TIME, memoryBudget)
+                    }
+                    result.invoke(calibration)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Unable to calibrate the key derivation function", e)
+                } finally {
+                    button.isEnabled = true
+                }
+            }
+        }
+    }
+
     companion object {
         private const val TAG = "DbSavePrefDialog"
     }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import android.os.Build
+import java.io.IOException
+import java.io.OutputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Standard GZIP stream whose deflate level can be changed between two writes,
+ * to store data already compressed (most attachments) instead of deflating it again.
+ * Before Android N, the deflater refuses a new level once it has received input,
+ * the level is then kept for the whole stream.
+ */
+class AdaptiveGZIPOutputStream(outputStream: OutputStream)
+    : GZIPOutputStream(outputStream), DeflateLevelOutputStream {
+
+    @Throws(IOException::class)
+    override fun setDeflateLevel(level: Int) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            def.setLevel(level)
+        }
+    }
+}
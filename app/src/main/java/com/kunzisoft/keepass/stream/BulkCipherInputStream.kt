@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+import java.security.GeneralSecurityException
+import javax.crypto.Cipher
+
+/**
+ * Decrypt [baseStream] with [cipher] by blocks of [bufferSize] bytes,
+ * each block is processed in one cipher call with reusable buffers,
+ * unlike [javax.crypto.CipherInputStream] which allocates a new array for every small update.
+ */
+class BulkCipherInputStream(private val baseStream: InputStream,
+                            private val cipher: Cipher,
+                            bufferSize: Int = DEFAULT_BUFFER_SIZE) : InputStream() {
+
+    private val inputBuffer = ByteArray(bufferSize)
+    private var outputBuffer = ByteArray(cipher.getOutputSize(bufferSize))
+    private var outputPos = 0
+    private var outputLength = 0
+    private var finalized = false
+
+    /**
+     * @return false, when the cipher is finalized and all the output is consumed
+     */
+    @Throws(IOException::class)
+    private fun fillOutput(): Boolean {
+        while (outputPos == outputLength) {
+            if (finalized) return false
+            outputPos = 0
+            val read = baseStream.read(inputBuffer)
+            outputLength = try {
+                if (read < 0) {
+                    finalized = true
+                    ensureOutputSize(cipher.getOutputSize(0))
+                    cipher.doFinal(outputBuffer, 0)
+                } else {
+                    ensureOutputSize(cipher.getOutputSize(read))
+                    cipher.update(inputBuffer, 0, read, outputBuffer, 0)
+                }
+            } catch (e: GeneralSecurityException) {
+                throw IOException(e)
+            }
+        }
+        return true
+    }
+
+    private fun ensureOutputSize(size: Int) {
+        if (outputBuffer.size < size)
+            outputBuffer = ByteArray(size)
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (!fillOutput()) return -1
+        return outputBuffer[outputPos++].toInt() and 0xFF
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        if (!fillOutput()) return -1
+        val copy = (outputLength - outputPos).coerceAtMost(len)
+        System.arraycopy(outputBuffer, outputPos, b, off, copy)
+        outputPos += copy
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray): Int {
+        return read(b, 0, b.size)
+    }
+
+    @Throws(IOException::class)
+    override fun skip(n: Long): Long {
+        var remaining = n
+        while (remaining > 0 && fillOutput()) {
+            val skipped = (outputLength - outputPos).toLong().coerceAtMost(remaining)
+            outputPos += skipped.toInt()
+            remaining -= skipped
+        }
+        return n - remaining
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return outputLength - outputPos
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        baseStream.close()
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+
+class ByteArraySeekableInputStream(private val data: ByteArray) : SeekableInputStream() {
+
+    private var pos = 0
+
+    override fun size(): Long {
+        return data.size.toLong()
+    }
+
+    override fun position(): Long {
+        return pos.toLong()
+    }
+
+    @Throws(IOException::class)
+    override fun seek(position: Long) {
+        if (position < 0 || position > data.size)
+            throw IOException("Position out of bounds")
+        pos = position.toInt()
+    }
+
+    override fun read(): Int {
+        if (pos >= data.size) return -1
+        return data[pos++].toInt() and 0xFF
+    }
+
+    override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+        if (length == 0) return 0
+        if (pos >= data.size) return -1
+        val copy = (data.size - pos).coerceAtMost(length)
+        System.arraycopy(data, pos, buffer, offset, copy)
+        pos += copy
+        return copy
+    }
+
+    override fun available(): Int {
+        return data.size - pos
+    }
+}
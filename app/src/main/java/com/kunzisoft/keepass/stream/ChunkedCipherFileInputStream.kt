@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipher
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Random access to a file written by [ChunkedCipherOutputStream],
+ * only the chunk containing the current position is read and decrypted.
+ * Encrypted chunks have a fixed size, so the chunk index of a position is computed
+ * from the chunk size and the last chunk is the only shorter one.
+ */
+class ChunkedCipherFileInputStream(private val file: RandomAccessFile,
+                                   private val dataOffset: Long,
+                                   private val chunkedCipher: ChunkedCipher) : SeekableInputStream() {
+
+    private val encryptedBuffer = ByteArray(chunkedCipher.encryptedChunkSize)
+    private val chunkBuffer = ByteArray(chunkedCipher.chunkSize)
+    private var chunkIndex = -1L
+    private var chunkLength = 0
+
+    private val numberOfChunks: Long
+    private val size: Long
+    private var pos = 0L
+
+    init {
+        val encryptedLength = file.length() - dataOffset
+        // The last chunk is always shorter than a full chunk but contains at least its tag,
+        // a file truncated at a chunk boundary would otherwise lose its last chunk silently
+        if (encryptedLength % chunkedCipher.encryptedChunkSize < ChunkedCipher.TAG_SIZE)
+            throw IOException("Truncated chunked file")
+        numberOfChunks = encryptedLength / chunkedCipher.encryptedChunkSize + 1
+        size = encryptedLength - numberOfChunks * ChunkedCipher.TAG_SIZE
+    }
+
+    override fun size(): Long {
+        return size
+    }
+
+    override fun position(): Long {
+        return pos
+    }
+
+    @Throws(IOException::class)
+    override fun seek(position: Long) {
+        if (position < 0 || position > size)
+            throw IOException("Position out of bounds")
+        pos = position
+    }
+
+    /**
+     * Load the chunk of the current position if it's not already decrypted
+     */
+    @Throws(IOException::class)
+    private fun loadChunk(index: Long) {
+        if (index == chunkIndex) return
+        val last = index == numberOfChunks - 1
+        val encryptedChunkSize = chunkedCipher.encryptedChunkSize.toLong()
+        val chunkStart = dataOffset + index * encryptedChunkSize
+        val length = (file.length() - chunkStart).coerceAtMost(encryptedChunkSize).toInt()
+        file.seek(chunkStart)
+        file.readFully(encryptedBuffer, 0, length)
+        // Invalidate first, in case of verification error
+        chunkIndex = -1L
+        chunkLength = chunkedCipher.decryptChunk(index, last, encryptedBuffer, length, chunkBuffer)
+        chunkIndex = index
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (pos >= size) return -1
+        val chunkSize = chunkedCipher.chunkSize
+        loadChunk(pos / chunkSize)
+        val output = chunkBuffer[(pos % chunkSize).toInt()].toInt() and 0xFF
+        pos++
+        return output
+    }
+
+    @Throws(IOException::class)
+    override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+        if (length == 0) return 0
+        if (pos >= size) return -1
+        val chunkSize = chunkedCipher.chunkSize
+        loadChunk(pos / chunkSize)
+        val chunkPos = (pos % chunkSize).toInt()
+        val copy = (chunkLength - chunkPos).coerceAtMost(length)
+        System.arraycopy(chunkBuffer, chunkPos, buffer, offset, copy)
+        pos += copy
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        if (chunkIndex < 0 || pos / chunkedCipher.chunkSize != chunkIndex)
+            return 0
+        return chunkLength - (pos % chunkedCipher.chunkSize).toInt()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        file.close()
+    }
+}
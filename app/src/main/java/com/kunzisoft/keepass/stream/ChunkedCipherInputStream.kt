@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipher
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Verify and decrypt a stream written by [ChunkedCipherOutputStream]
+ */
+class ChunkedCipherInputStream(private val baseStream: InputStream,
+                               private val chunkedCipher: ChunkedCipher) : InputStream() {
+
+    private val encryptedBuffer = ByteArray(chunkedCipher.encryptedChunkSize)
+    private val chunkBuffer = ByteArray(chunkedCipher.chunkSize)
+    private var chunkLength = 0
+    private var chunkPos = 0
+    private var chunkIndex = 0L
+    private var lastChunkRead = false
+
+    /**
+     * @return false, when the last chunk is consumed
+     */
+    @Throws(IOException::class)
+    private fun readChunk(): Boolean {
+        if (lastChunkRead) return false
+
+        var read = 0
+        while (read < encryptedBuffer.size) {
+            val count = baseStream.read(encryptedBuffer, read, encryptedBuffer.size - read)
+            if (count < 0)
+                break
+            read += count
+        }
+        if (read == 0)
+            throw IOException("Truncated chunked stream")
+        // Only the last chunk is shorter than a full chunk
+        lastChunkRead = read < encryptedBuffer.size
+        chunkLength = chunkedCipher.decryptChunk(chunkIndex, lastChunkRead,
+                encryptedBuffer, read, chunkBuffer)
+        chunkPos = 0
+        chunkIndex++
+        return true
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        while (chunkPos == chunkLength) {
+            if (!readChunk()) return -1
+        }
+        return chunkBuffer[chunkPos++].toInt() and 0xFF
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray): Int {
+        return read(outBuffer, 0, outBuffer.size)
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray, byteOffset: Int, byteCount: Int): Int {
+        if (byteCount == 0) return 0
+        while (chunkPos == chunkLength) {
+            if (!readChunk()) return -1
+        }
+        val copy = (chunkLength - chunkPos).coerceAtMost(byteCount)
+        System.arraycopy(chunkBuffer, chunkPos, outBuffer, byteOffset, copy)
+        chunkPos += copy
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return chunkLength - chunkPos
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        baseStream.close()
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipher
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Encrypt the bytes written in independent authenticated chunks of [ChunkedCipher.chunkSize] bytes,
+ * the last chunk is always shorter than a full chunk (and can be empty) to detect a truncation.
+ */
+class ChunkedCipherOutputStream(private val baseStream: OutputStream,
+                                private val chunkedCipher: ChunkedCipher) : OutputStream() {
+
+    private val chunkBuffer = ByteArray(chunkedCipher.chunkSize)
+    private val encryptedBuffer = ByteArray(chunkedCipher.encryptedChunkSize)
+    private var chunkPos = 0
+    private var chunkIndex = 0L
+    private var closed = false
+
+    @Throws(IOException::class)
+    override fun write(oneByte: Int) {
+        chunkBuffer[chunkPos++] = oneByte.toByte()
+        if (chunkPos == chunkBuffer.size) {
+            writeChunk(false)
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun write(buffer: ByteArray) {
+        write(buffer, 0, buffer.size)
+    }
+
+    @Throws(IOException::class)
+    override fun write(buffer: ByteArray, offset: Int, count: Int) {
+        var currentOffset = offset
+        var remaining = count
+        while (remaining > 0) {
+            val copy = (chunkBuffer.size - chunkPos).coerceAtMost(remaining)
+            System.arraycopy(buffer, currentOffset, chunkBuffer, chunkPos, copy)
+            chunkPos += copy
+            currentOffset += copy
+            remaining -= copy
+            // A full chunk is never the last one
+            if (chunkPos == chunkBuffer.size) {
+                writeChunk(false)
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeChunk(last: Boolean) {
+        val length = chunkedCipher.encryptChunk(chunkIndex, last, chunkBuffer, chunkPos, encryptedBuffer)
+        baseStream.write(encryptedBuffer, 0, length)
+        chunkIndex++
+        chunkPos = 0
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        baseStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed) return
+        closed = true
+        try {
+            writeChunk(true)
+        } finally {
+            baseStream.close()
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.util.zip.Deflater
+
+/**
+ * Compressed stream whose deflate level can be changed between two writes
+ */
+interface DeflateLevelOutputStream {
+
+    @Throws(IOException::class)
+    fun setDeflateLevel(level: Int)
+
+    companion object {
+        const val LEVEL_STORE = Deflater.NO_COMPRESSION
+        const val LEVEL_DEFAULT = Deflater.DEFAULT_COMPRESSION
+    }
+}
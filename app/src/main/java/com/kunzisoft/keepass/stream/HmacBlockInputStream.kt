@@ -26,16 +26,41 @@ import com.kunzisoft.keepass.utils.uLongTo8Bytes
 import com.kunzisoft.keepass.database.crypto.HmacBlock
 import java.io.IOException
 import java.io.InputStream
+import java.io.InterruptedIOException
 import java.util.*
+import java.util.concurrent.*
 import javax.crypto.Mac
 
-class HmacBlockInputStream(private val baseStream: InputStream, private val verify: Boolean, private val key: ByteArray) : InputStream() {
+/**
+ * Read and verify the HMAC blocks of a KDBX 4 stream.
+ * With [readAheadBlocks] greater than 1, up to [readAheadBlocks] blocks are read in advance
+ * and their HMAC are verified concurrently on a worker pool, blocks are still returned in order.
+ */
+class HmacBlockInputStream(private val baseStream: InputStream,
+                           private val verify: Boolean,
+                           private val key: ByteArray,
+                           private val readAheadBlocks: Int = 0) : InputStream() {
+
+    private class RawBlock(val storedHmac: ByteArray,
+                           val pbBlockIndex: ByteArray,
+                           val pbBlockSize: ByteArray,
+                           val data: ByteArray)
 
     private var buffer: ByteArray = ByteArray(0)
     private var bufferPos = 0
     private var blockIndex = UnsignedLong(0L)
     private var endOfStream = false
 
+    private var endOfBaseStream = false
+    private val pendingBlocks = LinkedList<Future<RawBlock>>()
+    private var verifyExecutor: ExecutorService? = if (verify && readAheadBlocks > 1)
+        Executors.newFixedThreadPool(readAheadBlocks.coerceAtMost(
+            Runtime.getRuntime().availableProcessors())) { runnable ->
+            Thread(runnable, TAG).apply { isDaemon = true }
+        }
+    else
+        null
+
     @Throws(IOException::class)
     override fun read(): Int {
         if (endOfStream) return -1
@@ -83,9 +108,7 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
     }
 
     @Throws(IOException::class)
-    private fun readSafeBlock(): Boolean {
-        if (endOfStream) return false
-
+    private fun readRawBlock(): RawBlock {
         val storedHmac = baseStream.readBytesLength(32)
         if (storedHmac.size != 32) {
             throw IOException("File corrupted")
@@ -96,47 +119,100 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
             throw IOException("File corrupted")
         }
         val blockSize = bytes4ToUInt(pbBlockSize)
-        bufferPos = 0
 
-        buffer = baseStream.readBytesLength(blockSize.toKotlinInt())
+        val pbBlockIndex = uLongTo8Bytes(blockIndex)
+        blockIndex.plusOne()
 
-        if (verify) {
-            val pbBlockIndex = uLongTo8Bytes(blockIndex)
+        return RawBlock(storedHmac, pbBlockIndex, pbBlockSize,
+                baseStream.readBytesLength(blockSize.toKotlinInt()))
+    }
 
-            val blockKey = HmacBlock.getHmacKey64(key, pbBlockIndex)
-            val hmac: Mac = HmacBlock.getHmacSha256(blockKey)
-            hmac.update(pbBlockIndex)
-            hmac.update(pbBlockSize)
+    @Throws(IOException::class)
+    private fun verifyBlock(block: RawBlock) {
+        val blockKey = HmacBlock.getHmacKey64(key, block.pbBlockIndex)
+        val hmac: Mac = HmacBlock.getHmacSha256(blockKey)
+        hmac.update(block.pbBlockIndex)
+        hmac.update(block.pbBlockSize)
+
+        if (block.data.isNotEmpty()) {
+            hmac.update(block.data)
+        }
 
-            if (buffer.isNotEmpty()) {
-                hmac.update(buffer)
-            }
+        val cmpHmac: ByteArray = hmac.doFinal()
+        Arrays.fill(blockKey, 0.toByte())
 
-            val cmpHmac: ByteArray = hmac.doFinal()
-            Arrays.fill(blockKey, 0.toByte())
+        if (!cmpHmac.contentEquals(block.storedHmac)) {
+            throw IOException("Invalid Hmac")
+        }
+    }
 
-            if (!cmpHmac.contentEquals(storedHmac)) {
-                throw IOException("Invalid Hmac")
+    /**
+     * Read blocks in advance and submit their verification to the worker pool,
+     * then wait for the oldest one
+     */
+    @Throws(IOException::class)
+    private fun nextVerifiedBlock(executor: ExecutorService): RawBlock {
+        while (!endOfBaseStream && pendingBlocks.size < readAheadBlocks) {
+            val rawBlock = readRawBlock()
+            if (rawBlock.data.isEmpty())
+                endOfBaseStream = true
+            pendingBlocks.add(executor.submit(Callable {
+                verifyBlock(rawBlock)
+                rawBlock
+            }))
+        }
+        try {
+            return pendingBlocks.removeFirst().get()
+        } catch (e: ExecutionException) {
+            when (val cause = e.cause) {
+                is IOException -> throw cause
+                else -> throw IOException(cause)
             }
-
+        } catch (e: InterruptedException) {
+            throw InterruptedIOException("Hmac verification interrupted")
         }
+    }
 
-        blockIndex.plusOne()
+    @Throws(IOException::class)
+    private fun readSafeBlock(): Boolean {
+        if (endOfStream) return false
+
+        val executor = verifyExecutor
+        val block = if (executor != null) {
+            nextVerifiedBlock(executor)
+        } else {
+            readRawBlock().also { rawBlock ->
+                if (verify) {
+                    verifyBlock(rawBlock)
+                }
+            }
+        }
+        bufferPos = 0
+        buffer = block.data
 
-        if (blockSize.toKotlinLong() == 0L) {
+        if (buffer.isEmpty()) {
             endOfStream = true
+            shutdownVerifyExecutor()
             return false
         }
 
         return true
     }
 
+    private fun shutdownVerifyExecutor() {
+        pendingBlocks.forEach { it.cancel(true) }
+        pendingBlocks.clear()
+        verifyExecutor?.shutdownNow()
+        verifyExecutor = null
+    }
+
     override fun markSupported(): Boolean {
         return false
     }
 
     @Throws(IOException::class)
     override fun close() {
+        shutdownVerifyExecutor()
         baseStream.close()
     }
 
@@ -149,4 +225,8 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
     override fun available(): Int {
         return buffer.size - bufferPos
     }
+
+    companion object {
+        private val TAG = HmacBlockInputStream::class.java.name
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import android.os.Build
+import androidx.annotation.RequiresApi
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+/**
+ * Standard GZIP stream (one member) whose data is split in blocks deflated in parallel,
+ * like pigz. Each block is primed with the last 32 KB of the data before it
+ * and ends on a byte boundary with a sync flush, so the raw deflate outputs can simply be
+ * concatenated between a single GZIP header and trailer.
+ * Sync flush needs API 19, use a serial GZIP stream below.
+ */
+@RequiresApi(api = Build.VERSION_CODES.KITKAT)
+class ParallelGZIPOutputStream(private val outputStream: OutputStream,
+                               private val blockSize: Int = DEFAULT_BLOCK_SIZE,
+                               threads: Int = Runtime.getRuntime().availableProcessors())
+    : OutputStream(), DeflateLevelOutputStream {
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(threads) { runnable ->
+        Thread(runnable, TAG).apply { isDaemon = true }
+    }
+    private val maxPendingBlocks = threads * 2
+    private val pendingBlocks = LinkedList<Future<ByteArray>>()
+
+    private var buffer = ByteArray(blockSize)
+    private var bufferLength = 0
+    private var level = DeflateLevelOutputStream.LEVEL_DEFAULT
+
+    // Last bytes written, dictionary of the next block
+    private val window = ByteArray(WINDOW_SIZE)
+    private var windowLength = 0
+
+    private val crc = CRC32()
+    private var totalLength = 0L
+    private var closed = false
+
+    init {
+        outputStream.write(GZIP_HEADER)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        if (closed) throw IOException("Stream closed")
+        if (bufferLength == blockSize)
+            submitBlock(false)
+        buffer[bufferLength++] = b.toByte()
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (closed) throw IOException("Stream closed")
+        var offset = off
+        var remaining = len
+        while (remaining > 0) {
+            if (bufferLength == blockSize)
+                submitBlock(false)
+            val copy = (blockSize - bufferLength).coerceAtMost(remaining)
+            System.arraycopy(b, offset, buffer, bufferLength, copy)
+            bufferLength += copy
+            offset += copy
+            remaining -= copy
+        }
+    }
+
+    /**
+     * The current block is ended, so the next written bytes are deflated with [level]
+     */
+    @Throws(IOException::class)
+    override fun setDeflateLevel(level: Int) {
+        if (this.level == level)
+            return
+        if (bufferLength > 0)
+            submitBlock(false)
+        this.level = level
+    }
+
+    @Throws(IOException::class)
+    private fun submitBlock(last: Boolean) {
+        val input = buffer
+        val length = bufferLength
+        val dictionary = if (windowLength > 0) window.copyOf(windowLength) else null
+        val blockLevel = level
+
+        crc.update(input, 0, length)
+        totalLength += length
+        updateWindow(input, length)
+
+        pendingBlocks.add(executor.submit<ByteArray> {
+            deflateBlock(input, length, dictionary, blockLevel, last)
+        })
+        buffer = ByteArray(blockSize)
+        bufferLength = 0
+
+        while (pendingBlocks.size > maxPendingBlocks) {
+            writeNextBlock()
+        }
+    }
+
+    private fun updateWindow(data: ByteArray, length: Int) {
+        if (length >= WINDOW_SIZE) {
+            System.arraycopy(data, length - WINDOW_SIZE, window, 0, WINDOW_SIZE)
+            windowLength = WINDOW_SIZE
+        } else {
+            val keep = windowLength.coerceAtMost(WINDOW_SIZE - length)
+            System.arraycopy(window, windowLength - keep, window, 0, keep)
+            System.arraycopy(data, 0, window, keep, length)
+            windowLength = keep + length
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeNextBlock() {
+        val compressed = try {
+            pendingBlocks.removeFirst().get()
+        } catch (e: ExecutionException) {
+            when (val cause = e.cause) {
+                is IOException -> throw cause
+                else -> throw IOException(cause)
+            }
+        } catch (e: InterruptedException) {
+            throw IOException(e)
+        }
+        outputStream.write(compressed)
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        outputStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed) return
+        try {
+            submitBlock(true)
+            while (pendingBlocks.isNotEmpty()) {
+                writeNextBlock()
+            }
+            writeIntLE(crc.value)
+            writeIntLE(totalLength)
+        } finally {
+            stopDeflate()
+            outputStream.close()
+        }
+    }
+
+    /**
+     * Stops the deflate threads without writing the end of the stream, after a failed output.
+     * The underlying stream is left to its owner.
+     */
+    fun abort() {
+        if (closed) return
+        stopDeflate()
+    }
+
+    private fun stopDeflate() {
+        closed = true
+        pendingBlocks.forEach { it.cancel(true) }
+        pendingBlocks.clear()
+        executor.shutdownNow()
+    }
+
+    @Throws(IOException::class)
+    private fun writeIntLE(value: Long) {
+        outputStream.write((value and 0xFF).toInt())
+        outputStream.write((value ushr 8 and 0xFF).toInt())
+        outputStream.write((value ushr 16 and 0xFF).toInt())
+        outputStream.write((value ushr 24 and 0xFF).toInt())
+    }
+
+    companion object {
+        private val TAG = ParallelGZIPOutputStream::class.java.name
+
+        const val DEFAULT_BLOCK_SIZE = 128 * 1024
+        private const val WINDOW_SIZE = 32 * 1024
+
+        private val GZIP_HEADER = byteArrayOf(
+                0x1f, 0x8b.toByte(), // Magic
+                Deflater.DEFLATED.toByte(), // Compression method
+                0, // Flags
+                0, 0, 0, 0, // Modification time
+                0, // Extra flags
+                0 // Operating system
+        )
+
+        private fun deflateBlock(input: ByteArray,
+                                 length: Int,
+                                 dictionary: ByteArray?,
+                                 level: Int,
+                                 last: Boolean): ByteArray {
+            val deflater = Deflater(level, true)
+            try {
+                dictionary?.let { deflater.setDictionary(it) }
+                deflater.setInput(input, 0, length)
+                val compressed = ByteArrayOutputStream(length / 2 + 64)
+                val output = ByteArray(16 * 1024)
+                if (last) {
+                    deflater.finish()
+                    while (!deflater.finished()) {
+                        val count = deflater.deflate(output)
+                        compressed.write(output, 0, count)
+                    }
+                } else {
+                    // Deflate until the sync flush is complete (output buffer not filled)
+                    do {
+                        val count = deflater.deflate(output, 0, output.size, Deflater.SYNC_FLUSH)
+                        compressed.write(output, 0, count)
+                    } while (count == output.size)
+                }
+                return compressed.toByteArray()
+            } finally {
+                deflater.end()
+            }
+        }
+    }
+}
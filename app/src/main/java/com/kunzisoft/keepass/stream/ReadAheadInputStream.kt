@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Pipeline stage which pulls [baseStream] on its own thread
+ * into a bounded ring of reusable blocks, so that the work done by [baseStream]
+ * (HMAC check, decryption, inflate...) overlaps with the work done by the reader.
+ */
+class ReadAheadInputStream(private val baseStream: InputStream,
+                           blockSize: Int = DEFAULT_BLOCK_SIZE,
+                           blockCount: Int = DEFAULT_BLOCK_COUNT,
+                           name: String = TAG) : InputStream() {
+
+    private class Block(val data: ByteArray) {
+        var length = 0
+    }
+
+    private val freeBlocks = ArrayBlockingQueue<Block>(blockCount)
+    // One more place for the end marker
+    private val filledBlocks = ArrayBlockingQueue<Block>(blockCount + 1)
+
+    private var currentBlock: Block? = null
+    private var blockPos = 0
+    private var endOfStream = false
+    private var closed = false
+
+    @Volatile
+    private var stageError: Throwable? = null
+
+    private val stageThread = Thread({ fillBlocks() }, name)
+
+    init {
+        for (i in 0 until blockCount) {
+            freeBlocks.add(Block(ByteArray(blockSize)))
+        }
+        stageThread.isDaemon = true
+        stageThread.start()
+    }
+
+    private fun fillBlocks() {
+        try {
+            while (!Thread.currentThread().isInterrupted) {
+                val block = freeBlocks.take()
+                val read = readBlock(block.data)
+                if (read <= 0) {
+                    break
+                }
+                block.length = read
+                filledBlocks.put(block)
+            }
+        } catch (e: InterruptedException) {
+            // Stage closed by the reader
+            return
+        } catch (e: Throwable) {
+            stageError = e
+        }
+        filledBlocks.offer(END_OF_STREAM)
+    }
+
+    /**
+     * Fill as much as possible of the block, a short count means the end of the base stream
+     */
+    @Throws(IOException::class)
+    private fun readBlock(data: ByteArray): Int {
+        var offset = 0
+        while (offset < data.size) {
+            val read = baseStream.read(data, offset, data.size - offset)
+            if (read < 0)
+                break
+            if (read == 0) {
+                // Nothing available, block on a single byte instead of spinning
+                val byte = baseStream.read()
+                if (byte < 0)
+                    break
+                data[offset++] = byte.toByte()
+            } else {
+                offset += read
+            }
+        }
+        return offset
+    }
+
+    /**
+     * @return false, when the end of the stage is reached
+     */
+    @Throws(IOException::class)
+    private fun nextBlock(): Boolean {
+        if (endOfStream) return false
+        if (closed) throw IOException("Stream closed")
+
+        currentBlock?.let {
+            freeBlocks.offer(it)
+        }
+        currentBlock = null
+        blockPos = 0
+
+        val block = try {
+            filledBlocks.take()
+        } catch (e: InterruptedException) {
+            throw InterruptedIOException("Pipeline stage interrupted")
+        }
+        if (block === END_OF_STREAM) {
+            endOfStream = true
+            stageError?.let { error ->
+                when (error) {
+                    is IOException -> throw error
+                    is OutOfMemoryError -> throw error
+                    else -> throw IOException(error)
+                }
+            }
+            return false
+        }
+        currentBlock = block
+        return true
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        val block = currentBlock
+        if (block == null || blockPos == block.length) {
+            if (!nextBlock()) return -1
+        }
+        val output = currentBlock!!.data[blockPos].toInt() and 0xFF
+        blockPos++
+        return output
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray, byteOffset: Int, byteCount: Int): Int {
+        if (byteCount == 0) return 0
+        var block = currentBlock
+        if (block == null || blockPos == block.length) {
+            if (!nextBlock()) return -1
+            block = currentBlock!!
+        }
+        val copy = (block.length - blockPos).coerceAtMost(byteCount)
+        System.arraycopy(block.data, blockPos, outBuffer, byteOffset, copy)
+        blockPos += copy
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray): Int {
+        return read(outBuffer, 0, outBuffer.size)
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return currentBlock?.let { it.length - blockPos } ?: 0
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed) return
+        closed = true
+        stageThread.interrupt()
+        try {
+            // A read of the base stream is not interruptible, closing the base stream ends it
+            stageThread.join(CLOSE_TIMEOUT)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        filledBlocks.clear()
+        freeBlocks.clear()
+        currentBlock = null
+        baseStream.close()
+    }
+
+    companion object {
+        private val TAG = ReadAheadInputStream::class.java.name
+
+        private val END_OF_STREAM = Block(ByteArray(0))
+
+        const val DEFAULT_BLOCK_SIZE = 64 * 1024
+        const val DEFAULT_BLOCK_COUNT = 4
+        private const val CLOSE_TIMEOUT = 1000L
+    }
+}
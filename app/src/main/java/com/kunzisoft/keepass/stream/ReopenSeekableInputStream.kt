@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Seekable view of a sequential stream, a backward seek reopens the stream with [openStream]
+ * and a forward seek skips the bytes, used when the source cannot be accessed randomly
+ * (for example compressed data)
+ */
+class ReopenSeekableInputStream(private var knownSize: Long?,
+                                private val openStream: () -> InputStream) : SeekableInputStream() {
+
+    private var inputStream: InputStream = openStream()
+    private var pos = 0L
+
+    @Throws(IOException::class)
+    override fun size(): Long {
+        knownSize?.let { return it }
+        // Unknown size, count the bytes once with a new stream
+        var count = 0L
+        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+        openStream().use { countStream ->
+            var read = countStream.read(buffer)
+            while (read != -1) {
+                count += read
+                read = countStream.read(buffer)
+            }
+        }
+        knownSize = count
+        return count
+    }
+
+    override fun position(): Long {
+        return pos
+    }
+
+    @Throws(IOException::class)
+    override fun seek(position: Long) {
+        if (position < 0)
+            throw IOException("Position out of bounds")
+        if (position < pos) {
+            inputStream.close()
+            inputStream = openStream()
+            pos = 0
+        }
+        while (pos < position) {
+            val skipped = inputStream.skip(position - pos)
+            if (skipped <= 0) {
+                // Some streams don't skip, read the bytes instead
+                if (inputStream.read() == -1)
+                    throw IOException("Position out of bounds")
+                pos++
+            } else {
+                pos += skipped
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        val read = inputStream.read()
+        if (read != -1)
+            pos++
+        return read
+    }
+
+    @Throws(IOException::class)
+    override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+        val read = inputStream.read(buffer, offset, length)
+        if (read > 0)
+            pos += read
+        return read
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return inputStream.available()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        inputStream.close()
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * InputStream which can be repositioned, to read only the ranges needed
+ */
+abstract class SeekableInputStream : InputStream() {
+
+    /**
+     * Total number of bytes which can be read from the start of the stream
+     */
+    @Throws(IOException::class)
+    abstract fun size(): Long
+
+    /**
+     * Position of the next byte read
+     */
+    abstract fun position(): Long
+
+    @Throws(IOException::class)
+    abstract fun seek(position: Long)
+
+    /**
+     * Positioned read, same as [seek] followed by [read]
+     */
+    @Throws(IOException::class)
+    fun read(position: Long, buffer: ByteArray, offset: Int, length: Int): Int {
+        seek(position)
+        return read(buffer, offset, length)
+    }
+
+    @Throws(IOException::class)
+    override fun read(buffer: ByteArray): Int {
+        return read(buffer, 0, buffer.size)
+    }
+
+    @Throws(IOException::class)
+    override fun skip(byteCount: Long): Long {
+        if (byteCount <= 0) return 0
+        val start = position()
+        val target = (start + byteCount).coerceAtMost(size())
+        seek(target)
+        return target - start
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+}
@@ -34,24 +34,79 @@ object BinaryDatabaseManager {
         }
     }
 
+    /**
+     * Resume a download interrupted after the bytes already written in [attachmentToUploadUri],
+     * only the chunks after this position are decrypted.
+     * Returns false if the download can't be resumed, the whole file must then be downloaded
+     */
+    fun resumeDownloadFromDatabase(database: Database,
+                                   attachmentToUploadUri: Uri,
+                                   binaryData: BinaryData,
+                                   contentResolver: ContentResolver,
+                                   update: ((percent: Int)->Unit)? = null,
+                                   canceled: ()-> Boolean = { false },
+                                   bufferSize: Int = DEFAULT_BUFFER_SIZE): Boolean {
+        val downloadedLength = try {
+            val fileDescriptor = contentResolver.openFileDescriptor(attachmentToUploadUri, "r")
+                    ?: return false
+            try {
+                fileDescriptor.statSize
+            } finally {
+                fileDescriptor.close()
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to retrieve the length already downloaded", e)
+            return false
+        }
+        if (downloadedLength <= 0)
+            return false
+        binaryData.getSeekableInputDataStream(database.binaryCache).use { inputStream ->
+            val fileSize = inputStream.size()
+            if (downloadedLength > fileSize)
+                return false
+            val outputStream = try {
+                contentResolver.openOutputStream(attachmentToUploadUri, "wa")
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to append to the download", e)
+                null
+            } ?: return false
+            outputStream.use {
+                inputStream.seek(downloadedLength)
+                copyWithProgress(inputStream, outputStream, downloadedLength, fileSize,
+                        update, canceled, bufferSize)
+            }
+        }
+        return true
+    }
+
     private fun downloadFromDatabase(binaryCache: BinaryCache,
                                      outputStream: OutputStream,
                                      binaryData: BinaryData,
                                      update: ((percent: Int)->Unit)? = null,
                                      canceled: ()-> Boolean = { false },
                                      bufferSize: Int = DEFAULT_BUFFER_SIZE) {
-        val fileSize = binaryData.getSize()
-        var dataDownloaded = 0L
         binaryData.getUnGzipInputDataStream(binaryCache).use { inputStream ->
-            inputStream.readAllBytes(bufferSize, canceled) { buffer ->
-                outputStream.write(buffer)
-                dataDownloaded += buffer.size
-                try {
-                    val percentDownload = (100 * dataDownloaded / fileSize).toInt()
-                    update?.invoke(percentDownload)
-                } catch (e: Exception) {
-                    Log.w(TAG, "Unable to call update callback during download", e)
-                }
+            copyWithProgress(inputStream, outputStream, 0L, binaryData.getSize(),
+                    update, canceled, bufferSize)
+        }
+    }
+
+    private fun copyWithProgress(inputStream: InputStream,
+                                 outputStream: OutputStream,
+                                 startPosition: Long,
+                                 fileSize: Long,
+                                 update: ((percent: Int)->Unit)?,
+                                 canceled: ()-> Boolean,
+                                 bufferSize: Int) {
+        var dataDownloaded = startPosition
+        inputStream.readAllBytes(bufferSize, canceled) { buffer ->
+            outputStream.write(buffer)
+            dataDownloaded += buffer.size
+            try {
+                val percentDownload = (100 * dataDownloaded / fileSize).toInt()
+                update?.invoke(percentDownload)
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to call update callback during download", e)
             }
         }
     }
@@ -165,21 +220,20 @@ object BinaryDatabaseManager {
         // First decode with inJustDecodeBounds=true to check dimensions
         return BitmapFactory.Options().run {
             try {
-                inJustDecodeBounds = true
-                binaryData.getUnGzipInputDataStream(binaryCache).use {
-                    BitmapFactory.decodeStream(it, null, this)
-                }
-                // Calculate inSampleSize
-                var scale = 1
-                if (outHeight > maxWidth || outWidth > maxWidth) {
-                    scale = 2.0.pow(ceil(ln(maxWidth / max(outHeight, outWidth).toDouble()) / ln(0.5))).toInt()
-                }
-                inSampleSize = scale
+                binaryData.getSeekableInputDataStream(binaryCache).use { inputStream ->
+                    inJustDecodeBounds = true
+                    BitmapFactory.decodeStream(inputStream, null, this)
+                    // Calculate inSampleSize
+                    var scale = 1
+                    if (outHeight > maxWidth || outWidth > maxWidth) {
+                        scale = 2.0.pow(ceil(ln(maxWidth / max(outHeight, outWidth).toDouble()) / ln(0.5))).toInt()
+                    }
+                    inSampleSize = scale
 
-                // Decode bitmap with inSampleSize set
-                inJustDecodeBounds = false
-                binaryData.getUnGzipInputDataStream(binaryCache).use {
-                    BitmapFactory.decodeStream(it, null, this)
+                    // Decode bitmap with inSampleSize set, from the start of the same stream
+                    inJustDecodeBounds = false
+                    inputStream.seek(0)
+                    BitmapFactory.decodeStream(inputStream, null, this)
                 }
             } catch (e: Exception) {
                 null
@@ -102,6 +102,22 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
     override fun updateMessage(@StringRes resId: Int) {
         this.message = resId
         updateView(messageView, message)
+        // New step, progress unknown
+        updateProgress(UNDEFINED, UNDEFINED)
+    }
+
+    override fun updateProgress(progress: Int, max: Int) {
+        activity?.runOnUiThread {
+            progressView?.apply {
+                if (progress == UNDEFINED || max <= 0) {
+                    isIndeterminate = true
+                } else {
+                    isIndeterminate = false
+                    this.max = max
+                    this.progress = progress
+                }
+            }
+        }
     }
 
     fun updateWarning(@StringRes resId: Int) {
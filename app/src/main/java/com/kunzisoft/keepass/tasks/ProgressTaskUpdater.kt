@@ -23,4 +23,9 @@ import androidx.annotation.StringRes
 
 interface ProgressTaskUpdater {
     fun updateMessage(@StringRes resId: Int)
+
+    /**
+     * Progress of the current step, [progress] out of [max]
+     */
+    fun updateProgress(progress: Int, max: Int)
 }
@@ -78,6 +78,23 @@ fun InputStream.readBytes(length: Int, bufferSize: Int = DEFAULT_BUFFER_SIZE,
     }
 }
 
+/**
+ * Copy [length] bytes of the stream in [outputStream] through the same [buffer],
+ * no array is allocated for each chunk read
+ */
+@Throws(IOException::class)
+fun InputStream.copyBytesTo(outputStream: OutputStream, length: Long,
+                            buffer: ByteArray = ByteArray(DEFAULT_BUFFER_SIZE)) {
+    var remaining = length
+    while (remaining > 0) {
+        val read = this.read(buffer, 0, buffer.size.toLong().coerceAtMost(remaining).toInt())
+        if (read == -1)
+            throw IOException("Unexpected end of stream")
+        outputStream.write(buffer, 0, read)
+        remaining -= read
+    }
+}
+
 /**
  *  Read a 32-bit value and return it as a long, so that it can
  *  be interpreted as an unsigned integer.
@@ -55,10 +55,7 @@ class PublicSuffixList(
      * are passed (e.g., a full URL, a domain with a trailing '/', etc) this may return an incorrect result.
      */
     fun isPublicSuffix(domain: String): Deferred<Boolean> = scope.async {
-        when (data.getPublicSuffixOffset(domain)) {
-            is PublicSuffixOffset.PublicSuffix -> true
-            else -> false
-        }
+        data.getPublicSuffixOffset(domain) == PublicSuffixListData.PUBLIC_SUFFIX
     }
 
     /**
@@ -76,13 +73,20 @@ class PublicSuffixList(
      * are passed (e.g., a full URL, a domain with a trailing '/', etc) this may return an incorrect result.
      */
     fun getPublicSuffixPlusOne(domain: String): Deferred<String?> = scope.async {
-        when (val offset = data.getPublicSuffixOffset(domain)) {
-            is PublicSuffixOffset.Offset -> domain
-                .split('.')
-                .drop(offset.value)
-                .joinToString(separator = ".")
-            else -> null
-        }
+        publicSuffixPlusOne(domain)
+    }
+
+    /**
+     * Returns the registrable domain of each domain of [domains], in the same order,
+     * with a single coroutine for the whole batch. See [getPublicSuffixPlusOne].
+     */
+    fun getPublicSuffixPlusOne(domains: List<String>): Deferred<List<String?>> = scope.async {
+        domains.map { publicSuffixPlusOne(it) }
+    }
+
+    private fun publicSuffixPlusOne(domain: String): String? {
+        val offset = data.getPublicSuffixOffset(domain)
+        return if (offset >= 0) domain.substring(startOfLabel(domain, offset)) else null
     }
 
     /**
@@ -100,13 +104,8 @@ class PublicSuffixList(
      * are passed (e.g., a full URL, a domain with a trailing '/', etc) this may return an incorrect result.
      */
     fun getPublicSuffix(domain: String) = scope.async {
-        when (val offset = data.getPublicSuffixOffset(domain)) {
-            is PublicSuffixOffset.Offset -> domain
-                .split('.')
-                .drop(offset.value + 1)
-                .joinToString(separator = ".")
-            else -> null
-        }
+        val offset = data.getPublicSuffixOffset(domain)
+        if (offset >= 0) domain.substring(startOfLabel(domain, offset + 1)) else null
     }
 
     /**
@@ -124,12 +123,34 @@ class PublicSuffixList(
      * are passed (e.g., a full URL, a domain with a trailing '/', etc) this may return an incorrect result.
      */
     fun stripPublicSuffix(domain: String) = scope.async {
-        when (val offset = data.getPublicSuffixOffset(domain)) {
-            is PublicSuffixOffset.Offset -> domain
-                .split('.')
-                .joinToString(separator = ".", limit = offset.value + 1, truncated = "")
-                .dropLast(1)
-            else -> domain
+        val offset = data.getPublicSuffixOffset(domain)
+        if (offset >= 0) domain.substring(0, startOfLabel(domain, offset + 1) - 1) else domain
+    }
+
+    /**
+     * Index of the first character of the label [labelIndex] in [domain]
+     */
+    private fun startOfLabel(domain: String, labelIndex: Int): Int {
+        var start = 0
+        for (i in 0 until labelIndex) {
+            start = domain.indexOf('.', start) + 1
+        }
+        return start
+    }
+
+    companion object {
+        @Volatile
+        private var sharedInstance: PublicSuffixList? = null
+
+        /**
+         * Process-wide instance, the suffix data is loaded once and kept in memory.
+         */
+        fun getInstance(context: Context): PublicSuffixList {
+            return sharedInstance ?: synchronized(this) {
+                sharedInstance ?: PublicSuffixList(context.applicationContext).also {
+                    sharedInstance = it
+                }
+            }
         }
     }
 }
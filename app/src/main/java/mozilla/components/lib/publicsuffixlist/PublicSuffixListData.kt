@@ -4,155 +4,187 @@
 
 package mozilla.components.lib.publicsuffixlist
 
-import mozilla.components.lib.publicsuffixlist.ext.binarySearch
 import java.net.IDN
 
 /**
  * Class wrapping the public suffix list data and offering methods for accessing rules in it.
+ *
+ * The rules are stored in an immutable trie of labels read from the top level domain,
+ * flattened in arrays where the children of a node are contiguous and sorted,
+ * so a lookup walks the labels of the domain in place without allocation.
  */
 internal class PublicSuffixListData(
-    private val rules: ByteArray,
-    private val exceptions: ByteArray
+    rules: ByteArray,
+    exceptions: ByteArray
 ) {
-    private fun binarySearchRules(labels: List<ByteArray>, labelIndex: Int): String? {
-        return rules.binarySearch(labels, labelIndex)
+    private val labels: Array<String>
+    private val firstChild: IntArray
+    private val childCount: IntArray
+    private val flags: ByteArray
+
+    private class BuildNode {
+        val children = HashMap<String, BuildNode>()
+        var flags = 0
     }
 
-    private fun binarySearchExceptions(labels: List<ByteArray>, labelIndex: Int): String? {
-        return exceptions.binarySearch(labels, labelIndex)
-    }
-
-    @Suppress("ReturnCount")
-    fun getPublicSuffixOffset(domain: String): PublicSuffixOffset? {
-        if (domain.isEmpty()) {
-            return null
-        }
-
-        val domainLabels = IDN.toUnicode(domain).split('.')
-        if (domainLabels.find { it.isEmpty() } != null) {
-            // At least one of the labels is empty: Bail out.
-            return null
-        }
-
-        val rule = findMatchingRule(domainLabels)
-
-        if (domainLabels.size == rule.size && rule[0][0] != PublicSuffixListData.EXCEPTION_MARKER) {
-            // The domain is a public suffix.
-            return if (rule == PublicSuffixListData.PREVAILING_RULE) {
-                PublicSuffixOffset.PrevailingRule
-            } else {
-                PublicSuffixOffset.PublicSuffix
+    init {
+        val root = BuildNode()
+        addRules(root, rules, FLAG_RULE)
+        addRules(root, exceptions, FLAG_EXCEPTION)
+
+        // Flatten breadth first, so the children of each node are contiguous
+        val nodes = ArrayList<BuildNode>()
+        val nodeLabels = ArrayList<String>()
+        nodes.add(root)
+        nodeLabels.add("")
+        val firstChildList = ArrayList<Int>()
+        val childCountList = ArrayList<Int>()
+        var index = 0
+        while (index < nodes.size) {
+            val node = nodes[index]
+            firstChildList.add(nodes.size)
+            childCountList.add(node.children.size)
+            node.children.keys.sorted().forEach { label ->
+                nodes.add(node.children.getValue(label))
+                nodeLabels.add(label)
             }
+            index++
         }
+        labels = nodeLabels.toTypedArray()
+        firstChild = firstChildList.toIntArray()
+        childCount = childCountList.toIntArray()
+        flags = ByteArray(nodes.size) { nodes[it].flags.toByte() }
+    }
 
-        return if (rule[0][0] == PublicSuffixListData.EXCEPTION_MARKER) {
-            // Exception rules hold the effective TLD plus one.
-            PublicSuffixOffset.Offset(domainLabels.size - rule.size)
-        } else {
-            // Otherwise the rule is for a public suffix, so we must take one more label.
-            PublicSuffixOffset.Offset(domainLabels.size - (rule.size + 1))
+    private fun addRules(root: BuildNode, data: ByteArray, ruleFlag: Int) {
+        String(data, Charsets.UTF_8).split('\n').forEach { rule ->
+            if (rule.isEmpty())
+                return@forEach
+            var node = root
+            val ruleLabels = rule.split('.')
+            for (i in ruleLabels.size - 1 downTo 0) {
+                val label = ruleLabels[i]
+                if (i == 0 && label == WILDCARD_LABEL) {
+                    // Wildcards are always in the leftmost position
+                    node.flags = node.flags or FLAG_WILDCARD
+                    return@forEach
+                }
+                node = node.children.getOrPut(label) { BuildNode() }
+            }
+            node.flags = node.flags or ruleFlag
         }
     }
 
     /**
-     * Find a matching rule for the given domain labels.
-     *
-     * This algorithm is based on OkHttp's PublicSuffixDatabase class:
-     * https://github.com/square/okhttp/blob/master/okhttp/src/main/java/okhttp3/internal/publicsuffix/PublicSuffixDatabase.java
+     * Returns the number of labels to drop from [domain] to get its registrable domain,
+     * or [PUBLIC_SUFFIX] / [PREVAILING_RULE] if the domain is a public suffix itself,
+     * or [INVALID_DOMAIN] if the domain is empty or contains an empty label.
      */
-    private fun findMatchingRule(domainLabels: List<String>): List<String> {
-        // Break apart the domain into UTF-8 labels, i.e. foo.bar.com turns into [foo, bar, com].
-        val domainLabelsBytes = domainLabels.map { it.toByteArray(Charsets.UTF_8) }
-
-        val exactMatch = findExactMatch(domainLabelsBytes)
-        val wildcardMatch = findWildcardMatch(domainLabelsBytes)
-        val exceptionMatch = findExceptionMatch(domainLabelsBytes, wildcardMatch)
-
-        if (exceptionMatch != null) {
-            return ("${PublicSuffixListData.EXCEPTION_MARKER}$exceptionMatch").split('.')
+    @Suppress("ReturnCount")
+    fun getPublicSuffixOffset(domain: String): Int {
+        if (domain.isEmpty()) {
+            return INVALID_DOMAIN
         }
-
-        if (exactMatch == null && wildcardMatch == null) {
-            return PublicSuffixListData.PREVAILING_RULE
+        // The rules are stored in Unicode, only an IDN domain has to be converted
+        val unicodeDomain = if (isAsciiWithoutPunycode(domain)) domain else IDN.toUnicode(domain)
+
+        var labelCount = 0
+        var exactLength = 0
+        var wildcardLength = 0
+        var exceptionLength = 0
+        var node = ROOT
+        var nodeMatching = true
+        var labelEnd = unicodeDomain.length
+        while (true) {
+            val labelStart = unicodeDomain.lastIndexOf('.', labelEnd - 1) + 1
+            if (labelStart == labelEnd) {
+                // At least one of the labels is empty: Bail out.
+                return INVALID_DOMAIN
+            }
+            labelCount++
+            if (nodeMatching) {
+                if (flags[node].toInt() and FLAG_WILDCARD != 0) {
+                    wildcardLength = labelCount
+                }
+                val child = findChild(node, unicodeDomain, labelStart, labelEnd)
+                if (child < 0) {
+                    nodeMatching = false
+                } else {
+                    node = child
+                    val nodeFlags = flags[node].toInt()
+                    if (nodeFlags and FLAG_RULE != 0)
+                        exactLength = labelCount
+                    if (nodeFlags and FLAG_EXCEPTION != 0)
+                        exceptionLength = labelCount
+                }
+            }
+            if (labelStart == 0)
+                break
+            labelEnd = labelStart - 1
         }
 
-        val exactRuleLabels = exactMatch?.split('.') ?: PublicSuffixListData.EMPTY_RULE
-        val wildcardRuleLabels = wildcardMatch?.split('.') ?: PublicSuffixListData.EMPTY_RULE
-
-        return if (exactRuleLabels.size > wildcardRuleLabels.size) {
-            exactRuleLabels
-        } else {
-            wildcardRuleLabels
+        // Exception rules only apply to wildcard rules and hold the effective TLD plus one.
+        if (exceptionLength > 0 && wildcardLength > 0) {
+            return labelCount - exceptionLength
         }
-    }
-
-    /**
-     * Returns an exact match or null.
-     */
-    private fun findExactMatch(labels: List<ByteArray>): String? {
-        // Start by looking for exact matches. We start at the leftmost label. For example, foo.bar.com
-        // will look like: [foo, bar, com], [bar, com], [com]. The longest matching rule wins.
-
-        for (i in 0 until labels.size) {
-            val rule = binarySearchRules(labels, i)
-
-            if (rule != null) {
-                return rule
-            }
+        val prevailing = exactLength == 0 && wildcardLength == 0
+        val ruleLength = if (prevailing) 1 else maxOf(exactLength, wildcardLength)
+        if (labelCount == ruleLength) {
+            return if (prevailing) PREVAILING_RULE else PUBLIC_SUFFIX
         }
-
-        return null
+        // Otherwise the rule is for a public suffix, so we must take one more label.
+        return labelCount - (ruleLength + 1)
     }
 
     /**
-     * Returns a wildcard match or null.
+     * Binary search of the label between [start] and [end] in [domain] among the children of [node]
      */
-    private fun findWildcardMatch(labels: List<ByteArray>): String? {
-        // In theory, wildcard rules are not restricted to having the wildcard in the leftmost position.
-        // In practice, wildcards are always in the leftmost position. For now, this implementation
-        // cheats and does not attempt every possible permutation. Instead, it only considers wildcards
-        // in the leftmost position. We assert this fact when we generate the public suffix file. If
-        // this assertion ever fails we'll need to refactor this implementation.
-        if (labels.size > 1) {
-            val labelsWithWildcard = labels.toMutableList()
-            for (labelIndex in 0 until labelsWithWildcard.size) {
-                labelsWithWildcard[labelIndex] = PublicSuffixListData.WILDCARD_LABEL
-                val rule = binarySearchRules(labelsWithWildcard, labelIndex)
-                if (rule != null) {
-                    return rule
-                }
+    private fun findChild(node: Int, domain: String, start: Int, end: Int): Int {
+        var low = firstChild[node]
+        var high = low + childCount[node] - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val compare = compareLabel(labels[mid], domain, start, end)
+            when {
+                compare < 0 -> low = mid + 1
+                compare > 0 -> high = mid - 1
+                else -> return mid
             }
         }
-
-        return null
+        return -1
     }
 
-    private fun findExceptionMatch(labels: List<ByteArray>, wildcardMatch: String?): String? {
-        // Exception rules only apply to wildcard rules, so only try it if we matched a wildcard.
-        if (wildcardMatch == null) {
-            return null
+    private fun compareLabel(label: String, domain: String, start: Int, end: Int): Int {
+        val length = end - start
+        val minLength = minOf(label.length, length)
+        for (i in 0 until minLength) {
+            val difference = label[i] - domain[start + i]
+            if (difference != 0)
+                return difference
         }
+        return label.length - length
+    }
 
-        for (labelIndex in 0 until labels.size) {
-            val rule = binarySearchExceptions(labels, labelIndex)
-            if (rule != null) {
-                return rule
-            }
+    private fun isAsciiWithoutPunycode(domain: String): Boolean {
+        for (character in domain) {
+            if (character.code >= ASCII_LIMIT)
+                return false
         }
-
-        return null
+        return !domain.startsWith(PUNYCODE_PREFIX, true)
+                && !domain.contains(".$PUNYCODE_PREFIX", true)
     }
 
     companion object {
-        val WILDCARD_LABEL = byteArrayOf('*'.code.toByte())
-        val PREVAILING_RULE = listOf("*")
-        val EMPTY_RULE = listOf<String>()
-        const val EXCEPTION_MARKER = '!'
+        const val INVALID_DOMAIN = -1
+        const val PUBLIC_SUFFIX = -2
+        const val PREVAILING_RULE = -3
+
+        private const val ROOT = 0
+        private const val FLAG_RULE = 1
+        private const val FLAG_EXCEPTION = 2
+        private const val FLAG_WILDCARD = 4
+        private const val WILDCARD_LABEL = "*"
+        private const val ASCII_LIMIT = 0x80
+        private const val PUNYCODE_PREFIX = "xn--"
     }
 }
-
-internal sealed class PublicSuffixOffset {
-    data class Offset(val value: Int) : PublicSuffixOffset()
-    object PublicSuffix : PublicSuffixOffset()
-    object PrevailingRule : PublicSuffixOffset()
-}
@@ -24,6 +24,7 @@ import org.junit.Assert.assertArrayEquals
 import org.junit.Test
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
 import java.util.*
 import javax.crypto.Cipher
 import javax.crypto.CipherInputStream
@@ -96,6 +97,46 @@ class AESTest {
         assertArrayEquals("Check AES encryption/decryption", androidOut, nativeOut)
     }
 
+    @Test
+    fun testAESDirectBuffer() {
+        // Generate random input
+        val input = ByteArray(mRand.nextInt(65536) + 18)
+        mRand.nextBytes(input)
+        // Generate key
+        val keyArray = ByteArray(32)
+        mRand.nextBytes(keyArray)
+        // Generate IV
+        val ivArray = ByteArray(16)
+        mRand.nextBytes(ivArray)
+
+        val androidEncrypt = CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray).doFinal(input)
+
+        val nativeEncrypt = CipherFactory.getAES(Cipher.ENCRYPT_MODE, keyArray, ivArray, true)
+        val inputBuffer = ByteBuffer.allocateDirect(input.size)
+        inputBuffer.put(input).flip()
+        val encryptedBuffer = ByteBuffer.allocateDirect(nativeEncrypt.getOutputSize(input.size))
+        // Split in two updates to keep bytes in the cache
+        inputBuffer.limit(input.size / 2)
+        nativeEncrypt.update(inputBuffer, encryptedBuffer)
+        inputBuffer.limit(input.size)
+        nativeEncrypt.doFinal(inputBuffer, encryptedBuffer)
+        encryptedBuffer.flip()
+        val nativeEncrypted = ByteArray(encryptedBuffer.remaining())
+        encryptedBuffer.get(nativeEncrypted)
+
+        assertArrayEquals("Check AES direct buffer encryption", androidEncrypt, nativeEncrypted)
+
+        val nativeDecrypt = CipherFactory.getAES(Cipher.DECRYPT_MODE, keyArray, ivArray, true)
+        encryptedBuffer.rewind()
+        // Decrypt in place
+        val decryptedSize = nativeDecrypt.doFinal(encryptedBuffer.duplicate(), encryptedBuffer)
+        encryptedBuffer.flip()
+        val nativeDecrypted = ByteArray(decryptedSize)
+        encryptedBuffer.get(nativeDecrypted)
+
+        assertArrayEquals("Check AES direct buffer decryption", input, nativeDecrypted)
+    }
+
     @Test
     fun testAESKDF() {
         val seed = ByteArray(32)
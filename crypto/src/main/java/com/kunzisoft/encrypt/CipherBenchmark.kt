@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt
+
+import android.util.Log
+import java.util.*
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Micro-benchmark of the providers able to build a cipher,
+ * the fastest one is kept for the lifetime of the process.
+ * A provider is only retained if it gives the same output as the reference provider.
+ */
+internal object CipherBenchmark {
+
+    private val TAG = CipherBenchmark::class.java.name
+
+    // Representative of a block of a database stream
+    private const val BENCHMARK_BLOCK_SIZE = 64 * 1024
+    private const val WARM_UP_ITERATIONS = 2
+    private const val BENCHMARK_ITERATIONS = 4
+
+    /**
+     * Way to retrieve a cipher from a provider, [keyAlgorithm] is the name of the secret key it expects
+     */
+    class Candidate(val name: String,
+                    val keyAlgorithm: String,
+                    val getInstance: () -> Cipher)
+
+    private val mFastestCandidates = HashMap<String, Candidate>()
+
+    /**
+     * Retrieve the fastest candidate for [transformation], the first call runs the benchmark
+     * @param candidates Available implementations, the first one is the reference
+     */
+    @Synchronized
+    fun fastest(transformation: String, ivLength: Int, candidates: List<Candidate>): Candidate {
+        return mFastestCandidates.getOrPut(transformation) {
+            benchmark(ivLength, candidates)
+        }
+    }
+
+    private fun benchmark(ivLength: Int, candidates: List<Candidate>): Candidate {
+        val reference = candidates.first()
+        if (candidates.size == 1)
+            return reference
+
+        val random = Random()
+        val key = ByteArray(32)
+        random.nextBytes(key)
+        val iv = ByteArray(ivLength)
+        random.nextBytes(iv)
+        val input = ByteArray(BENCHMARK_BLOCK_SIZE)
+        random.nextBytes(input)
+
+        val referenceEncrypted = try {
+            crypt(reference, Cipher.ENCRYPT_MODE, key, iv, input)
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to benchmark the reference cipher ${reference.name}", e)
+            return reference
+        }
+
+        var fastest = reference
+        var fastestTime = Long.MAX_VALUE
+        val providers = HashSet<String>()
+        for (candidate in candidates) {
+            try {
+                // The same provider can be reached from several candidates
+                if (!providers.add(candidate.getInstance().provider.name))
+                    continue
+                if (!crypt(candidate, Cipher.ENCRYPT_MODE, key, iv, input).contentEquals(referenceEncrypted)
+                    || !crypt(candidate, Cipher.DECRYPT_MODE, key, iv, referenceEncrypted).contentEquals(input)) {
+                    Log.w(TAG, "Cipher ${candidate.name} doesn't match the reference")
+                    continue
+                }
+                // Decryption is the operation done at each unlock
+                for (i in 0 until WARM_UP_ITERATIONS) {
+                    crypt(candidate, Cipher.DECRYPT_MODE, key, iv, referenceEncrypted)
+                }
+                var time = Long.MAX_VALUE
+                for (i in 0 until BENCHMARK_ITERATIONS) {
+                    val start = System.nanoTime()
+                    crypt(candidate, Cipher.DECRYPT_MODE, key, iv, referenceEncrypted)
+                    time = minOf(time, System.nanoTime() - start)
+                }
+                Log.d(TAG, "Cipher ${candidate.name} decrypts $BENCHMARK_BLOCK_SIZE bytes in $time ns")
+                if (time < fastestTime) {
+                    fastest = candidate
+                    fastestTime = time
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "Cipher ${candidate.name} not available", e)
+            }
+        }
+        Log.i(TAG, "Fastest cipher is ${fastest.name}")
+        return fastest
+    }
+
+    private fun crypt(candidate: Candidate, opmode: Int, key: ByteArray, iv: ByteArray, input: ByteArray): ByteArray {
+        val cipher = candidate.getInstance()
+        cipher.init(opmode, SecretKeySpec(key, candidate.keyAlgorithm), IvParameterSpec(iv))
+        return cipher.doFinal(input)
+    }
+}
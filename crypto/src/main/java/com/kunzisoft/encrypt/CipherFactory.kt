@@ -14,24 +14,69 @@ import javax.crypto.spec.SecretKeySpec
 
 object CipherFactory {
 
+    private const val AES_TRANSFORMATION = "AES/CBC/PKCS5Padding"
+    private const val TWOFISH_TRANSFORMATION = "Twofish/CBC/PKCS7PADDING"
+    private const val TWOFISH_COMPATIBILITY_TRANSFORMATION = "Twofish/CBC/NoPadding"
+    private const val CHACHA20_TRANSFORMATION = "Chacha7539"
+
     init {
         Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME)
         Security.addProvider(BouncyCastleProvider())
     }
 
+    // Platform provider (Conscrypt on most devices), native implementation and BouncyCastle
+    private val aesCandidates: List<CipherBenchmark.Candidate> by lazy {
+        val candidates = mutableListOf(
+            CipherBenchmark.Candidate("Platform AES", "AES") {
+                Cipher.getInstance(AES_TRANSFORMATION)
+            })
+        if (NativeLib.loaded()) {
+            candidates.add(CipherBenchmark.Candidate("Native AES", "AES") {
+                Cipher.getInstance(AES_TRANSFORMATION, AESProvider())
+            })
+        }
+        candidates.add(CipherBenchmark.Candidate("BouncyCastle AES", "AES") {
+            Cipher.getInstance(AES_TRANSFORMATION, BouncyCastleProvider.PROVIDER_NAME)
+        })
+        candidates
+    }
+
+    private fun twofishCandidates(transformation: String): List<CipherBenchmark.Candidate> {
+        return listOf(
+            CipherBenchmark.Candidate("Platform Twofish", "AES") {
+                Cipher.getInstance(transformation)
+            },
+            CipherBenchmark.Candidate("BouncyCastle Twofish", "AES") {
+                Cipher.getInstance(transformation, BouncyCastleProvider.PROVIDER_NAME)
+            })
+    }
+
+    private val chacha20Candidates: List<CipherBenchmark.Candidate> by lazy {
+        listOf(
+            CipherBenchmark.Candidate("BouncyCastle ChaCha20", "ChaCha7539") {
+                Cipher.getInstance(CHACHA20_TRANSFORMATION, BouncyCastleProvider.PROVIDER_NAME)
+            },
+            CipherBenchmark.Candidate("Platform ChaCha20", "ChaCha20") {
+                Cipher.getInstance("ChaCha20")
+            })
+    }
+
+    /**
+     * Retrieve an AES cipher from the fastest provider of the device,
+     * measured at the first call, or from the native provider if [forceNative]
+     */
     @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
     fun getAES(opmode: Int, key: ByteArray, IV: ByteArray, forceNative: Boolean = false): Cipher {
-        val transformation = "AES/CBC/PKCS5Padding"
-        val cipher = if (forceNative || NativeLib.loaded()) {
+        val cipher = if (forceNative) {
             // Try native implementation
             try {
-                Cipher.getInstance(transformation, AESProvider())
+                Cipher.getInstance(AES_TRANSFORMATION, AESProvider())
             } catch (exception: Exception) {
                 Log.e(CipherFactory::class.java.simpleName, "Unable to retrieve native AES cipher", exception)
-                Cipher.getInstance(transformation)
+                Cipher.getInstance(AES_TRANSFORMATION)
             }
         } else {
-            Cipher.getInstance(transformation)
+            CipherBenchmark.fastest(AES_TRANSFORMATION, IV.size, aesCandidates).getInstance()
         }
         cipher.init(opmode, SecretKeySpec(key, "AES"), IvParameterSpec(IV))
         return cipher
@@ -39,19 +84,22 @@ object CipherFactory {
 
     @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
     fun getTwofish(opmode: Int, key: ByteArray, IV: ByteArray, forceCompatibility: Boolean = false): Cipher {
-        val cipher: Cipher = if (forceCompatibility) {
-            Cipher.getInstance("Twofish/CBC/NoPadding")
+        val transformation = if (forceCompatibility) {
+            TWOFISH_COMPATIBILITY_TRANSFORMATION
         } else {
-            Cipher.getInstance("Twofish/CBC/PKCS7PADDING")
+            TWOFISH_TRANSFORMATION
         }
-        cipher.init(opmode, SecretKeySpec(key, "AES"), IvParameterSpec(IV))
+        val candidate = CipherBenchmark.fastest(transformation, IV.size, twofishCandidates(transformation))
+        val cipher = candidate.getInstance()
+        cipher.init(opmode, SecretKeySpec(key, candidate.keyAlgorithm), IvParameterSpec(IV))
         return cipher
     }
 
     @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
     fun getChacha20(opmode: Int, key: ByteArray, IV: ByteArray): Cipher {
-        val cipher = Cipher.getInstance("Chacha7539", BouncyCastleProvider())
-        cipher.init(opmode, SecretKeySpec(key, "ChaCha7539"), IvParameterSpec(IV))
+        val candidate = CipherBenchmark.fastest(CHACHA20_TRANSFORMATION, IV.size, chacha20Candidates)
+        val cipher = candidate.getInstance()
+        cipher.init(opmode, SecretKeySpec(key, candidate.keyAlgorithm), IvParameterSpec(IV))
         return cipher
     }
-}
\ No newline at end of file
+}
@@ -31,16 +31,49 @@ import javax.crypto.spec.SecretKeySpec
 
 object AESTransformer {
 
+    /**
+     * Number of rounds per second achieved by the last key transformation, 0 if unknown
+     */
+    @Volatile
+    var roundsPerSecond: Long = 0
+        private set
+
     fun transformKey(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray? {
+        val start = System.nanoTime()
         // Prefer the native final key implementation
-        return try {
+        var nativeTransformation = true
+        val transformedKey = try {
             NativeLib.init()
             NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!)
         } catch (exception: Exception) {
             Log.e(AESTransformer::class.java.simpleName, "Unable to perform native AES key transformation", exception)
             // Fall back on the android crypto implementation
+            nativeTransformation = false
             transformKeyInJVM(seed, key, rounds)
         }
+        val duration = System.nanoTime() - start
+        if (rounds != null && duration > 0) {
+            roundsPerSecond = (rounds.toDouble() * 1_000_000_000L / duration).toLong()
+            val implementation = when {
+                !nativeTransformation -> "JVM"
+                isHardwareAccelerated() -> "native with hardware AES"
+                else -> "native"
+            }
+            Log.i(AESTransformer::class.java.simpleName,
+                "AES key transformation: $rounds rounds at $roundsPerSecond rounds/s, $implementation")
+        }
+        return transformedKey
+    }
+
+    /**
+     * True if the native key transformation uses the AES instructions of the CPU
+     */
+    fun isHardwareAccelerated(): Boolean {
+        return try {
+            NativeLib.init() && NativeAESKeyTransformer.nIsHardwareAccelerated()
+        } catch (error: UnsatisfiedLinkError) {
+            false
+        }
     }
 
     @SuppressLint("GetInstance")
@@ -26,6 +26,7 @@ import com.kunzisoft.encrypt.NativeLib;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -105,6 +106,7 @@ public class NativeAESCipherSpi extends CipherSpi {
     @Override
     protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
             throws IllegalBlockSizeException, BadPaddingException {
+        // Exact size, except for a padded decryption
         int maxSize = engineGetOutputSize(inputLen);
         byte[] output = new byte[maxSize];
 
@@ -120,7 +122,6 @@ public class NativeAESCipherSpi extends CipherSpi {
         if ( maxSize == finalSize ) {
             return output;
         } else {
-            // TODO: Special doFinal to avoid this copy
             byte[] exact = new byte[finalSize];
             System.arraycopy(output, 0, exact, 0, finalSize);
             return exact;
@@ -142,7 +143,10 @@ public class NativeAESCipherSpi extends CipherSpi {
     private int doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
             throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
 
-        int outputSize = engineGetOutputSize(inputLen);
+        int outputSize = output.length - outputOffset;
+        if ( outputSize < engineGetOutputSize(inputLen) ) {
+            throw new ShortBufferException("Insufficient buffer.");
+        }
         int updateAmt;
         if (input != null && inputLen > 0) {
             updateAmt = nUpdate(mCtxPtr, input, inputOffset, inputLen, output, outputOffset, outputSize);
@@ -157,6 +161,27 @@ public class NativeAESCipherSpi extends CipherSpi {
     private native int nFinal(long ctxPtr, boolean usePadding, byte[] output, int outputOffest, int outputSize)
             throws ShortBufferException, IllegalBlockSizeException, BadPaddingException;
 
+    @Override
+    protected int engineDoFinal(ByteBuffer input, ByteBuffer output)
+            throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        if ( !isDirect(input, output) ) {
+            return super.engineDoFinal(input, output);
+        }
+        int inputLen = input.remaining();
+        if ( output.remaining() < engineGetOutputSize(inputLen) ) {
+            throw new ShortBufferException("Insufficient buffer.");
+        }
+        int updateAmt = 0;
+        if ( inputLen > 0 ) {
+            updateAmt = updateDirect(input, output);
+        }
+        // Only the last blocks go through the heap
+        byte[] finalBlocks = new byte[2 * AES_BLOCK_SIZE];
+        int finalAmt = nFinal(mCtxPtr, mPadding, finalBlocks, 0, finalBlocks.length);
+        output.put(finalBlocks, 0, finalAmt);
+        return updateAmt + finalAmt;
+    }
+
     @Override
     protected int engineGetBlockSize() {
         return AES_BLOCK_SIZE;
@@ -175,10 +200,10 @@ public class NativeAESCipherSpi extends CipherSpi {
 
     @Override
     protected int engineGetOutputSize(int inputLen) {
-        return inputLen + nGetCacheSize(mCtxPtr) + AES_BLOCK_SIZE;
+        return nGetOutputSize(mCtxPtr, inputLen, true, mPadding);
     }
 
-    private native int nGetCacheSize(long ctxPtr);
+    private native int nGetOutputSize(long ctxPtr, int inputLen, boolean doFinal, boolean usePadding);
 
     @Override
     protected AlgorithmParameters engineGetParameters() {
@@ -267,20 +292,12 @@ public class NativeAESCipherSpi extends CipherSpi {
 
     @Override
     protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
-        int maxSize = engineGetOutputSize(inputLen);
-        byte[] output = new byte[maxSize];
-
-        int updateSize = update(input, inputOffset, inputLen, output, 0);
-
-        if ( updateSize == maxSize ) {
-            return output;
-        } else {
-            // TODO: We could optimize update for this case to avoid this extra copy
-            byte[] exact = new byte[updateSize];
-            System.arraycopy(output, 0, exact, 0, updateSize);
-            return exact;
+        // The update size is known before the call, no need to trim the output
+        byte[] output = new byte[nGetOutputSize(mCtxPtr, inputLen, false, mPadding)];
+        if ( inputLen > 0 ) {
+            update(input, inputOffset, inputLen, output, 0);
         }
-
+        return output;
     }
 
     @Override
@@ -295,10 +312,44 @@ public class NativeAESCipherSpi extends CipherSpi {
     }
 
     private int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
-        int outputSize = engineGetOutputSize(inputLen);
+        int outputSize = output.length - outputOffset;
         return nUpdate(mCtxPtr, input, inputOffset, inputLen, output, outputOffset, outputSize);
     }
 
+    /**
+     * Bulk update, the whole input is processed in place in a single native call
+     */
     private native int nUpdate(long ctxPtr, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset, int outputSize);
 
+    @Override
+    protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+        if ( !isDirect(input, output) ) {
+            return super.engineUpdate(input, output);
+        }
+        if ( !input.hasRemaining() ) {
+            return 0;
+        }
+        return updateDirect(input, output);
+    }
+
+    /**
+     * Off-heap buffers are read and written by the native code without any copy,
+     * the other buffers go through arrays in {@link CipherSpi}
+     */
+    private static boolean isDirect(ByteBuffer input, ByteBuffer output) {
+        return input.isDirect() && output.isDirect() && !output.isReadOnly();
+    }
+
+    private int updateDirect(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+        int inputLen = input.remaining();
+        int result = nUpdateDirect(mCtxPtr, input, input.position(), inputLen,
+                output, output.position(), output.remaining());
+        input.position(input.position() + inputLen);
+        output.position(output.position() + result);
+        return result;
+    }
+
+    private native int nUpdateDirect(long ctxPtr, ByteBuffer input, int inputPosition, int inputLen, ByteBuffer output, int outputPosition, int outputSize)
+            throws ShortBufferException;
+
 }
\ No newline at end of file
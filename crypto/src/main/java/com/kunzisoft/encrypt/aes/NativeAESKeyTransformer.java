@@ -22,4 +22,9 @@ package com.kunzisoft.encrypt.aes;
 public class NativeAESKeyTransformer {
 
     public static native byte[] nTransformKey(byte[] seed, byte[] key, long rounds);
+
+    /**
+     * @return true if the key transformation uses the AES instructions of the CPU
+     */
+    public static native boolean nIsHardwareAccelerated();
 }
@@ -10,7 +10,8 @@ object Argon2Transformer {
                      parallelism: Long,
                      memory: Long,
                      iterations: Long,
-                     version: Int): ByteArray {
+                     version: Int,
+                     progressListener: NativeArgon2KeyTransformer.ProgressListener? = null): ByteArray {
 
         NativeLib.init()
         val argon2Type = when(type) {
@@ -28,6 +29,7 @@ object Argon2Transformer {
                 iterations.toInt(),
                 ByteArray(0),
                 ByteArray(0),
-                version)
+                version,
+                progressListener)
     }
 }
\ No newline at end of file
@@ -35,7 +35,15 @@ public class NativeArgon2KeyTransformer {
         }
     }
 
+    /**
+     * Called on the transformation thread after each pass over the memory
+     */
+    public interface ProgressListener {
+        void onPassCompleted(int pass, int passes);
+    }
+
     public static native byte[] nTransformKey(int type, byte[] password, byte[] salt, int parallelism,
                                               int memory, int iterations, byte[] secretKey,
-                                              byte[] associatedData, int version) throws IOException;
+                                              byte[] associatedData, int version,
+                                              ProgressListener progressListener) throws IOException;
 }
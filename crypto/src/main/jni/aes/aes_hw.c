@@ -0,0 +1,175 @@
+/*
+  Hardware AES (ARMv8 Crypto Extensions / AES-NI) for the AES-KDF key transformation.
+  Copyright 2022 Jeremy Jamet / Kunzisoft.
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+#include <string.h>
+
+#include "aes_hw.h"
+
+#define AES256_ROUNDS 14
+#define AES256_KEY_WORDS 8
+
+#if defined(__aarch64__)
+#define AES_HW_ARM
+#include <sys/auxv.h>
+#include <arm_neon.h>
+#ifndef HWCAP_AES
+#define HWCAP_AES (1 << 3)
+#endif
+#elif defined(__x86_64__) || defined(__i386__)
+#define AES_HW_X86
+#include <cpuid.h>
+#include <wmmintrin.h>
+#endif
+
+#if defined(AES_HW_ARM) || defined(AES_HW_X86)
+
+static const uint8_t sbox[256] = {
+  0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01, 0x67, 0x2b, 0xfe, 0xd7, 0xab, 0x76,
+  0xca, 0x82, 0xc9, 0x7d, 0xfa, 0x59, 0x47, 0xf0, 0xad, 0xd4, 0xa2, 0xaf, 0x9c, 0xa4, 0x72, 0xc0,
+  0xb7, 0xfd, 0x93, 0x26, 0x36, 0x3f, 0xf7, 0xcc, 0x34, 0xa5, 0xe5, 0xf1, 0x71, 0xd8, 0x31, 0x15,
+  0x04, 0xc7, 0x23, 0xc3, 0x18, 0x96, 0x05, 0x9a, 0x07, 0x12, 0x80, 0xe2, 0xeb, 0x27, 0xb2, 0x75,
+  0x09, 0x83, 0x2c, 0x1a, 0x1b, 0x6e, 0x5a, 0xa0, 0x52, 0x3b, 0xd6, 0xb3, 0x29, 0xe3, 0x2f, 0x84,
+  0x53, 0xd1, 0x00, 0xed, 0x20, 0xfc, 0xb1, 0x5b, 0x6a, 0xcb, 0xbe, 0x39, 0x4a, 0x4c, 0x58, 0xcf,
+  0xd0, 0xef, 0xaa, 0xfb, 0x43, 0x4d, 0x33, 0x85, 0x45, 0xf9, 0x02, 0x7f, 0x50, 0x3c, 0x9f, 0xa8,
+  0x51, 0xa3, 0x40, 0x8f, 0x92, 0x9d, 0x38, 0xf5, 0xbc, 0xb6, 0xda, 0x21, 0x10, 0xff, 0xf3, 0xd2,
+  0xcd, 0x0c, 0x13, 0xec, 0x5f, 0x97, 0x44, 0x17, 0xc4, 0xa7, 0x7e, 0x3d, 0x64, 0x5d, 0x19, 0x73,
+  0x60, 0x81, 0x4f, 0xdc, 0x22, 0x2a, 0x90, 0x88, 0x46, 0xee, 0xb8, 0x14, 0xde, 0x5e, 0x0b, 0xdb,
+  0xe0, 0x32, 0x3a, 0x0a, 0x49, 0x06, 0x24, 0x5c, 0xc2, 0xd3, 0xac, 0x62, 0x91, 0x95, 0xe4, 0x79,
+  0xe7, 0xc8, 0x37, 0x6d, 0x8d, 0xd5, 0x4e, 0xa9, 0x6c, 0x56, 0xf4, 0xea, 0x65, 0x7a, 0xae, 0x08,
+  0xba, 0x78, 0x25, 0x2e, 0x1c, 0xa6, 0xb4, 0xc6, 0xe8, 0xdd, 0x74, 0x1f, 0x4b, 0xbd, 0x8b, 0x8a,
+  0x70, 0x3e, 0xb5, 0x66, 0x48, 0x03, 0xf6, 0x0e, 0x61, 0x35, 0x57, 0xb9, 0x86, 0xc1, 0x1d, 0x9e,
+  0xe1, 0xf8, 0x98, 0x11, 0x69, 0xd9, 0x8e, 0x94, 0x9b, 0x1e, 0x87, 0xe9, 0xce, 0x55, 0x28, 0xdf,
+  0x8c, 0xa1, 0x89, 0x0d, 0xbf, 0xe6, 0x42, 0x68, 0x41, 0x99, 0x2d, 0x0f, 0xb0, 0x54, 0xbb, 0x16
+};
+
+/* FIPS-197 key expansion, the round keys are kept in byte order for the AES instructions */
+static void expand_key256(const uint8_t key[32], uint8_t round_keys[AES256_ROUNDS + 1][16]) {
+  uint8_t *w = &round_keys[0][0];
+  uint8_t rcon = 0x01;
+  int i;
+
+  memcpy(w, key, 32);
+  for( i = AES256_KEY_WORDS; i < 4 * (AES256_ROUNDS + 1); i++ ) {
+    uint8_t t[4];
+    memcpy(t, w + 4 * (i - 1), 4);
+    if( i % AES256_KEY_WORDS == 0 ) {
+      uint8_t first = t[0];
+      t[0] = sbox[t[1]] ^ rcon;
+      t[1] = sbox[t[2]];
+      t[2] = sbox[t[3]];
+      t[3] = sbox[first];
+      rcon = (uint8_t)((rcon << 1) ^ ((rcon & 0x80) ? 0x1b : 0x00));
+    } else if( i % AES256_KEY_WORDS == 4 ) {
+      t[0] = sbox[t[0]];
+      t[1] = sbox[t[1]];
+      t[2] = sbox[t[2]];
+      t[3] = sbox[t[3]];
+    }
+    w[4 * i]     = w[4 * (i - AES256_KEY_WORDS)]     ^ t[0];
+    w[4 * i + 1] = w[4 * (i - AES256_KEY_WORDS) + 1] ^ t[1];
+    w[4 * i + 2] = w[4 * (i - AES256_KEY_WORDS) + 2] ^ t[2];
+    w[4 * i + 3] = w[4 * (i - AES256_KEY_WORDS) + 3] ^ t[3];
+  }
+}
+
+#endif
+
+#if defined(AES_HW_ARM)
+
+int aes_hw_available(void) {
+  return (getauxval(AT_HWCAP) & HWCAP_AES) != 0;
+}
+
+void aes_hw_transform_key(const uint8_t seed[32], uint8_t key[32], uint64_t rounds) {
+  uint8_t round_keys[AES256_ROUNDS + 1][16] __attribute__ ((aligned (16)));
+  uint8x16_t rk[AES256_ROUNDS + 1];
+  uint8x16_t b0, b1;
+  uint64_t i;
+  int r;
+
+  expand_key256(seed, round_keys);
+  for( r = 0; r <= AES256_ROUNDS; r++ )
+    rk[r] = vld1q_u8(round_keys[r]);
+  memset(round_keys, 0, sizeof(round_keys));
+
+  b0 = vld1q_u8(key);
+  b1 = vld1q_u8(key + 16);
+  for( i = 0; i < rounds; i++ ) {
+    // AESE does AddRoundKey, SubBytes and ShiftRows, AESMC does MixColumns
+    for( r = 0; r < AES256_ROUNDS - 1; r++ ) {
+      b0 = vaesmcq_u8(vaeseq_u8(b0, rk[r]));
+      b1 = vaesmcq_u8(vaeseq_u8(b1, rk[r]));
+    }
+    b0 = veorq_u8(vaeseq_u8(b0, rk[AES256_ROUNDS - 1]), rk[AES256_ROUNDS]);
+    b1 = veorq_u8(vaeseq_u8(b1, rk[AES256_ROUNDS - 1]), rk[AES256_ROUNDS]);
+  }
+  vst1q_u8(key, b0);
+  vst1q_u8(key + 16, b1);
+}
+
+#elif defined(AES_HW_X86)
+
+int aes_hw_available(void) {
+  unsigned int eax, ebx, ecx, edx;
+  if( !__get_cpuid(1, &eax, &ebx, &ecx, &edx) )
+    return 0;
+  return (ecx & bit_AES) != 0;
+}
+
+void aes_hw_transform_key(const uint8_t seed[32], uint8_t key[32], uint64_t rounds) {
+  uint8_t round_keys[AES256_ROUNDS + 1][16] __attribute__ ((aligned (16)));
+  __m128i rk[AES256_ROUNDS + 1];
+  __m128i b0, b1;
+  uint64_t i;
+  int r;
+
+  expand_key256(seed, round_keys);
+  for( r = 0; r <= AES256_ROUNDS; r++ )
+    rk[r] = _mm_load_si128((const __m128i *)round_keys[r]);
+  memset(round_keys, 0, sizeof(round_keys));
+
+  b0 = _mm_loadu_si128((const __m128i *)key);
+  b1 = _mm_loadu_si128((const __m128i *)(key + 16));
+  for( i = 0; i < rounds; i++ ) {
+    b0 = _mm_xor_si128(b0, rk[0]);
+    b1 = _mm_xor_si128(b1, rk[0]);
+    for( r = 1; r < AES256_ROUNDS; r++ ) {
+      b0 = _mm_aesenc_si128(b0, rk[r]);
+      b1 = _mm_aesenc_si128(b1, rk[r]);
+    }
+    b0 = _mm_aesenclast_si128(b0, rk[AES256_ROUNDS]);
+    b1 = _mm_aesenclast_si128(b1, rk[AES256_ROUNDS]);
+  }
+  _mm_storeu_si128((__m128i *)key, b0);
+  _mm_storeu_si128((__m128i *)(key + 16), b1);
+}
+
+#else
+
+int aes_hw_available(void) {
+  return 0;
+}
+
+void aes_hw_transform_key(const uint8_t seed[32], uint8_t key[32], uint64_t rounds) {
+  // Never called, aes_hw_available() is false on this architecture
+  (void)seed;
+  (void)key;
+  (void)rounds;
+}
+
+#endif
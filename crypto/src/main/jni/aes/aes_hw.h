@@ -0,0 +1,33 @@
+/*
+  Hardware AES (ARMv8 Crypto Extensions / AES-NI) for the AES-KDF key transformation.
+  Copyright 2022 Jeremy Jamet / Kunzisoft.
+
+  This program is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+#ifndef AES_HW_H
+#define AES_HW_H
+
+#include <inttypes.h>
+
+/* Returns 1 if the CPU can run aes_hw_transform_key, 0 otherwise */
+int aes_hw_available(void);
+
+/*
+  Encrypts in place the two 16 bytes blocks of key "rounds" times with AES-256 ECB and seed as key.
+  Both blocks are independent chains, they are interleaved to fill the AES pipeline of a single core.
+*/
+void aes_hw_transform_key(const uint8_t seed[32], uint8_t key[32], uint64_t rounds);
+
+#endif /* AES_HW_H */
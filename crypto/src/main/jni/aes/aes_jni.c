@@ -36,6 +36,7 @@
 #endif
 
 #include "aes.h"
+#include "aes_hw.h"
 #include "sha2.h"
 
 static JavaVM *cached_vm;
@@ -163,11 +164,126 @@ JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nCleanu
   not a full block.
 */
 
+#define UPDATE_SUCCESS 0
+#define UPDATE_FAILURE 1
+#define UPDATE_NO_MEMORY 2
+
+// Number of bytes written by an update of inputLen bytes
+static uint32_t update_length(const aes_state *c_state, uint32_t inputLen) {
+  uint32_t cryptLen = inputLen + c_state->cache_len;
+  if( cryptLen < CACHE_SIZE )
+    return 0;
+  // mask bottom 4 bits plus 1 block, output length is aligned to a 16-byte boundary
+  return cryptLen - ((cryptLen & 15) + AES_BLOCK_SIZE);
+}
+
+static int cbc_crypt(aes_state *c_state, const uint8_t *in, uint8_t *out, uint32_t len) {
+  if( c_state->direction == ENCRYPTION )
+    return aes_cbc_encrypt(in, out, len, c_state->iv, ENC_CTX(c_state));
+  else
+    return aes_cbc_decrypt(in, out, len, c_state->iv, DEC_CTX(c_state));
+}
+
+/*
+  En/decrypt the cache followed by the input directly into the output, outLen comes from update_length().
+  Only the blocks which still contain cached bytes go through a stack buffer,
+  all the other blocks are read from the input and written to the output without any copy.
+  The input must not overlap the output, unless both are the same and the cache is empty.
+*/
+static int update_buffers(aes_state *c_state, const uint8_t *input, uint32_t inputLen, uint8_t *output, uint32_t outLen) {
+  uint8_t head[CACHE_SIZE] __attribute__ ((aligned (16)));
+  uint32_t cacheLen, cryptLen, headLen, fromCache;
+
+  cacheLen = c_state->cache_len;
+  cryptLen = cacheLen + inputLen;
+  if( !outLen ) {
+    memcpy(c_state->cache + cacheLen, input, inputLen);
+    c_state->cache_len = cryptLen;
+    return UPDATE_SUCCESS;
+  }
+
+  // step 1: blocks starting with cached bytes
+  headLen = (cacheLen + 15) & ~15u;
+  if( headLen > outLen )
+    headLen = outLen;
+  if( headLen ) {
+    fromCache = cacheLen < headLen ? cacheLen : headLen;
+    memcpy(head, c_state->cache, fromCache);
+    memcpy(head + fromCache, input, headLen - fromCache);
+    if( cbc_crypt(c_state, head, output, headLen) != EXIT_SUCCESS )
+      return UPDATE_FAILURE;
+  }
+
+  // step 2: blocks made only of input bytes, headLen >= cacheLen here
+  if( outLen > headLen ) {
+    if( cbc_crypt(c_state, input + (headLen - cacheLen), output + headLen, outLen - headLen) != EXIT_SUCCESS )
+      return UPDATE_FAILURE;
+  }
+
+  // step 3: cache overflow bytes for next call
+  if( outLen < cacheLen ) {
+    memmove(c_state->cache, c_state->cache + outLen, cacheLen - outLen);
+    memcpy(c_state->cache + (cacheLen - outLen), input, inputLen);
+  } else {
+    memcpy(c_state->cache, input + (outLen - cacheLen), cryptLen - outLen);
+  }
+  c_state->cache_len = cryptLen - outLen;
+  memset(head, 0, sizeof(head));
+  return UPDATE_SUCCESS;
+}
+
+// Only copy the input when it overlaps the output in a way update_buffers() can't handle
+static int update_pointers(aes_state *c_state, const uint8_t *input, uint32_t inputLen, uint8_t *output, uint32_t outLen) {
+  int ret;
+  uint8_t *copy;
+
+  if( (input == output && !c_state->cache_len) || input >= output + outLen || output >= input + inputLen )
+    return update_buffers(c_state, input, inputLen, output, outLen);
+
+  copy = malloc(inputLen);
+  if( copy == NULL )
+    return UPDATE_NO_MEMORY;
+  memcpy(copy, input, inputLen);
+  ret = update_buffers(c_state, copy, inputLen, output, outLen);
+  memset(copy, 0, inputLen);
+  free(copy);
+  return ret;
+}
+
+static void throw_update_error(JNIEnv *env, int ret) {
+  if( ret == UPDATE_NO_MEMORY )
+    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+  else
+    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+}
+
+/*
+  Checks shared by the array and the direct buffer updates,
+  returns the number of bytes to write, or -1 with a pending exception
+*/
+static jint check_update(JNIEnv *env, aes_state *c_state, jint inputLen, jint outputSize) {
+  uint32_t outLen;
+
+  if( c_state->direction == FINALIZED ) {
+    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
+    return -1;
+  }
+  outLen = update_length(c_state, inputLen);
+  if( outLen > (uint32_t)outputSize ) {
+    (*env)->ThrowNew(env, short_buf, "Output buffer does not have enough space");
+    return -1;
+  }
+  return outLen;
+}
+
+/*
+  The arrays are accessed in place with GetPrimitiveArrayCritical,
+  so a large update is done in one JNI call without intermediate heap buffers
+*/
 JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate(JNIEnv *env, jobject this,
 	jlong state, jbyteArray input, jint inputOffset, jint inputLen, jbyteArray output, jint outputOffset, jint outputSize) {
-  int aes_ret;
-  uint32_t outLen, bytes2cache, cryptLen;
-  void *in, *out;
+  int ret;
+  jint outLen;
   uint8_t *c_input, *c_output;
   aes_state *c_state;
 
@@ -176,81 +292,72 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate
   #endif
 
   // step 1: first, some housecleaning
-  if( !inputLen || !outputSize || outputOffset < 0 || !input || !output ) {
+  if( inputLen <= 0 || inputOffset < 0 || outputOffset < 0 || outputSize < 0 || !input || !output
+      || inputOffset > (*env)->GetArrayLength(env, input) - inputLen
+      || outputOffset > (*env)->GetArrayLength(env, output) - outputSize ) {
     (*env)->ThrowNew(env, bad_arg, "nUpdate: called with 1 or more invalid arguments");
     return -1;
   }
   c_state = (aes_state *)state;
-  if( c_state->direction == FINALIZED ) {
-    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
+  outLen = check_update(env, c_state, inputLen, outputSize);
+  if( outLen < 0 )
     return -1;
-  }
 
-  // step 1.5: calculate cryptLen and outLen
-  cryptLen = inputLen + c_state->cache_len;
-  if( cryptLen < CACHE_SIZE ) {
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_state->cache + c_state->cache_len));
-    c_state->cache_len = cryptLen;
-    return 0;
-  }
-  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
-  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE; // mask bottom 4 bits plus 1 block
-  outLen = (cryptLen - bytes2cache); // output length is now aligned to a 16-byte boundary
-  if( outLen > (uint32_t)outputSize ) {
-    (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
+  // step 2: en/decrypt in place, no JNI call allowed until the arrays are released
+  c_input = (*env)->GetPrimitiveArrayCritical(env, input, NULL);
+  if( c_input == NULL )
     return -1;
-  }
-
-  // step 2: allocate memory to hold input and output data
-  in = malloc(cryptLen+ALIGN_EXTRA);
-  if( in == NULL ) {
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+  c_output = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+  if( c_output == NULL ) {
+    (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, JNI_ABORT);
     return -1;
   }
-  c_input = ALIGN16(in);
+  ret = update_pointers(c_state, c_input + inputOffset, inputLen, c_output + outputOffset, outLen);
+  (*env)->ReleasePrimitiveArrayCritical(env, output, c_output, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, JNI_ABORT);
 
-  out = malloc(outLen+ALIGN_EXTRA);
-  if( out == NULL ) {
-    free(in);
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption output");
+  if( ret != UPDATE_SUCCESS ) {
+    throw_update_error(env, ret);
     return -1;
   }
-  c_output = ALIGN16(out);
 
-  // step 3: copy data from Java and en/decrypt it
-  if( c_state->cache_len ) {
-    memcpy(c_input, c_state->cache, c_state->cache_len);
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_input + c_state->cache_len));
-  } else {
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)c_input);
+  #if defined(KPD_DEBUG)
+  __android_log_print(ANDROID_LOG_INFO, "aes_jni.c/nUpdate", "exit: outLen=%d", outLen);
+  #endif
+
+  return outLen;
+}
+
+// Same as nUpdate for direct ByteBuffers, positions are relative to the buffer addresses
+JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdateDirect(JNIEnv *env, jobject this,
+	jlong state, jobject input, jint inputPosition, jint inputLen, jobject output, jint outputPosition, jint outputSize) {
+  int ret;
+  jint outLen;
+  uint8_t *c_input, *c_output;
+  aes_state *c_state;
+
+  if( inputLen <= 0 || inputPosition < 0 || outputPosition < 0 || outputSize < 0 || !input || !output ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: called with 1 or more invalid arguments");
+    return -1;
   }
-  if( c_state->direction == ENCRYPTION )
-    aes_ret = aes_cbc_encrypt(c_input, c_output, outLen, c_state->iv, ENC_CTX(c_state));
-  else
-    aes_ret = aes_cbc_decrypt(c_input, c_output, outLen, c_state->iv, DEC_CTX(c_state));
-  if( aes_ret != EXIT_SUCCESS ) {
-    free(in);
-    free(out);
-    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+  c_input = (*env)->GetDirectBufferAddress(env, input);
+  c_output = (*env)->GetDirectBufferAddress(env, output);
+  if( c_input == NULL || c_output == NULL
+      || inputPosition > (*env)->GetDirectBufferCapacity(env, input) - inputLen
+      || outputPosition > (*env)->GetDirectBufferCapacity(env, output) - outputSize ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: buffers must be direct and large enough");
     return -1;
   }
-  (*env)->SetByteArrayRegion(env, output, outputOffset, outLen, (jbyte *)c_output);
+  c_state = (aes_state *)state;
+  outLen = check_update(env, c_state, inputLen, outputSize);
+  if( outLen < 0 )
+    return -1;
 
-  // step 4: cleanup and return
-  if( bytes2cache ) {
-    c_state->cache_len = bytes2cache; // set new cache length
-    memcpy(c_state->cache, (c_input + outLen), bytes2cache); // cache overflow bytes for next call
-  } else {
-    c_state->cache_len = 0;
+  ret = update_pointers(c_state, c_input + inputPosition, inputLen, c_output + outputPosition, outLen);
+  if( ret != UPDATE_SUCCESS ) {
+    throw_update_error(env, ret);
+    return -1;
   }
-
-  free(in);
-  free(out);
-
-  #if defined(KPD_DEBUG)
-  __android_log_print(ANDROID_LOG_INFO, "aes_jni.c/nUpdate", "exit: outLen=%d", outLen);
-  #endif
-
   return outLen;
 }
 
@@ -361,15 +468,26 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nFinal(
   }
 }
 
-JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nGetCacheSize(JNIEnv* env, jobject this, jlong state) {
+/*
+  Exact number of bytes written by an update, or by a final call after an update of inputLen bytes.
+  The final size of a padded decryption is only an upper bound, the padding isn't known yet.
+*/
+JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nGetOutputSize(JNIEnv* env, jobject this,
+	jlong state, jint inputLen, jboolean doFinal, jboolean doPadding) {
+  uint32_t cryptLen;
   aes_state *c_state;
 
   c_state = (aes_state *)state;
-  if( c_state->direction == FINALIZED ) {
+  if( c_state->direction == FINALIZED || inputLen < 0 ) {
     (*env)->ThrowNew(env, bad_arg, "Invalid state");
     return -1;
   }
-  return c_state->cache_len;
+  if( !doFinal )
+    return update_length(c_state, inputLen);
+  cryptLen = inputLen + c_state->cache_len;
+  if( doPadding && c_state->direction == ENCRYPTION )
+    return (cryptLen & ~15u) + AES_BLOCK_SIZE;
+  return cryptLen;
 }
 
 #define MASTER_KEY_SIZE 32
@@ -438,67 +556,87 @@ uint32_t generate_key_material(void *arg) {
   return flip;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nTransformKey(JNIEnv *env, jobject this, jbyteArray seed, jbyteArray key, jlong rounds) {
-  master_key mk;
-  uint32_t flip;
+#define TRANSFORM_ERROR ((uint32_t)-1)
+
+// Software AES: each half of the key material is encrypted on its own thread
+uint32_t transform_key_in_threads(JNIEnv *env, master_key *mk) {
   pthread_t t1, t2;
   int iret;
   void *vret1, *vret2;
-  jbyteArray result;
-  sha256_ctx h_ctx[1] __attribute__ ((aligned (16)));
 
-  // step 1: housekeeping - sanity checks and fetch data from the JVM
-  if( (*env)->GetArrayLength(env, seed) != MASTER_KEY_SIZE ) {
-    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: the seed is not the correct size");
-    return NULL;
-  }
-  if( (*env)->GetArrayLength(env, key) != MASTER_KEY_SIZE ) {
-    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: the key is not the correct size");
-    return NULL;
-  }
-  if( rounds < 0 ) {
-    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: illegal number of encryption rounds");
-    return NULL;
-  }
-  mk.rounds = (uint64_t)rounds;
-  mk.done[0] = mk.done[1] = 0;
-  if( pthread_mutex_init(&mk.lock1, NULL) != 0 ) {
+  mk->done[0] = mk->done[1] = 0;
+  if( pthread_mutex_init(&mk->lock1, NULL) != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to initialize the mutex for thread 1"); // FIXME: get a better exception class for this...
-    return NULL;
+    return TRANSFORM_ERROR;
   }
-  if( pthread_mutex_init(&mk.lock2, NULL) != 0 ) {
+  if( pthread_mutex_init(&mk->lock2, NULL) != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to initialize the mutex for thread 2"); // FIXME: get a better exception class for this...
-    return NULL;
+    return TRANSFORM_ERROR;
   }
-  (*env)->GetByteArrayRegion(env, seed, 0, MASTER_KEY_SIZE, (jbyte *)mk.c_seed);
-  (*env)->GetByteArrayRegion(env, key, 0, MASTER_KEY_SIZE, (jbyte *)mk.key1);
 
-  // step 2: encrypt the hash "rounds"
-  iret = pthread_create( &t1, NULL, (void*)generate_key_material, (void*)&mk );
+  iret = pthread_create( &t1, NULL, (void*)generate_key_material, (void*)mk );
   if( iret != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to launch thread 1"); // FIXME: get a better exception class for this...
-    return NULL;
+    return TRANSFORM_ERROR;
   }
-  iret = pthread_create( &t2, NULL, (void*)generate_key_material, (void*)&mk );
+  iret = pthread_create( &t2, NULL, (void*)generate_key_material, (void*)mk );
   if( iret != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to launch thread 2"); // FIXME: get a better exception class for this...
-    return NULL;
+    return TRANSFORM_ERROR;
   }
   iret = pthread_join( t1, &vret1 );
   if( iret != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to join thread 1"); // FIXME: get a better exception class for this...
-    return NULL;
+    return TRANSFORM_ERROR;
   }
   iret = pthread_join( t2, &vret2 );
   if( iret != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to join thread 2"); // FIXME: get a better exception class for this...
-    return NULL;
+    return TRANSFORM_ERROR;
   }
   if( vret1 == (void *)(-1) || vret2 == (void *)(-1) || vret1 != vret2 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: invalid flip value(s) from completed thread(s)"); // FIXME: get a better exception class for this...
+    return TRANSFORM_ERROR;
+  }
+  return (uint32_t)vret1;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nIsHardwareAccelerated(JNIEnv *env, jclass this) {
+  return aes_hw_available() ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nTransformKey(JNIEnv *env, jobject this, jbyteArray seed, jbyteArray key, jlong rounds) {
+  master_key mk;
+  uint32_t flip;
+  jbyteArray result;
+  sha256_ctx h_ctx[1] __attribute__ ((aligned (16)));
+
+  // step 1: housekeeping - sanity checks and fetch data from the JVM
+  if( (*env)->GetArrayLength(env, seed) != MASTER_KEY_SIZE ) {
+    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: the seed is not the correct size");
+    return NULL;
+  }
+  if( (*env)->GetArrayLength(env, key) != MASTER_KEY_SIZE ) {
+    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: the key is not the correct size");
+    return NULL;
+  }
+  if( rounds < 0 ) {
+    (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: illegal number of encryption rounds");
     return NULL;
+  }
+  mk.rounds = (uint64_t)rounds;
+  (*env)->GetByteArrayRegion(env, seed, 0, MASTER_KEY_SIZE, (jbyte *)mk.c_seed);
+  (*env)->GetByteArrayRegion(env, key, 0, MASTER_KEY_SIZE, (jbyte *)mk.key1);
+
+  // step 2: encrypt the hash "rounds"
+  if( aes_hw_available() ) {
+    // ARMv8 Crypto Extensions / AES-NI, both halves are interleaved on a single core
+    aes_hw_transform_key(mk.c_seed, mk.key1, mk.rounds);
+    flip = 0;
   } else {
-    flip = (uint32_t)vret1;
+    flip = transform_key_in_threads(env, &mk);
+    if( flip == TRANSFORM_ERROR )
+      return NULL;
   }
 
   // step 3: final SHA256 hash
@@ -520,7 +658,11 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
   else
     (*env)->SetByteArrayRegion(env, result, 0, MASTER_KEY_SIZE, (jbyte *)mk.key1);
 
+  // wipe the key material from the stack
+  memset(&mk, 0, sizeof(mk));
+
   return result;
 }
+#undef TRANSFORM_ERROR
 #undef MASTER_KEY_SIZE
 
@@ -20,6 +20,7 @@
 
 #include <stdio.h>
 #include <stdlib.h>
+#include <unistd.h>
 #include <jni.h>
 
 #include "argon2.h"
@@ -127,12 +128,41 @@ void throwExceptionF(JNIEnv *env, jclass exception, const char *format, ...) {
 
 #define ARGON2_HASHLEN 32
 
+typedef struct _progress_listener {
+    JNIEnv *env;
+    jobject listener;
+    jmethodID on_pass_completed;
+} progress_listener;
+
+// Called by argon2 on the JNI thread after each pass
+static void progress_callback(void *progress_data, uint32_t pass, uint32_t passes) {
+    progress_listener *progress = (progress_listener *) progress_data;
+    JNIEnv *env = progress->env;
+    (*env)->CallVoidMethod(env, progress->listener, progress->on_pass_completed,
+                           (jint) pass, (jint) passes);
+    if ((*env)->ExceptionCheck(env)) {
+        // A failing listener must not stop the key derivation
+        (*env)->ExceptionDescribe(env);
+        (*env)->ExceptionClear(env);
+    }
+}
+
+// The lanes are fixed by the parallelism parameter, the threads only by the device
+static uint32_t worker_threads(uint32_t lanes) {
+    long cores = sysconf(_SC_NPROCESSORS_ONLN);
+    if (cores < 1)
+        cores = 1;
+    return lanes < (uint32_t) cores ? lanes : (uint32_t) cores;
+}
+
 JNIEXPORT jbyteArray
 JNICALL Java_com_kunzisoft_encrypt_argon2_NativeArgon2KeyTransformer_nTransformKey(JNIEnv *env,
    jobject this, jint type, jbyteArray password, jbyteArray salt, jint parallelism, jint memory,
-   jint iterations, jbyteArray secretKey, jbyteArray associatedData, jint version) {
+   jint iterations, jbyteArray secretKey, jbyteArray associatedData, jint version,
+   jobject progressListener) {
 
     argon2_context context;
+    progress_listener progress;
     uint8_t *out;
 
     out = (uint8_t *) malloc(ARGON2_HASHLEN);
@@ -163,11 +193,25 @@ JNICALL Java_com_kunzisoft_encrypt_argon2_NativeArgon2KeyTransformer_nTransformK
     context.t_cost = (uint32_t) iterations;
     context.m_cost = (uint32_t) memory;
     context.lanes = (uint32_t) parallelism;
-    context.threads = (uint32_t) parallelism;
+    context.threads = worker_threads((uint32_t) parallelism);
     context.allocate_cbk = NULL;
     context.free_cbk = NULL;
     context.flags = ARGON2_DEFAULT_FLAGS;
     context.version = (uint32_t) version;
+    context.progress_cbk = NULL;
+    context.progress_data = NULL;
+    if (progressListener != NULL) {
+        jclass listenerClass = (*env)->GetObjectClass(env, progressListener);
+        progress.env = env;
+        progress.listener = progressListener;
+        progress.on_pass_completed = (*env)->GetMethodID(env, listenerClass, "onPassCompleted", "(II)V");
+        if (progress.on_pass_completed != NULL) {
+            context.progress_cbk = progress_callback;
+            context.progress_data = &progress;
+        } else {
+            (*env)->ExceptionClear(env);
+        }
+    }
 
     int argonResult = argon2_ctx(&context, (argon2_type) type);
 
@@ -158,6 +158,10 @@ typedef enum Argon2_ErrorCodes {
 typedef int (*allocate_fptr)(uint8_t **memory, size_t bytes_to_allocate);
 typedef void (*deallocate_fptr)(uint8_t *memory, size_t bytes_to_allocate);
 
+/* Progress callback, pass is the number of completed passes */
+typedef void (*progress_fptr)(void *progress_data, uint32_t pass,
+                              uint32_t passes);
+
 /* Argon2 external data structures */
 
 /*
@@ -212,6 +216,9 @@ typedef struct Argon2_Context {
     deallocate_fptr free_cbk;   /* pointer to memory deallocator */
 
     uint32_t flags; /* array of bool options */
+
+    progress_fptr progress_cbk; /* called after each pass, may be NULL */
+    void *progress_data;        /* first argument of progress_cbk */
 } argon2_context;
 
 /* Argon2 primitive type */
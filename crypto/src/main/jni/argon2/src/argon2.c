@@ -136,6 +136,8 @@ int argon2_hash(const uint32_t t_cost, const uint32_t m_cost,
     context.free_cbk = NULL;
     context.flags = ARGON2_DEFAULT_FLAGS;
     context.version = version;
+    context.progress_cbk = NULL;
+    context.progress_data = NULL;
 
     result = argon2_ctx(&context, type);
 
@@ -246,85 +246,157 @@ uint32_t index_alpha(const argon2_instance_t *instance,
     return absolute_position;
 }
 
-#ifdef _WIN32
-static unsigned __stdcall fill_segment_thr(void *thread_data)
-#else
-static void *fill_segment_thr(void *thread_data)
-#endif
-{
-    argon2_thread_data *my_data = thread_data;
-    fill_segment(my_data->instance_ptr, my_data->pos);
-    argon2_thread_exit();
-    return 0;
+/*
+ * Pool of workers living for the whole hash, instead of one thread per segment.
+ * Worker w fills the lanes w, w + workers, w + 2 * workers... of each slice,
+ * the caller thread is worker 0 and synchronizes the slices, so the memory
+ * is filled in the same order as the reference and the output is identical.
+ */
+typedef struct Argon2_worker_pool_t {
+    argon2_instance_t *instance;
+    pthread_mutex_t mutex;
+    pthread_cond_t slice_start;
+    pthread_cond_t slice_done;
+    uint32_t workers;
+    uint32_t generation; /* incremented for each slice to fill */
+    uint32_t remaining;  /* helper workers still filling the current slice */
+    uint32_t pass;
+    uint8_t slice;
+    int stop;
+} argon2_worker_pool_t;
+
+typedef struct Argon2_worker_t {
+    argon2_worker_pool_t *pool;
+    uint32_t id;
+} argon2_worker_t;
+
+static void fill_lanes_of_worker(argon2_instance_t *instance, uint32_t id,
+                                 uint32_t workers, uint32_t pass,
+                                 uint8_t slice) {
+    uint32_t l;
+    argon2_position_t position;
+
+    position.pass = pass;
+    position.slice = slice;
+    position.index = 0;
+    for (l = id; l < instance->lanes; l += workers) {
+        position.lane = l;
+        fill_segment(instance, position);
+    }
+}
+
+static void *fill_segment_thr(void *thread_data) {
+    argon2_worker_t *worker = thread_data;
+    argon2_worker_pool_t *pool = worker->pool;
+    uint32_t generation = 0;
+    uint32_t pass;
+    uint8_t slice;
+
+    for (;;) {
+        pthread_mutex_lock(&pool->mutex);
+        while (pool->generation == generation && !pool->stop) {
+            pthread_cond_wait(&pool->slice_start, &pool->mutex);
+        }
+        if (pool->stop) {
+            pthread_mutex_unlock(&pool->mutex);
+            break;
+        }
+        generation = pool->generation;
+        pass = pool->pass;
+        slice = pool->slice;
+        pthread_mutex_unlock(&pool->mutex);
+
+        fill_lanes_of_worker(pool->instance, worker->id, pool->workers, pass,
+                             slice);
+
+        pthread_mutex_lock(&pool->mutex);
+        if (--pool->remaining == 0) {
+            pthread_cond_signal(&pool->slice_done);
+        }
+        pthread_mutex_unlock(&pool->mutex);
+    }
+    return NULL;
 }
 
 int fill_memory_blocks(argon2_instance_t *instance) {
-    uint32_t r, s;
+    uint32_t r, s, w;
+    uint32_t started = 0;
     argon2_thread_handle_t *thread = NULL;
-    argon2_thread_data *thr_data = NULL;
+    argon2_worker_t *workers = NULL;
+    argon2_worker_pool_t pool;
+    argon2_context *context;
     int rc = ARGON2_OK;
 
     if (instance == NULL || instance->lanes == 0) {
-        rc = ARGON2_THREAD_FAIL;
-        goto fail;
+        return ARGON2_THREAD_FAIL;
     }
+    context = instance->context_ptr;
 
-    /* 1. Allocating space for threads */
-    thread = calloc(instance->lanes, sizeof(argon2_thread_handle_t));
-    if (thread == NULL) {
-        rc = ARGON2_MEMORY_ALLOCATION_ERROR;
-        goto fail;
+    pool.instance = instance;
+    pool.workers = instance->threads;
+    if (pool.workers == 0 || pool.workers > instance->lanes) {
+        pool.workers = instance->lanes;
+    }
+    pool.generation = 0;
+    pool.remaining = 0;
+    pool.pass = 0;
+    pool.slice = 0;
+    pool.stop = 0;
+    if (pthread_mutex_init(&pool.mutex, NULL) != 0) {
+        return ARGON2_THREAD_FAIL;
+    }
+    if (pthread_cond_init(&pool.slice_start, NULL) != 0) {
+        pthread_mutex_destroy(&pool.mutex);
+        return ARGON2_THREAD_FAIL;
+    }
+    if (pthread_cond_init(&pool.slice_done, NULL) != 0) {
+        pthread_cond_destroy(&pool.slice_start);
+        pthread_mutex_destroy(&pool.mutex);
+        return ARGON2_THREAD_FAIL;
     }
 
-    thr_data = calloc(instance->lanes, sizeof(argon2_thread_data));
-    if (thr_data == NULL) {
+    /* 1. Starting the helper workers, the caller thread is the worker 0 */
+    thread = calloc(pool.workers, sizeof(argon2_thread_handle_t));
+    workers = calloc(pool.workers, sizeof(argon2_worker_t));
+    if (thread == NULL || workers == NULL) {
         rc = ARGON2_MEMORY_ALLOCATION_ERROR;
         goto fail;
     }
+    for (w = 1; w < pool.workers; ++w) {
+        workers[w].pool = &pool;
+        workers[w].id = w;
+        if (argon2_thread_create(&thread[w], &fill_segment_thr,
+                                 (void *)&workers[w])) {
+            rc = ARGON2_THREAD_FAIL;
+            goto fail;
+        }
+        started = w;
+    }
 
     for (r = 0; r < instance->passes; ++r) {
         for (s = 0; s < ARGON2_SYNC_POINTS; ++s) {
-            uint32_t l;
-
-            /* 2. Calling threads */
-            for (l = 0; l < instance->lanes; ++l) {
-                argon2_position_t position;
-
-                /* 2.1 Join a thread if limit is exceeded */
-                if (l >= instance->threads) {
-                    if (argon2_thread_join(thread[l - instance->threads])) {
-                        rc = ARGON2_THREAD_FAIL;
-                        goto fail;
-                    }
-                }
-
-                /* 2.2 Create thread */
-                position.pass = r;
-                position.lane = l;
-                position.slice = (uint8_t)s;
-                position.index = 0;
-                thr_data[l].instance_ptr =
-                    instance; /* preparing the thread input */
-                memcpy(&(thr_data[l].pos), &position,
-                       sizeof(argon2_position_t));
-                if (argon2_thread_create(&thread[l], &fill_segment_thr,
-                                         (void *)&thr_data[l])) {
-                    rc = ARGON2_THREAD_FAIL;
-                    goto fail;
-                }
-
-                /* fill_segment(instance, position); */
-                /*Non-thread equivalent of the lines above */
+            /* 2. Filling the slice with all the workers */
+            pthread_mutex_lock(&pool.mutex);
+            pool.pass = r;
+            pool.slice = (uint8_t)s;
+            pool.remaining = pool.workers - 1;
+            pool.generation++;
+            pthread_cond_broadcast(&pool.slice_start);
+            pthread_mutex_unlock(&pool.mutex);
+
+            fill_lanes_of_worker(instance, 0, pool.workers, r, (uint8_t)s);
+
+            /* 3. Waiting for the other lanes of the slice */
+            pthread_mutex_lock(&pool.mutex);
+            while (pool.remaining > 0) {
+                pthread_cond_wait(&pool.slice_done, &pool.mutex);
             }
+            pthread_mutex_unlock(&pool.mutex);
+        }
 
-            /* 3. Joining remaining threads */
-            for (l = instance->lanes - instance->threads; l < instance->lanes;
-                 ++l) {
-                if (argon2_thread_join(thread[l])) {
-                    rc = ARGON2_THREAD_FAIL;
-                    goto fail;
-                }
-            }
+        if (context != NULL && context->progress_cbk != NULL) {
+            context->progress_cbk(context->progress_data, r + 1,
+                                  instance->passes);
         }
 
 #ifdef GENKAT
@@ -333,11 +405,24 @@ int fill_memory_blocks(argon2_instance_t *instance) {
     }
 
 fail:
+    /* 4. Stopping the helper workers */
+    pthread_mutex_lock(&pool.mutex);
+    pool.stop = 1;
+    pthread_cond_broadcast(&pool.slice_start);
+    pthread_mutex_unlock(&pool.mutex);
+    for (w = 1; w <= started; ++w) {
+        if (argon2_thread_join(thread[w]) && rc == ARGON2_OK) {
+            rc = ARGON2_THREAD_FAIL;
+        }
+    }
+    pthread_cond_destroy(&pool.slice_done);
+    pthread_cond_destroy(&pool.slice_start);
+    pthread_mutex_destroy(&pool.mutex);
     if (thread != NULL) {
         free(thread);
     }
-    if (thr_data != NULL) {
-        free(thr_data);
+    if (workers != NULL) {
+        free(workers);
     }
     return rc;
 }